@@ -0,0 +1,134 @@
+package edu.stanford.cs244b.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.cs244b.Util;
+import edu.stanford.cs244b.chord.ChordNode;
+import edu.stanford.cs244b.chord.ChordTransport;
+import edu.stanford.cs244b.chord.Finger;
+import edu.stanford.cs244b.chord.RemoteChordNodeI;
+
+/** Finger table lookups of a node in a synthetic ring of the given size, whose fingers
+ *  point at the nodes which a fully stabilized ring would have there. Remote nodes are
+ *  stubs which never leave the JVM, so only the routing decision is measured. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FingerBenchmark {
+    final static int TARGETS = 1024;
+
+    @Param({"16", "1024", "65536"})
+    public int ringSize;
+
+    private ChordNode node;
+    private final int[] targets = new int[TARGETS];
+    private int next;
+
+    /** Transport whose stubs only answer getLocation, which is all the stub cache asks */
+    static class StubTransport implements ChordTransport {
+        @Override
+        public void export(RemoteChordNodeI node, Finger location) {
+        }
+
+        @Override
+        public RemoteChordNodeI connect(final Finger location) {
+            return (RemoteChordNodeI) Proxy.newProxyInstance(RemoteChordNodeI.class.getClassLoader(),
+                    new Class<?>[] {RemoteChordNodeI.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("getLocation")) {
+                        return location;
+                    } else if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(location, args);
+                    }
+                    throw new RemoteException("Not supported by benchmark stub");
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        node = new ChordNode(localhost, 1, null, new StubTransport());
+        int self = node.getLocation().shardid;
+
+        // node identifiers in ring order starting just after this node
+        Random random = new Random(42);
+        long[] offsets = new long[ringSize - 1];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = 1 + (random.nextLong() >>> 33) % 0xffffffffL;
+        }
+        Arrays.sort(offsets);
+
+        Finger[] fingerTable = node.getFingerTable();
+        for (int i = 0; i < fingerTable.length; i++) {
+            long start = 1L << i;
+            int index = Arrays.binarySearch(offsets, start);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            if (index < offsets.length) {
+                Finger finger = new Finger(localhost, 2 + index);
+                finger.shardid = (int) (self + offsets[index]);
+                fingerTable[i] = finger;
+            } else {
+                fingerTable[i] = node.getLocation();
+            }
+        }
+        for (int i = 0; i < TARGETS; i++) {
+            targets[i] = random.nextInt();
+        }
+        // connect every finger once, as a running node would have
+        for (int target : targets) {
+            node.closestPrecedingFinger(target);
+        }
+    }
+
+    @Benchmark
+    public RemoteChordNodeI closestPrecedingFinger() {
+        next = (next + 1) & (TARGETS - 1);
+        return node.closestPrecedingFinger(targets[next]);
+    }
+
+    /** The interval test alone, for comparison with the whole lookup */
+    @Benchmark
+    public boolean scanFingers() {
+        next = (next + 1) & (TARGETS - 1);
+        int target = targets[next];
+        int self = node.getLocation().shardid;
+        Finger[] fingerTable = node.getFingerTable();
+        for (int index = fingerTable.length - 1; index >= 0; index--) {
+            if (Util.withinInterval(fingerTable[index].shardid, self + 1, target - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,89 @@
+package edu.stanford.cs244b.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.cs244b.crypto.CryptoContext;
+import edu.stanford.cs244b.crypto.HMACInputStream;
+
+/** Throughput of HMACInputStream over a 1 MiB object, read with buffers of different
+ *  sizes; a buffer of 1 byte reads through the single-byte read() */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HmacBenchmark {
+    final static int OBJECT_BYTES = 1024 * 1024;
+
+    @Param({"JDK", "BOUNCYCASTLE"})
+    public CryptoContext.Provider provider;
+
+    private byte[] object;
+    private SecretKeySpec secretKey;
+
+    /** Buffer which the object is read into, only used by readThroughHmac */
+    @State(Scope.Thread)
+    public static class ReadBuffer {
+        @Param({"1", "512", "8192", "65536"})
+        public int bufferSize;
+
+        byte[] buffer;
+
+        @Setup
+        public void setUp() {
+            buffer = new byte[bufferSize];
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        CryptoContext.setProvider(provider);
+        Random random = new Random(42);
+        object = new byte[OBJECT_BYTES];
+        random.nextBytes(object);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        secretKey = new SecretKeySpec(key, "RAW");
+    }
+
+    @Benchmark
+    public byte[] readThroughHmac(ReadBuffer readBuffer) throws Exception {
+        HMACInputStream in = new HMACInputStream(new ByteArrayInputStream(object), secretKey);
+        byte[] buffer = readBuffer.buffer;
+        if (buffer.length == 1) {
+            while (in.read() != -1) {
+                // consume the object one byte at a time
+            }
+        } else {
+            while (in.read(buffer) != -1) {
+                // consume the object
+            }
+        }
+        return in.getDigest();
+    }
+
+    /** Cost of getting a keyed MAC, which every upload and verification pays once */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public byte[] keyedMacPerRequest() throws Exception {
+        return CryptoContext.hmacSha256(secretKey).doFinal();
+    }
+}
@@ -0,0 +1,74 @@
+package edu.stanford.cs244b.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.cs244b.Util;
+
+/** Mapping of hosts and object hashes onto the identifier ring, which every lookup goes through */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentifierBenchmark {
+    /** Inputs are cycled through so that the JIT cannot fold them into constants */
+    final static int INPUTS = 1024;
+
+    private final int[] identifiers = new int[INPUTS];
+    private final String[] hashes = new String[INPUTS];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        byte[] digest = new byte[32];
+        for (int i = 0; i < INPUTS; i++) {
+            identifiers[i] = random.nextInt();
+            random.nextBytes(digest);
+            hashes[i] = Hex.encodeHexString(digest);
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (INPUTS - 1);
+        return next;
+    }
+
+    @Benchmark
+    public int intHash() {
+        return Util.intHash(identifiers[nextIndex()]);
+    }
+
+    @Benchmark
+    public int hexStringToIdentifier() {
+        return Util.hexStringToIdentifier(hashes[nextIndex()]);
+    }
+
+    /** Interval which does not wrap around the top of the ring */
+    @Benchmark
+    public boolean withinInterval() {
+        int i = nextIndex();
+        return Util.withinInterval(identifiers[i], -0x40000000, 0x40000000);
+    }
+
+    /** Interval which wraps around the top of the ring */
+    @Benchmark
+    public boolean withinWrappingInterval() {
+        int i = nextIndex();
+        return Util.withinInterval(identifiers[i], 0x40000000, -0x40000000);
+    }
+}
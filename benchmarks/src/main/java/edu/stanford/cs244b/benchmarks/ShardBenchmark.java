@@ -0,0 +1,121 @@
+package edu.stanford.cs244b.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+
+import edu.stanford.cs244b.ChordConfiguration;
+import edu.stanford.cs244b.Shard;
+import edu.stanford.cs244b.Shard.IdentifierAlgorithm;
+import io.dropwizard.jetty.HttpConnectorFactory;
+
+/** Saving and verifying objects of the sizes used by scripts/performanceTest.py
+ *  (16 B, 2 KB, 195 KB and 1.2 MB), on a shard which forms a ring on its own.
+ *  Saving an upload includes forcing it and its replication job to disk, so results
+ *  depend on the file system of the working directory; the shard's directories are
+ *  created there and removed afterwards. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardBenchmark {
+    @Param({"16", "2048", "199680", "1258291"})
+    public int objectBytes;
+
+    /** HMAC_SHA256 is an upload to this node, SHA256_REPLICATE a replica sent by another node */
+    @Param({"HMAC_SHA256", "SHA256_REPLICATE"})
+    public IdentifierAlgorithm algo;
+
+    private Shard shard;
+    private String directorySuffix;
+    private byte[] object;
+    private String checksum;
+
+    @Setup
+    public void setUp() throws Exception {
+        ChordConfiguration.Chord chordConfig = new ChordConfiguration().getChord();
+        chordConfig.setMyIP("127.0.0.1");
+        chordConfig.setEntryPoint("127.0.0.1");
+        chordConfig.setIdentifier("hmac_sha256");
+        chordConfig.setStartupDelaySeconds(0);
+        chordConfig.setRepairIntervalSeconds(0);
+        int port = freePort();
+        chordConfig.setEntryPort(port);
+        HttpConnectorFactory serverConfig = new HttpConnectorFactory();
+        serverConfig.setPort(port);
+
+        shard = new Shard(chordConfig, serverConfig, new MetricRegistry());
+        directorySuffix = "-"+shard.shardIdAsHex()+"-"+port;
+
+        object = new byte[objectBytes];
+        new Random(42).nextBytes(object);
+        checksum = (algo == IdentifierAlgorithm.HMAC_SHA256) ?
+                shard.saveFile(new ByteArrayInputStream(object), algo).userChecksum :
+                shard.saveFile(new ByteArrayInputStream(object), algo).sha256;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        File[] files = new File(".").listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(directorySuffix) || file.getName().endsWith(directorySuffix+".txt")) {
+                FileUtils.forceDelete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public String saveFile() throws Exception {
+        return shard.saveFile(new ByteArrayInputStream(object), algo).sha256;
+    }
+
+    @Benchmark
+    public byte[] verifyFile() throws Exception {
+        IdentifierAlgorithm verifyAlgo = (algo == IdentifierAlgorithm.HMAC_SHA256) ?
+                IdentifierAlgorithm.HMAC_SHA256 : IdentifierAlgorithm.SHA256;
+        return shard.verifyFile(new ByteArrayInputStream(object), checksum, verifyAlgo);
+    }
+
+    /** Port which is free along with the one above it, used by the Chord node */
+    private static int freePort() throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            try {
+                // only checking that the port is free, so release it straight away
+                new ServerSocket(port + 1).close();
+                return port;
+            } catch (IOException e) {
+                if (attempt >= 10) {
+                    throw e;
+                }
+            }
+        }
+    }
+}
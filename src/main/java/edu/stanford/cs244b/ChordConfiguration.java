@@ -54,6 +54,113 @@ public class ChordConfiguration extends Configuration implements AssetsBundleCon
         /** Algorithm to use for generating identifiers for objects added to chord ring */
         @JsonProperty
         private String identifier;
+        
+        /** Average size in bytes of the content-defined chunks which large uploads are
+         *  split into, or 0 to store every upload as a single object */
+        @Min(0)
+        @JsonProperty
+        private int chunkSize = 0;
+        
+        /** Transport used between Chord nodes: nio (binary protocol over persistent
+         *  connections) or rmi. All nodes in a ring must use the same transport. */
+        @JsonProperty
+        private String transport = "nio";
+        
+        /** Number of persistent connections the nio transport keeps open to each remote node */
+        @Min(1)
+        @JsonProperty
+        private int connectionsPerPeer = 2;
+        
+        /** Number of replicas which must acknowledge an upload before it is acknowledged
+         *  to the user; the remaining replicas are written in the background */
+        @Min(1)
+        @JsonProperty
+        private int writeQuorum = 1;
+        
+        /** Whether uploads are acknowledged once they are durable on this node, with
+         *  replicas written by a background queue (writeQuorum then does not apply) */
+        @JsonProperty
+        private boolean asyncReplication = true;
+        
+        /** Objects up to this many bytes are appended to pack files rather than
+         *  stored one per file; 0 stores every object in its own file */
+        @Min(0)
+        @JsonProperty
+        private int packThreshold = 65536;
+        
+        /** Rate at which replicas are handed over to a new owner after the ring
+         *  changes, in bytes per second; 0 for no limit */
+        @Min(0)
+        @JsonProperty
+        private long handoffBytesPerSecond = 8 * 1024 * 1024;
+        
+        /** Seconds between rounds comparing replicas with the successors; 0 disables repair */
+        @Min(0)
+        @JsonProperty
+        private long repairIntervalSeconds = 30;
+        
+        /** Rate at which replicas are copied to repair differences, in bytes per second; 0 for no limit */
+        @Min(0)
+        @JsonProperty
+        private long repairBytesPerSecond = 4 * 1024 * 1024;
+        
+        /** Number of data and parity fragments that large uploads are split into instead of
+         *  being replicated whole; 0 data fragments disables erasure coding */
+        @Min(0)
+        @JsonProperty
+        private int erasureDataShards = 0;
+        
+        @Min(0)
+        @JsonProperty
+        private int erasureParityShards = 2;
+        
+        /** Uploads of at least this many bytes are erasure-coded */
+        @Min(0)
+        @JsonProperty
+        private long erasureMinBytes = 1024 * 1024;
+        
+        /** Bytes of verified objects and verification results kept in memory so that
+         *  repeated reads skip checking the checksum; 0 disables the cache */
+        @Min(0)
+        @JsonProperty
+        private long verifiedCacheBytes = 64 * 1024 * 1024;
+        
+        /** Provider of SHA-256 and HMAC-SHA256: jdk or bouncycastle. Both compute the same
+         *  checksums, so it can be changed on an existing node. */
+        @JsonProperty
+        private String cryptoProvider = "jdk";
+        
+        /** Fraction of API requests which are traced across the nodes they reach, between 0 and 1;
+         *  requests with an X-Trace: true header are always traced */
+        @Min(0)
+        @Max(1)
+        @JsonProperty
+        private double traceSampleRate = 0.01;
+        
+        /** Number of recent spans of traced requests kept in memory by each node */
+        @Min(1)
+        @JsonProperty
+        private int traceBufferSpans = 1024;
+        
+        /** Milliseconds between rounds of stabilization while the ring changes, and the most
+         *  the interval doubles to while this node's neighbours stay the same */
+        @Min(1)
+        @JsonProperty
+        private long stabilizeMillis = 1000;
+        
+        @Min(1)
+        @JsonProperty
+        private long maxStabilizeMillis = 16000;
+        
+        /** Whether a joining node looks up its whole finger table, starting from its
+         *  successor's, before it starts stabilizing */
+        @JsonProperty
+        private boolean fastJoin = true;
+        
+        /** Seconds to wait before joining the ring, so that a debugger can be attached */
+        @Min(0)
+        @JsonProperty
+        private int startupDelaySeconds = 20;
 
         public InetAddress getMyIP() {
             return myIP;
@@ -85,6 +192,166 @@ public class ChordConfiguration extends Configuration implements AssetsBundleCon
 
         public void setIdentifier(String identifier) {
             this.identifier = identifier;
-        }    
+        }
+        
+        public int getChunkSize() {
+            return chunkSize;
+        }
+        
+        public void setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+        
+        public String getTransport() {
+            return transport;
+        }
+        
+        public void setTransport(String transport) {
+            this.transport = transport;
+        }
+        
+        public int getConnectionsPerPeer() {
+            return connectionsPerPeer;
+        }
+        
+        public void setConnectionsPerPeer(int connectionsPerPeer) {
+            this.connectionsPerPeer = connectionsPerPeer;
+        }
+        
+        public int getWriteQuorum() {
+            return writeQuorum;
+        }
+        
+        public void setWriteQuorum(int writeQuorum) {
+            this.writeQuorum = writeQuorum;
+        }
+        
+        public boolean isAsyncReplication() {
+            return asyncReplication;
+        }
+        
+        public void setAsyncReplication(boolean asyncReplication) {
+            this.asyncReplication = asyncReplication;
+        }
+        
+        public int getPackThreshold() {
+            return packThreshold;
+        }
+        
+        public void setPackThreshold(int packThreshold) {
+            this.packThreshold = packThreshold;
+        }
+        
+        public long getHandoffBytesPerSecond() {
+            return handoffBytesPerSecond;
+        }
+        
+        public void setHandoffBytesPerSecond(long handoffBytesPerSecond) {
+            this.handoffBytesPerSecond = handoffBytesPerSecond;
+        }
+        
+        public long getRepairIntervalSeconds() {
+            return repairIntervalSeconds;
+        }
+        
+        public void setRepairIntervalSeconds(long repairIntervalSeconds) {
+            this.repairIntervalSeconds = repairIntervalSeconds;
+        }
+        
+        public long getRepairBytesPerSecond() {
+            return repairBytesPerSecond;
+        }
+        
+        public void setRepairBytesPerSecond(long repairBytesPerSecond) {
+            this.repairBytesPerSecond = repairBytesPerSecond;
+        }
+        
+        public int getErasureDataShards() {
+            return erasureDataShards;
+        }
+        
+        public void setErasureDataShards(int erasureDataShards) {
+            this.erasureDataShards = erasureDataShards;
+        }
+        
+        public int getErasureParityShards() {
+            return erasureParityShards;
+        }
+        
+        public void setErasureParityShards(int erasureParityShards) {
+            this.erasureParityShards = erasureParityShards;
+        }
+        
+        public long getErasureMinBytes() {
+            return erasureMinBytes;
+        }
+        
+        public void setErasureMinBytes(long erasureMinBytes) {
+            this.erasureMinBytes = erasureMinBytes;
+        }
+        
+        public long getVerifiedCacheBytes() {
+            return verifiedCacheBytes;
+        }
+        
+        public void setVerifiedCacheBytes(long verifiedCacheBytes) {
+            this.verifiedCacheBytes = verifiedCacheBytes;
+        }
+        
+        public String getCryptoProvider() {
+            return cryptoProvider;
+        }
+        
+        public void setCryptoProvider(String cryptoProvider) {
+            this.cryptoProvider = cryptoProvider;
+        }
+        
+        public double getTraceSampleRate() {
+            return traceSampleRate;
+        }
+        
+        public void setTraceSampleRate(double traceSampleRate) {
+            this.traceSampleRate = traceSampleRate;
+        }
+        
+        public int getTraceBufferSpans() {
+            return traceBufferSpans;
+        }
+        
+        public void setTraceBufferSpans(int traceBufferSpans) {
+            this.traceBufferSpans = traceBufferSpans;
+        }
+        
+        public long getStabilizeMillis() {
+            return stabilizeMillis;
+        }
+        
+        public void setStabilizeMillis(long stabilizeMillis) {
+            this.stabilizeMillis = stabilizeMillis;
+        }
+        
+        public long getMaxStabilizeMillis() {
+            return maxStabilizeMillis;
+        }
+        
+        public void setMaxStabilizeMillis(long maxStabilizeMillis) {
+            this.maxStabilizeMillis = maxStabilizeMillis;
+        }
+        
+        public boolean isFastJoin() {
+            return fastJoin;
+        }
+        
+        public void setFastJoin(boolean fastJoin) {
+            this.fastJoin = fastJoin;
+        }
+        
+        public int getStartupDelaySeconds() {
+            return startupDelaySeconds;
+        }
+        
+        public void setStartupDelaySeconds(int startupDelaySeconds) {
+            this.startupDelaySeconds = startupDelaySeconds;
+        }
     }
 }
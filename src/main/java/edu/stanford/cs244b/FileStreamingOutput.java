@@ -0,0 +1,96 @@
+package edu.stanford.cs244b;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+/** Jersey entity which sends a region of a file straight from disk with
+ *  {@link FileChannel#transferTo}, so that serving an object never copies
+ *  the whole file onto the heap. */
+public class FileStreamingOutput implements StreamingOutput {
+    private final Path filePath;
+    private final long offset;
+    private final long length;
+
+    public FileStreamingOutput(Path filePath, long offset, long length) {
+        this.filePath = filePath;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        WritableByteChannel outputChannel = Channels.newChannel(output);
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                long transferred = fileChannel.transferTo(position, remaining, outputChannel);
+                if (transferred <= 0) {
+                    throw new IOException("File "+filePath+" was truncated while being sent");
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+        output.flush();
+    }
+
+    /** Parse a single HTTP byte range (<i>bytes=start-end</i>, <i>bytes=start-</i> or
+     *  <i>bytes=-suffixLength</i>) against a file of the given size.
+     *  Returns {offset, length}, null if the header is absent or is not a single byte range
+     *  (the whole file should be sent), or {-1, -1} if the range cannot be satisfied. */
+    public static long[] parseRange(String rangeHeader, long fileSize) {
+        if (rangeHeader == null) {
+            return null;
+        }
+        String range = rangeHeader.trim();
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        range = range.substring("bytes=".length()).trim();
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String startString = range.substring(0, dash).trim();
+            String endString = range.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (startString.isEmpty()) {
+                // suffix range: last N bytes of the file
+                long suffixLength = Long.parseLong(endString);
+                if (suffixLength <= 0) {
+                    return new long[] {-1, -1};
+                }
+                start = Math.max(0, fileSize - suffixLength);
+                end = fileSize - 1;
+            } else {
+                start = Long.parseLong(startString);
+                end = endString.isEmpty() ? fileSize - 1 : Math.min(Long.parseLong(endString), fileSize - 1);
+            }
+            if (start >= fileSize || start > end) {
+                return new long[] {-1, -1};
+            }
+            return new long[] {start, end - start + 1};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package edu.stanford.cs244b;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import javax.ws.rs.core.MediaType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.stanford.cs244b.Shard.MetadataEntry;
+
+/** Crash-safe store for the metadata of files uploaded to a shard.
+ *  <p/>
+ *  Entries are kept in memory and every update is appended to a log which is
+ *  forced to disk before put returns; concurrent puts share a single fsync.
+ *  Records are framed as <i>int length, int crc32, payload</i> so that a write
+ *  torn by a crash is detected and discarded on replay (it was never acknowledged);
+ *  a bad record anywhere but at the end of the newest log stops the store from opening.
+ *  <p/>
+ *  Once the log grows past COMPACT_LOG_BYTES, writes switch to a new log generation
+ *  and the whole map is written to a snapshot in the background, after which the
+ *  older logs are deleted. Startup loads the snapshot and replays the newer logs. */
+public class MetadataStore implements Closeable {
+    final static Logger logger = LoggerFactory.getLogger(MetadataStore.class);
+
+    /** Log size which triggers writing a snapshot and starting a new log */
+    final static long COMPACT_LOG_BYTES = 64L * 1024 * 1024;
+
+    final static int BUFFER_SIZE = 1024 * 1024;
+
+    private final static int SNAPSHOT_MAGIC = 0x6d657461; // "meta"
+    private final static byte OP_PUT = 1;
+
+    private final static String LOG_PREFIX = "log-";
+    private final static String SNAPSHOT_FILE = "snapshot";
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final ConcurrentHashMap<String, MetadataEntry> entries = new ConcurrentHashMap<String, MetadataEntry>();
+
+    /** Guards log, generation, logBytes and writtenSeq */
+    private final Object writeLock = new Object();
+    private FileChannel log;
+    private long generation;
+    private long logBytes;
+    private long writtenSeq = 0;
+
+    /** Guards syncedSeq; held while forcing the log so that concurrent writers share an fsync */
+    private final Object syncLock = new Object();
+    private long syncedSeq = 0;
+
+    /** Media types seen while replaying, only used by the constructor */
+    private final Map<String, MediaType> mediaTypes = new HashMap<String, MediaType>();
+
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "metadata-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Open the store in the directory, replaying the snapshot and logs left by earlier runs */
+    public MetadataStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        long start = System.currentTimeMillis();
+
+        long snapshotGeneration = readSnapshot();
+        List<Long> generations = logGenerations();
+        long lastGeneration = snapshotGeneration;
+        for (long logGeneration : generations) {
+            if (logGeneration < snapshotGeneration) {
+                // already covered by the snapshot, left behind by a crash during compaction
+                Files.deleteIfExists(logPath(logGeneration));
+                continue;
+            }
+            // only the log which was being written when the node stopped can end in a torn write
+            replayLog(logPath(logGeneration), logGeneration == generations.get(generations.size() - 1));
+            lastGeneration = logGeneration;
+        }
+
+        generation = lastGeneration;
+        log = FileChannel.open(logPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        syncDirectory();
+        logBytes = log.size();
+        log.position(logBytes);
+        logger.info("Loaded metadata for "+entries.size()+" files from "+directory+" in "+
+                (System.currentTimeMillis() - start)+" ms");
+    }
+
+    public MetadataEntry get(String userChecksum) {
+        return entries.get(userChecksum);
+    }
+
+    public Collection<MetadataEntry> values() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** Record the entry, returning once it has been forced to disk */
+    public void put(MetadataEntry entry) throws IOException {
+        ByteBuffer record = encodeRecord(entry);
+        long seq;
+        boolean compact;
+        synchronized (writeLock) {
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            logBytes += record.limit();
+            seq = ++writtenSeq;
+            entries.put(entry.userChecksum, entry);
+            compact = logBytes > COMPACT_LOG_BYTES;
+        }
+        sync(seq);
+        if (compact) {
+            compactInBackground();
+        }
+    }
+
+    /** Force the log up to at least the given write; a single force covers every write before it */
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) {
+                return;
+            }
+            FileChannel channel;
+            long target;
+            synchronized (writeLock) {
+                channel = log;
+                target = writtenSeq;
+            }
+            channel.force(false);
+            syncedSeq = target;
+        }
+    }
+
+    private void compactInBackground() {
+        if (compacting.compareAndSet(false, true)) {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        logger.error("Failed to compact metadata log", e);
+                    } finally {
+                        compacting.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Start a new log generation, write every entry to a snapshot, then delete the older logs.
+     *  Entries updated while the snapshot is written are also in the new log, and replaying
+     *  the log after the snapshot leaves the newest value in place. */
+    public void compact() throws IOException {
+        long snapshotGeneration;
+        synchronized (syncLock) {
+            synchronized (writeLock) {
+                log.force(false);
+                syncedSeq = writtenSeq;
+                log.close();
+                generation++;
+                log = FileChannel.open(logPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                logBytes = 0;
+                snapshotGeneration = generation;
+                // forcing the log does not persist its directory entry, which has to be
+                // in place before any write to the new log is acknowledged
+                syncDirectory();
+            }
+        }
+
+        Path tempPath = directory.resolve(SNAPSHOT_FILE+TEMP_SUFFIX);
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), BUFFER_SIZE));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshotGeneration);
+            for (MetadataEntry entry : entries.values()) {
+                ByteBuffer record = encodeRecord(entry);
+                out.write(record.array(), 0, record.limit());
+                count++;
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tempPath, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE);
+        // the rename has to be durable before the logs it replaces are deleted
+        syncDirectory();
+
+        for (long logGeneration : logGenerations()) {
+            if (logGeneration < snapshotGeneration) {
+                Files.deleteIfExists(logPath(logGeneration));
+            }
+        }
+        logger.info("Compacted metadata of "+count+" files into snapshot generation "+snapshotGeneration);
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        synchronized (writeLock) {
+            log.force(false);
+            log.close();
+        }
+    }
+
+    /** Load the snapshot if there is one, returning the first log generation it does not cover */
+    private long readSnapshot() throws IOException {
+        Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        Files.deleteIfExists(directory.resolve(SNAPSHOT_FILE+TEMP_SUFFIX));
+        if (!Files.exists(snapshotPath)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(snapshotPath), BUFFER_SIZE))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a metadata snapshot: "+snapshotPath);
+            }
+            long snapshotGeneration = in.readLong();
+            // the snapshot was forced before it was moved into place, so it is never torn
+            if (readRecords(in) < Files.size(snapshotPath) - 12) {
+                throw new IOException("Metadata snapshot "+snapshotPath+" is corrupt");
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    /** Apply the records in the log, and cut off a torn write at the end of the newest log.
+     *  A bad record anywhere else, or one followed by valid records, is not a torn write
+     *  but corruption of acknowledged metadata, and opening the store fails. */
+    private void replayLog(Path logPath, boolean newest) throws IOException {
+        long validBytes;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(logPath), BUFFER_SIZE)) {
+            validBytes = readRecords(new DataInputStream(in));
+        }
+        long size = Files.size(logPath);
+        if (validBytes < size) {
+            if (!newest || containsRecord(logPath, validBytes + 1)) {
+                throw new IOException("Metadata log "+logPath+" is corrupt at offset "+validBytes+
+                        " of "+size+" and has to be repaired or removed by hand");
+            }
+            logger.info("Discarding "+(size - validBytes)+" bytes of unacknowledged metadata at the end of "+logPath);
+            try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+                channel.truncate(validBytes);
+                channel.force(true);
+            }
+        }
+    }
+
+    /** Whether a valid record starts anywhere in the log at or after the offset */
+    private static boolean containsRecord(Path logPath, long offset) throws IOException {
+        ByteBuffer tail;
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            tail = ByteBuffer.allocate((int) Math.max(0, channel.size() - offset));
+            while (tail.hasRemaining() && channel.read(tail, offset + tail.position()) >= 0) {
+            }
+        }
+        byte[] bytes = tail.array();
+        CRC32 crc = new CRC32();
+        for (int start = 0; start + 9 <= tail.position(); start++) {
+            int length = tail.getInt(start);
+            if (length <= 0 || length > BUFFER_SIZE || start + 8 + length > tail.position() ||
+                    bytes[start + 8] != OP_PUT) {
+                continue;
+            }
+            crc.reset();
+            crc.update(bytes, start + 8, length);
+            if ((int) crc.getValue() == tail.getInt(start + 4)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Make renames and newly created files in the directory durable */
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /** Apply records until the end of the stream or the first incomplete or corrupt one,
+     *  returning the number of bytes of valid records */
+    private long readRecords(DataInputStream in) throws IOException {
+        long validBytes = 0;
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[256];
+        while (true) {
+            int length;
+            int checksum;
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+                if (length <= 0 || length > BUFFER_SIZE) {
+                    return validBytes;
+                }
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                in.readFully(payload, 0, length);
+            } catch (EOFException e) {
+                return validBytes;
+            }
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                return validBytes;
+            }
+            applyRecord(payload, length);
+            validBytes += 8 + length;
+        }
+    }
+
+    private void applyRecord(byte[] payload, int length) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(payload, 0, length);
+        byte op = in.get();
+        if (op != OP_PUT) {
+            throw new IOException("Unknown metadata record type "+op);
+        }
+        MetadataEntry entry = new MetadataEntry(readString(in), readString(in));
+        entry.manifestSha256 = readString(in);
+        String fileName = readString(in);
+        String fileType = readString(in);
+        entry.setFileDetail(fileName, parseMediaType(fileType));
+        entries.put(entry.userChecksum, entry);
+    }
+
+    /** Parsing media types is comparatively slow, and uploads share only a handful of them */
+    private MediaType parseMediaType(String fileType) {
+        if (fileType == null) {
+            return null;
+        }
+        MediaType mediaType = mediaTypes.get(fileType);
+        if (mediaType == null) {
+            mediaType = MediaType.valueOf(fileType);
+            mediaTypes.put(fileType, mediaType);
+        }
+        return mediaType;
+    }
+
+    private static ByteBuffer encodeRecord(MetadataEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // placeholder for length
+        out.writeInt(0); // placeholder for crc32
+        out.writeByte(OP_PUT);
+        writeString(out, entry.userChecksum);
+        writeString(out, entry.sha256);
+        writeString(out, entry.manifestSha256);
+        writeString(out, entry.fileName);
+        writeString(out, (entry.fileType == null) ? null : entry.fileType.toString());
+        out.flush();
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        int length = record.limit() - 8;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private Path logPath(long logGeneration) {
+        return directory.resolve(LOG_PREFIX+logGeneration);
+    }
+
+    /** Generations of the logs in the directory, in ascending order */
+    private List<Long> logGenerations() throws IOException {
+        List<Long> generations = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOG_PREFIX+"*")) {
+            for (Path file : files) {
+                try {
+                    generations.add(Long.parseLong(file.getFileName().toString().substring(LOG_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.info("Ignoring unexpected file "+file);
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+}
@@ -2,6 +2,9 @@ package edu.stanford.cs244b;
 
 import java.net.UnknownHostException;
 import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+
+import javax.servlet.DispatcherType;
 
 import com.bazaarvoice.dropwizard.assets.ConfiguredAssetsBundle;
 
@@ -14,6 +17,8 @@ import io.dropwizard.server.SimpleServerFactory;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import io.federecio.dropwizard.swagger.SwaggerDropwizard;
+import edu.stanford.cs244b.trace.TraceFilter;
+import edu.stanford.cs244b.trace.TraceServlet;
 
 /** Main server class - the entry-point into our system
  *  Define configuration and any initialization steps here. */
@@ -44,10 +49,16 @@ public class Server extends Application<ChordConfiguration> {
         SimpleServerFactory serverFactory = (SimpleServerFactory) configuration.getServerFactory();
         HttpConnectorFactory serverConfig = ((HttpConnectorFactory) serverFactory.getConnector());
         
-        final Shard shard = new Shard(configuration.getChord(), serverConfig);
+        final Shard shard = new Shard(configuration.getChord(), serverConfig, environment.metrics());
         // register the shard endpoint
         environment.jersey().register(shard);
         
+        // trace a sample of api requests, and show recent traces at /admin/traces
+        environment.servlets().addFilter("trace", new TraceFilter(shard.getTracer()))
+                .addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), true, "/api/*");
+        environment.admin().addServlet("traces", new TraceServlet(shard.getTracer(), environment.getObjectMapper()))
+                .addMapping("/traces");
+        
         // TODO: automatically discover shards from other servers?
         
         // add api documentation ui
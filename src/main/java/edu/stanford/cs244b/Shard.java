@@ -3,8 +3,10 @@ package edu.stanford.cs244b;
 import io.dropwizard.jetty.HttpConnectorFactory;
 
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
@@ -17,10 +19,12 @@ import javax.ws.rs.core.Response.ResponseBuilder;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.apache.commons.io.output.NullOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.codahale.metrics.annotation.Timed;
 import com.sun.jersey.api.Responses;
 import com.sun.jersey.core.header.ContentDisposition;
@@ -30,30 +34,60 @@ import com.wordnik.swagger.annotations.Api;
 import com.wordnik.swagger.annotations.ApiOperation;
 
 import edu.stanford.cs244b.ChordConfiguration.Chord;
+import edu.stanford.cs244b.chunk.ChunkManifest;
+import edu.stanford.cs244b.chunk.ChunkedObjectOutput;
+import edu.stanford.cs244b.chunk.Chunker;
+import edu.stanford.cs244b.crypto.CryptoContext;
+import edu.stanford.cs244b.crypto.DualDigestOutputStream;
 import edu.stanford.cs244b.crypto.HMACInputStream;
+import edu.stanford.cs244b.storage.BlobRef;
+import edu.stanford.cs244b.storage.BlobStore;
+import edu.stanford.cs244b.storage.FileBlobStore;
+import edu.stanford.cs244b.storage.MerkleBlobStore;
+import edu.stanford.cs244b.storage.ObjectDirectory;
+import edu.stanford.cs244b.storage.PackBlobStore;
+import edu.stanford.cs244b.storage.TieredBlobStore;
+import edu.stanford.cs244b.storage.VerifiedReadCache;
 import edu.stanford.cs244b.chord.ChordNode;
+import edu.stanford.cs244b.chord.ChordTransport;
+import edu.stanford.cs244b.chord.RmiTransport;
+import edu.stanford.cs244b.chord.nio.NioTransport;
 import edu.stanford.cs244b.chord.Finger;
+import edu.stanford.cs244b.trace.Span;
+import edu.stanford.cs244b.trace.Tracer;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
 import java.security.DigestInputStream;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.security.Security;
 import java.security.SignatureException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicLong;
 
 /** A Shard represents a node in the Chord ring 
@@ -85,16 +119,76 @@ public class Shard {
     private final String TEMP_DIR;
     private final String DATA_DIR;
     private final String REPLICA_DIR;
+    private final String CHUNK_DIR;
+    private final String QUEUE_DIR;
+    private final String METADATA_DIR;
+    
+    private final String PACK_DIR;
+    
+    /** Objects uploaded to this node, replicas of other nodes' objects, and chunks */
+    private final BlobStore dataStore;
+    private final MerkleBlobStore replicaStore;
+    private final BlobStore chunkStore;
+    /** Erasure-coded fragments of other nodes' objects */
+    private final String FRAGMENT_DIR;
+    private final BlobStore fragmentStore;
+    
+    /** Uploads of at least this size are erasure-coded when erasure coding is enabled */
+    private final long erasureMinBytes;
+    
+    /** Objects whose checksum was already verified, null if caching is disabled */
+    private final VerifiedReadCache verifiedCache;
+    
+    /** Time spent computing checksums to verify objects which are read */
+    private final Timer verifyTimer;
+    
+    /** Spans of the sampled requests which reached this shard */
+    private final Tracer tracer;
+    
+    /** Objects up to this size are appended to pack files instead of getting a file each */
+    private final int packThreshold;
+    
+    /** Suffix of the manifest which DATA_DIR holds in place of a chunked file */
+    final static String MANIFEST_SUFFIX = ".manifest";
+    /** sha256 of the manifest, kept next to it so that it can be verified without metadata */
+    final static String MANIFEST_SHA256_SUFFIX = ".manifest-sha256";
+    
+    /** Average chunk size for chunked uploads, 0 if chunking is disabled */
+    private final int chunkSize;
+    
+    /** Number of chunks fetched ahead of the one being sent to the client */
+    final static int CHUNK_FETCH_WINDOW = 8;
+    
+    private final ExecutorService chunkFetchExecutor = Executors.newFixedThreadPool(CHUNK_FETCH_WINDOW);
+    
+    /** Computes the HMAC of large uploads alongside their SHA-256 */
+    private final ExecutorService digestExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "upload-digest");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /** Size of the buffer used to stream uploads to disk */
+    final static int BUFFER_SIZE = 64 * 1024;
+    
+    /** HTTP status codes which are missing from JAX-RS 1.1 Response.Status */
+    final static int PARTIAL_CONTENT = 206;
+    final static int REQUESTED_RANGE_NOT_SATISFIABLE = 416;
     
     public IdentifierAlgorithm identifierAlgo;
     SecretKeySpec secretKey;
     
     // https://stackoverflow.com/questions/5318132/is-it-possible-to-control-the-filename-for-a-response-from-a-jersey-rest-service
-    public class MetadataEntry {
+    public static class MetadataEntry {
         public String fileName;
         protected MediaType fileType;
         public String userChecksum;
         public String sha256;
+        /** sha256 of the chunk manifest if the file was split into chunks, otherwise null */
+        public String manifestSha256;
         
         public MetadataEntry(String userChecksum, String sha256) {
             this.userChecksum = userChecksum;
@@ -111,10 +205,10 @@ public class Shard {
         }
     }
     
-    /** map from user hash to file information */
-    private ConcurrentHashMap<String, MetadataEntry> fileMetadata = new ConcurrentHashMap<String, MetadataEntry>();
+    /** map from user hash to file information, persisted so that it survives restarts */
+    private final MetadataStore fileMetadata;
 
-    public Shard(Chord chordConfig, HttpConnectorFactory serverConfig) throws UnknownHostException, NoSuchAlgorithmException {
+    public Shard(Chord chordConfig, HttpConnectorFactory serverConfig, MetricRegistry metrics) throws UnknownHostException, NoSuchAlgorithmException {
         // get my IP address and port
         InetAddress myIP = chordConfig.getMyIP();
         int myPort = serverConfig.getPort();
@@ -128,11 +222,33 @@ public class Shard {
         TEMP_DIR = "temp-"+hexShardId+"-"+myPort;
         DATA_DIR = "data-"+hexShardId+"-"+myPort;
         REPLICA_DIR = "replica-"+hexShardId+"-"+myPort;
+        CHUNK_DIR = "chunk-"+hexShardId+"-"+myPort;
+        QUEUE_DIR = "queue-"+hexShardId+"-"+myPort;
+        METADATA_DIR = "metadata-"+hexShardId+"-"+myPort;
+        PACK_DIR = "pack-"+hexShardId+"-"+myPort;
+        FRAGMENT_DIR = "fragment-"+hexShardId+"-"+myPort;
         KEY_FILE = "key-"+hexShardId+"-"+myPort+".txt";
         
         (new File(TEMP_DIR)).mkdir();
-        (new File(DATA_DIR)).mkdir();
-        (new File(REPLICA_DIR)).mkdir();
+        packThreshold = chordConfig.getPackThreshold();
+        try {
+            dataStore = openBlobStore("data", DATA_DIR);
+            replicaStore = new MerkleBlobStore(openBlobStore("replica", REPLICA_DIR));
+            chunkStore = openBlobStore("chunk", CHUNK_DIR);
+            fragmentStore = openBlobStore("fragment", FRAGMENT_DIR);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open object stores", e);
+        }
+        
+        erasureMinBytes = chordConfig.getErasureMinBytes();
+        verifiedCache = (chordConfig.getVerifiedCacheBytes() > 0) ?
+                new VerifiedReadCache(chordConfig.getVerifiedCacheBytes(), metrics) : null;
+        verifyTimer = metrics.timer(MetricRegistry.name(Shard.class, "verify-checksum"));
+        tracer = new Tracer(hexShardId, chordConfig.getTraceSampleRate(), chordConfig.getTraceBufferSpans());
+        chunkSize = chordConfig.getChunkSize();
+        if (chunkSize > 0) {
+            logger.info("Splitting large uploads into chunks of about "+chunkSize+" bytes");
+        }
         
         // determine algorithm used to generate identifiers for objects added to chord ring
         String identifierAlgoName = chordConfig.getIdentifier().toLowerCase();
@@ -142,40 +258,76 @@ public class Shard {
             identifierAlgo = IdentifierAlgorithm.SHA256;
         } else {
             identifierAlgo = IdentifierAlgorithm.HMAC_SHA256; // default
-            Security.addProvider(new BouncyCastleProvider());
         }
-        logger.info("Using "+identifierAlgo+" to generate identifiers for objects added to chord ring");
+        CryptoContext.setProvider(chordConfig.getCryptoProvider().equalsIgnoreCase("bouncycastle") ?
+                CryptoContext.Provider.BOUNCYCASTLE : CryptoContext.Provider.JDK);
+        logger.info("Using "+identifierAlgo+" to generate identifiers for objects added to chord ring, computed by the "+
+                CryptoContext.getProvider()+" provider");
         
         // load key from filesystem if it exists
         secretKey = readOrCreateSecretKey();
         
+        try {
+            fileMetadata = new MetadataStore(Paths.get(METADATA_DIR));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open metadata store in "+METADATA_DIR, e);
+        }
+        
         // get IP address of node in chord ring where we begin the join process
         InetAddress hostToJoin = chordConfig.getEntryHost();
         int portToJoin = chordConfig.getEntryPort();
         
         try {
-            // wait 20 seconds so we can attach debugger
-            logger.info("Attach debugger now");
-            Thread.sleep(20000l);
+            // wait so we can attach debugger
+            if (chordConfig.getStartupDelaySeconds() > 0) {
+                logger.info("Attach debugger now");
+                Thread.sleep(chordConfig.getStartupDelaySeconds() * 1000l);
+            }
             
             // initialize Chord node and join ring
-            // note that RMI port is 1 higher than webserver port.
-            node = new ChordNode(myIP, myPort+1, this);
+            // note that RMI/RPC port is 1 higher than webserver port.
+            ChordTransport transport;
+            if (chordConfig.getTransport().equalsIgnoreCase("rmi")) {
+                transport = new RmiTransport();
+            } else {
+                transport = new NioTransport(chordConfig.getConnectionsPerPeer(), tracer);
+            }
+            logger.info("Using "+transport.getClass().getSimpleName()+" to communicate with other Chord nodes");
+            node = new ChordNode(myIP, myPort+1, this, transport, metrics);
+            node.setWriteQuorum(chordConfig.getWriteQuorum());
+            node.setStabilizeMillis(chordConfig.getStabilizeMillis(), chordConfig.getMaxStabilizeMillis());
+            node.setFastJoin(chordConfig.isFastJoin());
+            if (chordConfig.getErasureDataShards() > 0) {
+                logger.info("Storing uploads of at least "+erasureMinBytes+" bytes as "+chordConfig.getErasureDataShards()+
+                        "+"+chordConfig.getErasureParityShards()+" erasure-coded fragments");
+                node.enableErasureCoding(chordConfig.getErasureDataShards(), chordConfig.getErasureParityShards());
+            }
+            node.enableRangeTransfer(replicaStore, chordConfig.getHandoffBytesPerSecond());
+            if (chordConfig.getRepairIntervalSeconds() > 0) {
+                node.enableAntiEntropy(replicaStore, chordConfig.getRepairIntervalSeconds(), chordConfig.getRepairBytesPerSecond());
+            }
+            if (chordConfig.isAsyncReplication()) {
+                logger.info("Replicating uploads in the background, journal in "+QUEUE_DIR);
+                node.enableAsyncReplication(Paths.get(QUEUE_DIR), dataStore, replicaStore, chunkStore);
+            }
             
             Finger locationToJoin = new Finger(hostToJoin, portToJoin+1);
-            if ((hostToJoin.isLoopbackAddress() || hostToJoin.equals(myIP)) && portToJoin==myPort) {
-                node.join(locationToJoin, true);
-            } else {
-                node.join(locationToJoin, false);
+            boolean isFirstNode = (hostToJoin.isLoopbackAddress() || hostToJoin.equals(myIP)) && portToJoin==myPort;
+            if (!node.join(locationToJoin, isFirstNode)) {
+                throw new IllegalStateException("Failed to join Chord ring at "+locationToJoin);
             }
         } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
+            throw new IllegalStateException("Failed to start Chord node", e);
         }
         
         this.counter = new AtomicLong();
     }
     
+    /** Spans of traced requests recorded by this shard */
+    public Tracer getTracer() {
+        return tracer;
+    }
+    
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/meta")
@@ -214,15 +366,16 @@ public class Shard {
     @ApiOperation("Insert a new item into the distributed hash table")
     public Map<String,Object> insertItem(@FormDataParam("file") final InputStream uploadInputStream,
             @FormDataParam("file") final FormDataBodyPart fileBody) throws NoSuchAlgorithmException, IOException, InvalidKeyException, NoSuchProviderException {
-        final MetadataEntry meta = saveFile(uploadInputStream, identifierAlgo);
+        final MetadataEntry meta = (chunkSize > 0) ?
+                saveChunkedFile(uploadInputStream) : saveFile(uploadInputStream, identifierAlgo);
         meta.setFileDetail(fileBody.getFormDataContentDisposition().getFileName(), fileBody.getMediaType());
-        fileMetadata.put(meta.userChecksum, meta);
+        fileMetadata.put(meta);
         return new HashMap<String,Object>() {{
             put("shard", shardIdAsHex());
             put("id", meta.userChecksum);
             put("sha256", meta.sha256);
             put("filename", meta.fileName);
-            put("filetype", meta.fileType.toString());
+            put("filetype", String.valueOf(meta.fileType));
         }};
     }
     
@@ -234,59 +387,173 @@ public class Shard {
     public MetadataEntry saveFile(InputStream uploadInputStream, IdentifierAlgorithm algo)
             throws NoSuchAlgorithmException, IOException, InvalidKeyException, NoSuchProviderException {
         // assume SHA256, SHA256_NOVERIFY, or SHA256_REPLICATE
-        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-        InputStream wrappedInputStream = new DigestInputStream(uploadInputStream, sha256);
+        MessageDigest sha256 = CryptoContext.sha256();
+        Mac hmac = algo.equals(IdentifierAlgorithm.HMAC_SHA256) ? CryptoContext.hmacSha256(secretKey) : null;
         
-        byte[] serializedFile;
-        HMACInputStream hmacInputStream = null;
-        // convert to byte[] to consume inputStream and perform hash computation
-        if (algo.equals(IdentifierAlgorithm.HMAC_SHA256)) {
-            hmacInputStream = new HMACInputStream(wrappedInputStream, secretKey);
-            serializedFile = IOUtils.toByteArray(hmacInputStream);
-            hmacInputStream.close();
-        } else {
-            serializedFile = IOUtils.toByteArray(wrappedInputStream);
+        // uploads which fit within packThreshold are kept in memory and appended to a pack;
+        // anything larger is streamed straight into a temp file through a fixed-size buffer,
+        // so that the hash computation completes without ever holding the whole file in memory.
+        // Both digests are computed in the same pass which writes the file.
+        // Either way the object is forced to disk before it is acknowledged, so that an upload
+        // survives a crash even though its replicas may not have been written yet
+        byte[] smallObject = null;
+        java.nio.file.Path tempPath = null;
+        long objectLength;
+        DualDigestOutputStream digests;
+        try {
+            byte[] head = new byte[packThreshold + 1];
+            int headLength = IOUtils.read(uploadInputStream, head);
+            objectLength = headLength;
+            if (headLength <= packThreshold) {
+                smallObject = Arrays.copyOf(head, headLength);
+                digests = new DualDigestOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, sha256, hmac, null, 0);
+                digests.write(smallObject);
+            } else {
+                tempPath = Paths.get(TEMP_DIR, UUID.randomUUID().toString());
+                try (FileOutputStream tempOutputStream = new FileOutputStream(tempPath.toFile())) {
+                    // with a single core, computing the MAC on another thread would only add handoffs
+                    digests = new DualDigestOutputStream(tempOutputStream, sha256, hmac,
+                            (Runtime.getRuntime().availableProcessors() > 1) ? digestExecutor : null);
+                    digests.write(head, 0, headLength);
+                    objectLength += IOUtils.copyLarge(uploadInputStream, digests, new byte[BUFFER_SIZE]);
+                    digests.flush();
+                    tempOutputStream.getChannel().force(true);
+                } catch (IOException e) {
+                    Files.deleteIfExists(tempPath);
+                    throw e;
+                }
+            }
+        } finally {
+            uploadInputStream.close();
         }
-        wrappedInputStream.close();
         
         // always compute SHA-256 hash
-        byte[] sha256Digest = sha256.digest();
+        byte[] sha256Digest = digests.getSha256Digest();
         String sha256Hash = Hex.encodeHexString(sha256Digest);
         
         // checksum computed via user-specified algorithm
         String userChecksum = sha256Hash;
         if (algo.equals(IdentifierAlgorithm.HMAC_SHA256)){
-            byte[] hmacDigest = hmacInputStream.getDigest();
+            byte[] hmacDigest = digests.getMacDigest();
             userChecksum = Hex.encodeHexString(hmacDigest);
         }
         // TODO: return hmacDigest to uploader user? or register somewhere in the shard...
         
-        // write to file
-        java.nio.file.Path tempPath = Paths.get(TEMP_DIR, UUID.randomUUID().toString());
-        Files.write(tempPath, serializedFile);
-        
         // TODO: verify that hash is correct on read to account for disk failure?
 
         if (algo.equals(IdentifierAlgorithm.SHA256_REPLICATE)) {
             // remote node is asking us to replicate this file for them in REPLICA_DIR
             logger.info("Saving replica to disk with sha256Hash="+sha256Hash);
-            java.nio.file.Path outputPath = Paths.get(REPLICA_DIR, sha256Hash);
-            Files.move(tempPath, outputPath, StandardCopyOption.ATOMIC_MOVE);
+            storeObject(replicaStore, sha256Hash, smallObject, tempPath);
 
         } else {
             // this is uploader user's node, save file to disk in DATA directory
             logger.info("Saving new file to disk with userChecksum "+algo+"="+userChecksum);
-            java.nio.file.Path outputPath = Paths.get(DATA_DIR, userChecksum);
-            Files.move(tempPath, outputPath, StandardCopyOption.ATOMIC_MOVE);
+            storeObject(dataStore, userChecksum, smallObject, tempPath);
             
-            // Start replication process
+            // Start replication process, large objects are erasure-coded if enabled
             int identifier = Util.hexStringToIdentifier(sha256Hash);
-            node.beginReplicatingFile(identifier, serializedFile);
+            if (node.isErasureCoding() && objectLength >= erasureMinBytes) {
+                node.beginErasureCoding(identifier, dataStore, userChecksum, sha256Hash);
+            } else {
+                node.beginReplicatingFile(identifier, dataStore, userChecksum, sha256Hash);
+            }
         }
         
         return new MetadataEntry(userChecksum, sha256Hash);
     }
     
+    /** Save uploaded inputStream as content-defined chunks, each of which is placed on
+     *  the Chord node that owns its own sha256 identifier. DATA_DIR only receives a small
+     *  manifest listing the chunks. Uploads which fit in a single chunk are saved as
+     *  ordinary files.
+     * @throws NoSuchAlgorithmException 
+     * @throws IOException 
+     * @throws InvalidKeyException 
+     * @throws NoSuchProviderException */
+    public MetadataEntry saveChunkedFile(InputStream uploadInputStream)
+            throws NoSuchAlgorithmException, IOException, InvalidKeyException, NoSuchProviderException {
+        MessageDigest sha256 = CryptoContext.sha256();
+        InputStream wrappedInputStream = new DigestInputStream(uploadInputStream, sha256);
+        
+        HMACInputStream hmacInputStream = null;
+        if (identifierAlgo.equals(IdentifierAlgorithm.HMAC_SHA256)) {
+            hmacInputStream = new HMACInputStream(wrappedInputStream, secretKey);
+            wrappedInputStream = hmacInputStream;
+        }
+        
+        ChunkManifest manifest = new ChunkManifest();
+        try {
+            Chunker chunker = new Chunker(wrappedInputStream, chunkSize);
+            byte[] smallObject = chunker.readSmallObject();
+            if (smallObject != null) {
+                return saveFile(new ByteArrayInputStream(smallObject), identifierAlgo);
+            }
+            
+            byte[] chunk;
+            while ((chunk = chunker.nextChunk()) != null) {
+                String chunkSha256 = Hex.encodeHexString(CryptoContext.sha256(chunk));
+                manifest.addChunk(chunkSha256, chunk.length);
+                saveChunk(chunkSha256, chunk);
+            }
+        } finally {
+            wrappedInputStream.close();
+        }
+        
+        String sha256Hash = Hex.encodeHexString(sha256.digest());
+        String userChecksum = sha256Hash;
+        if (identifierAlgo.equals(IdentifierAlgorithm.HMAC_SHA256)){
+            userChecksum = Hex.encodeHexString(hmacInputStream.getDigest());
+        }
+        manifest.setSha256(sha256Hash);
+        
+        // save manifest in place of the file, and replicate it like any other object
+        byte[] manifestBytes = manifest.toByteArray();
+        String manifestSha256 = Hex.encodeHexString(CryptoContext.sha256(manifestBytes));
+        logger.info("Saving manifest of "+manifest.getChunks().size()+" chunks with userChecksum "+identifierAlgo+"="+userChecksum);
+        String manifestName = userChecksum+MANIFEST_SUFFIX;
+        dataStore.put(manifestName, manifestBytes);
+        dataStore.put(userChecksum+MANIFEST_SHA256_SUFFIX, manifestSha256.getBytes(StandardCharsets.UTF_8));
+        node.beginReplicatingFile(Util.hexStringToIdentifier(manifestSha256), dataStore, manifestName, manifestSha256);
+        
+        MetadataEntry meta = new MetadataEntry(userChecksum, sha256Hash);
+        meta.manifestSha256 = manifestSha256;
+        return meta;
+    }
+    
+    /** Keep a copy of the chunk in CHUNK_DIR until it has been replicated to the chunk's owner,
+     *  which then serves it, so that downloads fetch chunks from many nodes instead of all of
+     *  them from the uploader. Chunks are content-addressed, so a chunk which is still present
+     *  is already being replicated for an earlier upload. */
+    private void saveChunk(String chunkSha256, byte[] chunk) throws IOException {
+        if (chunkStore.contains(chunkSha256)) {
+            logger.debug("Skipping duplicate chunk "+chunkSha256);
+            return;
+        }
+        chunkStore.put(chunkSha256, chunk);
+        node.beginReplicatingChunk(Util.hexStringToIdentifier(chunkSha256), chunkStore, chunkSha256);
+    }
+    
+    /** Store an object which was either buffered in memory or written to a temp file */
+    private static void storeObject(BlobStore store, String name, byte[] smallObject, java.nio.file.Path tempPath) throws IOException {
+        if (smallObject != null) {
+            store.put(name, smallObject);
+        } else {
+            store.putFile(name, tempPath);
+        }
+    }
+    
+    /** Objects are kept one per file in a fan-out directory, and small objects are
+     *  packed into segment files unless packThreshold is 0 */
+    private BlobStore openBlobStore(String name, String directory) throws IOException {
+        FileBlobStore files = new FileBlobStore(name, new ObjectDirectory(Paths.get(directory)), Paths.get(TEMP_DIR));
+        if (packThreshold <= 0) {
+            return files;
+        }
+        PackBlobStore packs = new PackBlobStore(name, Paths.get(PACK_DIR, name));
+        return new TieredBlobStore(packs, files, packThreshold);
+    }
+    
     /** Update an existing item in the distributed hash table */
     //@PUT 
 
@@ -300,7 +567,7 @@ public class Shard {
     @Timed
     @Path("/{itemId}")
     @ApiOperation("Retrieve an item from this shard, or return 404 Not Found if it does not exist")
-    public Response getItem(@PathParam("itemId") String idString) throws DecoderException, IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException {
+    public Response getItem(@PathParam("itemId") String idString, @HeaderParam("Range") String range) throws DecoderException, IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException {
         Map<String, Object> results = recordRequest();
         
         MetadataEntry meta = fileMetadata.get(idString);
@@ -308,14 +575,13 @@ public class Shard {
                 fileName((meta != null) ? meta.fileName : idString).build();
         
         // first attempt to get the original from uploader node's DATA_DIR
-        java.nio.file.Path filePath = Paths.get(DATA_DIR, idString);
-        if (Files.exists(filePath)) {
+        BlobRef localObject = dataStore.get(idString);
+        if (localObject != null) {
         	logger.info("File exists, fetching from local server");
-            InputStream downloadInputStream = Files.newInputStream(filePath);
-            
             try {
-                byte[] bytes = verifyFile(downloadInputStream, idString);
-                ResponseBuilder rb = Response.ok().entity(bytes).header("Content-Disposition", contentDisposition);
+                // verify with a streaming pass, then send the file straight from disk
+                verifyFile(localObject, idString);
+                ResponseBuilder rb = streamFile(localObject, range).header("Content-Disposition", contentDisposition);
                 if (meta != null) {
                     rb.type(meta.fileType);
                 }
@@ -325,12 +591,21 @@ public class Shard {
             }
             
         }
+        if ((meta != null && meta.manifestSha256 != null) || dataStore.contains(idString+MANIFEST_SUFFIX)) {
+            return getChunkedItem(idString, meta, range, contentDisposition, results);
+        }
+        
+        // replicas are stored by sha256, which is only known from the metadata
+        if (meta == null) {
+            logger.info("No metadata for "+idString+", cannot forward request");
+            return Responses.notFound().build();
+        }
+        
         // ask for replicas to retrieve from REPLICA_DIR
         logger.info("File doesn't exist or is corrupted, forwarding request");
         try {
-            MetadataEntry metadata = fileMetadata.get(idString);
-            int sha256 = Util.hexStringToIdentifier(metadata.sha256); 
-            byte[] verifiedOutput = node.forwardLookup(sha256, metadata.sha256, metadata.userChecksum);
+            int sha256 = Util.hexStringToIdentifier(meta.sha256); 
+            byte[] verifiedOutput = forwardLookup(sha256, meta.sha256, meta.userChecksum, identifierAlgo);
             ResponseBuilder rb = Response.ok().entity(verifiedOutput).header("Content-Disposition", contentDisposition);
             if (meta != null) {
                 rb.type(meta.fileType);
@@ -346,11 +621,253 @@ public class Shard {
         }
     }
     
+    /** Send a chunked file, or the single byte range requested in the Range header, to the
+     *  client, fetching its chunks in parallel. The manifest is checked against the sha256
+     *  recorded at upload time and every chunk against its sha256 in the manifest before any
+     *  of it is sent, so the whole file never has to be read to check its checksum. A chunk
+     *  which cannot be fetched from any replica still aborts the response part way. */
+    private Response getChunkedItem(String idString, MetadataEntry meta, String range,
+            ContentDisposition contentDisposition, Map<String, Object> results) throws IOException {
+        ChunkManifest manifest;
+        try {
+            manifest = readManifest(meta, idString);
+        } catch (SignatureException e) {
+            results.put("error", e.toString());
+            return Response.status(Response.Status.GONE).
+                type(MediaType.APPLICATION_JSON_TYPE).
+                entity(results).build();
+        } catch (IOException e) {
+            logger.info("Cannot retrieve manifest of chunked file "+idString, e);
+            return Responses.notFound().build();
+        }
+        
+        ChunkedObjectOutput.ChunkSource source = new ChunkedObjectOutput.ChunkSource() {
+            @Override
+            public byte[] readChunk(ChunkManifest.Chunk chunk) throws IOException {
+                return Shard.this.readChunk(chunk);
+            }
+        };
+        long fileSize = manifest.getTotalLength();
+        long[] region = FileStreamingOutput.parseRange(range, fileSize);
+        ResponseBuilder rb;
+        if (region == null) {
+            rb = Response.ok(new ChunkedObjectOutput(manifest, source, chunkFetchExecutor, CHUNK_FETCH_WINDOW)).
+                    header("Accept-Ranges", "bytes").
+                    header("Content-Length", fileSize);
+        } else if (region[0] < 0) {
+            return Response.status(REQUESTED_RANGE_NOT_SATISFIABLE).
+                    header("Content-Range", "bytes */"+fileSize).build();
+        } else {
+            long offset = region[0];
+            long length = region[1];
+            rb = Response.status(PARTIAL_CONTENT).
+                    entity(new ChunkedObjectOutput(manifest, offset, length, source, chunkFetchExecutor, CHUNK_FETCH_WINDOW)).
+                    header("Accept-Ranges", "bytes").
+                    header("Content-Range", "bytes "+offset+"-"+(offset+length-1)+"/"+fileSize).
+                    header("Content-Length", length);
+        }
+        rb.header("Content-Disposition", contentDisposition);
+        if (meta != null) {
+            rb.type(meta.fileType);
+        }
+        return rb.build();
+    }
+    
+    /** Read the manifest of a chunked file from DATA_DIR, or from its replicas if it is missing
+     *  or corrupted. The manifest must match the sha256 recorded at upload time, either in the
+     *  metadata or next to the manifest, and a manifest which cannot be verified is refused. */
+    private ChunkManifest readManifest(MetadataEntry meta, String idString) throws IOException, SignatureException {
+        String manifestName = idString+MANIFEST_SUFFIX;
+        String expectedSha256 = (meta != null) ? meta.manifestSha256 : null;
+        if (expectedSha256 == null) {
+            BlobRef checksumRef = dataStore.get(idString+MANIFEST_SHA256_SUFFIX);
+            if (checksumRef != null) {
+                expectedSha256 = new String(checksumRef.readAll(), StandardCharsets.UTF_8).trim();
+            }
+        }
+        if (expectedSha256 == null) {
+            throw new SignatureException("Manifest "+manifestName+" has no recorded sha256 to verify it against");
+        }
+        
+        ChunkManifest manifest = null;
+        BlobRef manifestRef = dataStore.get(manifestName);
+        if (manifestRef != null) {
+            byte[] manifestBytes = manifestRef.readAll();
+            if (expectedSha256.equals(sha256Hex(manifestBytes))) {
+                manifest = ChunkManifest.fromByteArray(manifestBytes);
+            } else {
+                logger.info("Manifest "+manifestName+" does not match checksum, forwarding request");
+            }
+        }
+        if (manifest == null) {
+            byte[] manifestBytes = forwardLookup(Util.hexStringToIdentifier(expectedSha256),
+                    expectedSha256, expectedSha256, IdentifierAlgorithm.SHA256);
+            manifest = ChunkManifest.fromByteArray(manifestBytes);
+        }
+        
+        // the manifest must also describe this file, and not just be some valid manifest
+        String fileSha256 = (meta != null) ? meta.sha256 :
+            (identifierAlgo.equals(IdentifierAlgorithm.SHA256) ? idString : null);
+        if (fileSha256 != null && !fileSha256.equalsIgnoreCase(manifest.getSha256())) {
+            throw new SignatureException("Manifest "+manifestName+" describes file with sha256 "+manifest.getSha256());
+        }
+        return manifest;
+    }
+    
+    /** Read a chunk from CHUNK_DIR if it is still waiting to be replicated, or otherwise from
+     *  the replicas on its owner */
+    public byte[] readChunk(ChunkManifest.Chunk chunk) throws IOException {
+        BlobRef chunkRef = chunkStore.get(chunk.sha256);
+        if (chunkRef != null) {
+            byte[] bytes = chunkRef.readAll();
+            if (verifiedCache != null && verifiedCache.isVerified(chunkRef, chunk.sha256)) {
+                return bytes;
+            }
+            if (chunk.sha256.equals(sha256Hex(bytes))) {
+                if (verifiedCache != null) {
+                    verifiedCache.putVerified(chunkRef, chunk.sha256);
+                }
+                return bytes;
+            }
+            logger.info("Chunk "+chunk.sha256+" does not match checksum, forwarding request");
+        }
+        try {
+            return forwardLookup(Util.hexStringToIdentifier(chunk.sha256),
+                    chunk.sha256, chunk.sha256, IdentifierAlgorithm.SHA256);
+        } catch (SignatureException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    /** Fetch a verified copy of an object from its replicas, or from the cache of objects
+     *  already fetched, whose contents cannot change because they are content-addressed */
+    private byte[] forwardLookup(int identifier, String sha256Hash, String checksum, IdentifierAlgorithm algo) throws RemoteException, SignatureException, IOException {
+        if (verifiedCache == null) {
+            return node.forwardLookup(identifier, sha256Hash, checksum, algo);
+        }
+        String key = algo+":"+checksum;
+        byte[] cached = verifiedCache.getContents(key);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] verified = node.forwardLookup(identifier, sha256Hash, checksum, algo);
+        verifiedCache.putContents(key, verified);
+        return verified;
+    }
+    
+    private static String sha256Hex(byte[] data) {
+        return Hex.encodeHexString(CryptoContext.sha256(data));
+    }
+    
+    /** Save a replica sent by another node under the sha256 which that node computed */
+    public void saveAttestedReplica(String sha256Hash, byte[] data) throws IOException {
+        if (!sha256Hash.matches("[0-9a-f]{64}")) {
+            throw new IOException("Replica name "+sha256Hash+" is not a sha256");
+        }
+        logger.info("Saving attested replica to disk with sha256Hash="+sha256Hash);
+        replicaStore.put(sha256Hash, data);
+    }
+    
+    /** Append one part of a large replica sent by another node to its file in TEMP_DIR, and
+     *  once the last part has arrived, check it against its sha256 and keep it in REPLICA_DIR */
+    public void saveReplicaPart(String sha256Hash, String transferId, long offset, long totalLength, byte[] data) throws IOException {
+        if (!sha256Hash.matches("[0-9a-f]{64}")) {
+            throw new IOException("Replica name "+sha256Hash+" is not a sha256");
+        }
+        if (!transferId.matches("[0-9a-f-]{36}")) {
+            throw new IOException("Invalid transfer id "+transferId);
+        }
+        if (offset < 0 || offset + data.length > totalLength) {
+            throw new IOException("Part at offset "+offset+" of "+sha256Hash+" extends past its length "+totalLength);
+        }
+        java.nio.file.Path tempPath = Paths.get(TEMP_DIR, "part-"+transferId);
+        boolean last = (offset + data.length == totalLength);
+        try {
+            try (FileChannel channel = (offset == 0) ?
+                    FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE) :
+                    FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                if (channel.size() != offset) {
+                    throw new IOException("Part at offset "+offset+" of "+sha256Hash+" does not follow the "+
+                            channel.size()+" bytes received");
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + buffer.position());
+                }
+                if (last) {
+                    channel.force(true);
+                }
+            }
+            if (!last) {
+                return;
+            }
+            MessageDigest sha256 = CryptoContext.sha256();
+            try (InputStream in = new DigestInputStream(Files.newInputStream(tempPath), sha256)) {
+                IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM, new byte[BUFFER_SIZE]);
+            }
+            String receivedSha256 = Hex.encodeHexString(sha256.digest());
+            if (!sha256Hash.equals(receivedSha256)) {
+                throw new IOException("Replica "+sha256Hash+" was received with sha256 "+receivedSha256);
+            }
+            logger.info("Saving replica received in parts to disk with sha256Hash="+sha256Hash);
+            replicaStore.putFile(sha256Hash, tempPath);
+        } catch (IOException e) {
+            // the sender restarts a failed transfer from the beginning
+            Files.deleteIfExists(tempPath);
+            throw e;
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            Files.deleteIfExists(tempPath);
+            throw new IOException(e);
+        }
+    }
+    
+    /** Part of the replica with the given sha256 held by this node, or null if it is not present */
+    public byte[] getReplicaPart(String sha256Hash, long offset, int length) throws IOException {
+        BlobRef replica = replicaStore.get(sha256Hash);
+        return (replica != null) ? replica.read(offset, length) : null;
+    }
+    
+    /** Keep a fragment of an erasure-coded object sent by another node */
+    public void saveFragment(String name, byte[] fragment) throws IOException {
+        fragmentStore.put(name, fragment);
+    }
+    
+    /** Fragment of an erasure-coded object held by this node, or null if it is not present */
+    public byte[] getFragment(String name) throws IOException {
+        BlobRef fragment = fragmentStore.get(name);
+        return (fragment != null) ? fragment.readAll() : null;
+    }
+    
+    /** Every fragment of the erasure-coded object with the given sha256 held by this node */
+    public byte[][] getFragments(String sha256Hash) throws IOException {
+        final List<byte[]> fragments = new ArrayList<byte[]>();
+        fragmentStore.visitNames(sha256Hash+".", new BlobStore.NameVisitor() {
+            @Override
+            public void visit(String name) throws IOException {
+                BlobRef fragment = fragmentStore.get(name);
+                if (fragment != null) {
+                    fragments.add(fragment.readAll());
+                }
+            }
+        });
+        return fragments.toArray(new byte[fragments.size()][]);
+    }
+    
+    /** Visit the names of every fragment held by this node */
+    public void visitFragments(BlobStore.NameVisitor visitor) throws IOException {
+        fragmentStore.visitNames("", visitor);
+    }
+    
+    /** Whether REPLICA_DIR holds a copy of the object with the given sha256 */
+    public boolean hasReplica(String sha256Hash) {
+        return replicaStore.contains(sha256Hash);
+    }
+    
     public byte[] getItemAsByteArray(String idString) throws DecoderException, IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException {
-        java.nio.file.Path filePath = Paths.get(REPLICA_DIR, idString);
-        if (Files.exists(filePath)) {
+        BlobRef replica = replicaStore.get(idString);
+        if (replica != null) {
         	logger.info("Retrieving file for remote server as byte[] "+idString);
-        	return Files.readAllBytes(filePath);
+        	return replica.readAll();
         } else {
             // null indicates file not available
             logger.info("Replica "+shardId+" does not have copy of requested file "+idString);
@@ -358,32 +875,99 @@ public class Shard {
         }
     }
     
-    /** Ensure that the retrieved file has not been tampered with by verifying checksum 
-     * @throws SignatureException */ 
-    public byte[] verifyFile(InputStream downloadInputStream, String idString) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, IOException, SignatureException {
-    	byte[] digest = null;
-    	MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
-    	// by default, just copy directly from file for IdentifierAlgorithm.SHA256_NOVERIFY
-        InputStream wrappedInputStream = downloadInputStream;
-        if (identifierAlgo.equals(IdentifierAlgorithm.HMAC_SHA256)) {
-            wrappedInputStream = new HMACInputStream(downloadInputStream, secretKey);
+    /** Build a response which sends the whole file, or the single byte range requested
+     *  in the Range header, directly from disk */
+    private ResponseBuilder streamFile(BlobRef object, String range) throws IOException {
+        long fileSize = object.length;
+        long[] region = FileStreamingOutput.parseRange(range, fileSize);
+        if (region == null) {
+            return Response.ok(new FileStreamingOutput(object.file, object.offset, fileSize)).
+                    header("Accept-Ranges", "bytes").
+                    header("Content-Length", fileSize);
+        } else if (region[0] < 0) {
+            return Response.status(REQUESTED_RANGE_NOT_SATISFIABLE).
+                    header("Content-Range", "bytes */"+fileSize);
+        }
+        long offset = region[0];
+        long length = region[1];
+        return Response.status(PARTIAL_CONTENT).
+                entity(new FileStreamingOutput(object.file, object.offset + offset, length)).
+                header("Accept-Ranges", "bytes").
+                header("Content-Range", "bytes "+offset+"-"+(offset+length-1)+"/"+fileSize).
+                header("Content-Length", length);
+    }
+    
+    /** Consume the inputStream, copying it to outputStream, and return the checksum
+     *  computed via this shard's identifier algorithm */
+    private byte[] computeChecksum(InputStream inputStream, OutputStream outputStream, IdentifierAlgorithm algo) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, IOException {
+        MessageDigest sha256 = CryptoContext.sha256();
+        InputStream wrappedInputStream;
+        if (algo.equals(IdentifierAlgorithm.HMAC_SHA256)) {
+            wrappedInputStream = new HMACInputStream(inputStream, secretKey);
         } else {
-            wrappedInputStream = new DigestInputStream(downloadInputStream, sha256);
+            wrappedInputStream = new DigestInputStream(inputStream, sha256);
         }
         
         // consume inputStream so that checksum computation completes
-        byte[] bytes = IOUtils.toByteArray(wrappedInputStream); 
+        IOUtils.copyLarge(wrappedInputStream, outputStream, new byte[BUFFER_SIZE]);
         
-        if (identifierAlgo.equals(IdentifierAlgorithm.HMAC_SHA256)){
-            digest = ((HMACInputStream) wrappedInputStream).getDigest();     
+        if (algo.equals(IdentifierAlgorithm.HMAC_SHA256)){
+            return ((HMACInputStream) wrappedInputStream).getDigest();
         } else {
-            digest = sha256.digest();
+            return sha256.digest();
+        }
+    }
+    
+    /** Ensure that the retrieved file has not been tampered with by verifying checksum 
+     * @throws SignatureException */ 
+    public byte[] verifyFile(InputStream downloadInputStream, String idString) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, IOException, SignatureException {
+        return verifyFile(downloadInputStream, idString, identifierAlgo);
+    }
+    
+    /** Verify checksum with the specified algorithm, eg: SHA256 for content-addressed chunks
+     * @throws SignatureException */
+    public byte[] verifyFile(InputStream downloadInputStream, String idString, IdentifierAlgorithm algo) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, IOException, SignatureException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] digest;
+        Timer.Context timer = verifyTimer.time();
+        Span span = Tracer.startSpan("verify");
+        try {
+            digest = computeChecksum(downloadInputStream, bytes, algo);
+        } finally {
+            Tracer.endSpan(span);
+            timer.stop();
         }
-        
         if (digest != null && !idString.equalsIgnoreCase(Hex.encodeHexString(digest))) {
+            throw new SignatureException("File "+idString+" has invalid "+algo.toString()+" checksum "+Hex.encodeHexString(digest));
+        }
+        return bytes.toByteArray();
+    }
+    
+    /** Verify the checksum of a file on disk with a streaming pass that
+     *  does not keep the file contents in memory
+     * @throws SignatureException */
+    public void verifyFile(BlobRef object, String idString) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, IOException, SignatureException {
+        if (identifierAlgo.equals(IdentifierAlgorithm.SHA256_NOVERIFY)) {
+            return;
+        }
+        if (verifiedCache != null && verifiedCache.isVerified(object, idString)) {
+            return;
+        }
+        byte[] digest;
+        Timer.Context timer = verifyTimer.time();
+        Span span = Tracer.startSpan("verify");
+        try (InputStream downloadInputStream = object.openStream()) {
+            digest = computeChecksum(downloadInputStream, NullOutputStream.NULL_OUTPUT_STREAM, identifierAlgo);
+        } finally {
+            Tracer.endSpan(span);
+            timer.stop();
+        }
+        if (!idString.equalsIgnoreCase(Hex.encodeHexString(digest))) {
             throw new SignatureException("File "+idString+" has invalid "+identifierAlgo.toString()+" checksum "+Hex.encodeHexString(digest));
         }
-        return bytes;
+        if (verifiedCache != null) {
+            verifiedCache.putVerified(object, idString);
+        }
     }
     
     public SecretKeySpec readOrCreateSecretKey() throws NoSuchAlgorithmException {
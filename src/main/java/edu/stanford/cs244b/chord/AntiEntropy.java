@@ -0,0 +1,444 @@
+package edu.stanford.cs244b.chord;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.rmi.RemoteException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import edu.stanford.cs244b.Util;
+import edu.stanford.cs244b.crypto.CryptoContext;
+import edu.stanford.cs244b.storage.BlobRef;
+import edu.stanford.cs244b.storage.BlobStore;
+import edu.stanford.cs244b.storage.MerkleBlobStore;
+import edu.stanford.cs244b.storage.MerkleTree;
+
+/** Periodic replica repair. Each round, a node compares the hash tree of its replicas
+ *  in the range it owns with the trees of the successors which hold copies of that
+ *  range, descending only into subtrees whose digests differ, and then exchanges the
+ *  objects missing on either side of each differing leaf. Repair traffic is bounded
+ *  per round and throttled, so it grows with the divergence rather than the data held.
+ *  <p/>
+ *  Each round also re-hashes a slice of the local replicas, deleting copies whose
+ *  content no longer matches their name so that the next rounds fetch a good copy. */
+public class AntiEntropy {
+    final static Logger logger = LoggerFactory.getLogger(AntiEntropy.class);
+
+    /** Upper bound on the leaves repaired with each successor per round */
+    final static int MAX_LEAVES_PER_ROUND = 256;
+
+    /** Upper bounds on the objects and data pushed in a single replicateFiles call;
+     *  larger objects are sent on their own */
+    final static int MAX_BATCH_FILES = 64;
+    final static long MAX_BATCH_BYTES = 1024 * 1024;
+
+    /** Local replicas are re-hashed one name prefix of this length at a time */
+    final static int SCRUB_PREFIX_LENGTH = 2;
+    final static int SCRUB_PREFIXES = 1 << (4 * SCRUB_PREFIX_LENGTH);
+
+    /** Upper bound on the local replicas re-hashed per round */
+    final static long SCRUB_BYTES_PER_ROUND = 16 * 1024 * 1024;
+    final static int SCRUB_BUFFER_SIZE = 64 * 1024;
+
+    private final ChordNode node;
+    private final MerkleBlobStore store;
+    private final long intervalSeconds;
+    private final long bytesPerSecond;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "anti-entropy");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Prefix being re-hashed, and the last name in it which was checked */
+    private int scrubPrefix = 0;
+    private String lastScrubbed = "";
+
+    /** Start of the current round and data moved so far, for throttling */
+    private long roundStartNanos;
+    private long roundBytes;
+
+    private final Timer rounds;
+    private final Meter divergentLeaves;
+    private final Meter pushedFiles;
+    private final Meter pulledFiles;
+    private final Meter repairedBytes;
+    private final Meter corruptFiles;
+
+    /** Repair the replicas in store every intervalSeconds, moving at most bytesPerSecond (0 for no limit) */
+    public AntiEntropy(ChordNode node, MerkleBlobStore store, long intervalSeconds, long bytesPerSecond,
+            MetricRegistry metrics) {
+        this.node = node;
+        this.store = store;
+        this.intervalSeconds = intervalSeconds;
+        this.bytesPerSecond = bytesPerSecond;
+
+        rounds = metrics.timer(MetricRegistry.name(AntiEntropy.class, "rounds"));
+        divergentLeaves = metrics.meter(MetricRegistry.name(AntiEntropy.class, "divergent-leaves"));
+        pushedFiles = metrics.meter(MetricRegistry.name(AntiEntropy.class, "pushed-files"));
+        pulledFiles = metrics.meter(MetricRegistry.name(AntiEntropy.class, "pulled-files"));
+        repairedBytes = metrics.meter(MetricRegistry.name(AntiEntropy.class, "repaired-bytes"));
+        corruptFiles = metrics.meter(MetricRegistry.name(AntiEntropy.class, "corrupt-files"));
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                Timer.Context timer = rounds.time();
+                try {
+                    round();
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Anti-entropy round failed", e);
+                } finally {
+                    timer.stop();
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /** Digests of the given nodes of the local hash tree, served to peers */
+    public long[] digests(int[] treeNodes) {
+        for (int treeNode : treeNodes) {
+            if (treeNode < MerkleTree.ROOT || treeNode >= 2 * MerkleTree.LEAVES) {
+                throw new IllegalArgumentException("No hash tree node "+treeNode);
+            }
+        }
+        return store.getTree().digests(treeNodes);
+    }
+
+    /** Names of the local replicas with identifiers in [start, end], served to peers */
+    public String[] list(int start, int end) throws IOException {
+        List<String> names = new ArrayList<String>();
+        for (int[] range : split(start, end)) {
+            names.addAll(localNames(range[0], range[1]));
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    private void round() throws IOException {
+        roundStartNanos = System.nanoTime();
+        roundBytes = 0;
+        scrub();
+
+        Finger location = node.getLocation();
+        Finger successor = node.getSuccessor();
+        if (successor == null || successor.equals(location)) {
+            return;
+        }
+        // this node owns [location, successor) and its successors hold the other copies
+        int start = location.shardid;
+        int end = successor.shardid - 1;
+        Finger[] successors = node.getSuccessorList();
+        for (int i = 0; i < successors.length && i < ChordNode.REPLICATION_FACTOR - 1; i++) {
+            Finger peer = successors[i];
+            if (peer == null || peer.equals(location)) {
+                continue;
+            }
+            try {
+                sync(start, end, peer);
+            } catch (RemoteException e) {
+                logger.warn("Failed to compare replicas with "+peer, e);
+            }
+        }
+    }
+
+    /** Compare the range with one peer and exchange the objects missing on either side */
+    private void sync(int start, int end, Finger peer) throws IOException {
+        RemoteChordNodeI remote = node.getChordNode(peer);
+        MerkleTree tree = store.getTree();
+
+        // leaves only partly inside the range are always compared by listing them
+        List<int[]> ranges = new ArrayList<int[]>();
+        List<Integer> frontier = new ArrayList<Integer>();
+        cover(start, end, frontier, ranges);
+
+        int leaves = 0;
+        while (!frontier.isEmpty() && leaves < MAX_LEAVES_PER_ROUND) {
+            int[] treeNodes = toArray(frontier);
+            long[] remoteDigests = remote.replicaDigests(treeNodes);
+            if (remoteDigests == null || remoteDigests.length != treeNodes.length) {
+                logger.debug("Peer "+peer+" does not keep a hash tree of its replicas");
+                return;
+            }
+            frontier.clear();
+            for (int i = 0; i < treeNodes.length; i++) {
+                if (remoteDigests[i] == tree.digest(treeNodes[i])) {
+                    continue;
+                }
+                if (MerkleTree.isLeaf(treeNodes[i])) {
+                    if (leaves++ < MAX_LEAVES_PER_ROUND) {
+                        int leaf = treeNodes[i] - MerkleTree.LEAVES;
+                        ranges.add(new int[] {MerkleTree.firstIdentifier(leaf), MerkleTree.lastIdentifier(leaf)});
+                    }
+                } else {
+                    frontier.add(2 * treeNodes[i]);
+                    frontier.add(2 * treeNodes[i] + 1);
+                }
+            }
+        }
+        if (leaves > 0) {
+            divergentLeaves.mark(Math.min(leaves, MAX_LEAVES_PER_ROUND));
+            logger.info("Replicas on "+peer+" differ in "+leaves+" leaves of "+
+                    Integer.toHexString(start)+"-"+Integer.toHexString(end));
+        }
+
+        for (int[] range : ranges) {
+            Set<String> localNames = new HashSet<String>(localNames(range[0], range[1]));
+            Set<String> remoteNames = new HashSet<String>(Arrays.asList(remote.listReplicas(range[0], range[1])));
+            List<String> missingRemotely = new ArrayList<String>();
+            for (String name : localNames) {
+                if (!remoteNames.contains(name)) {
+                    missingRemotely.add(name);
+                }
+            }
+            push(remote, missingRemotely);
+            for (String name : remoteNames) {
+                if (!localNames.contains(name)) {
+                    pull(remote, peer, name);
+                }
+            }
+        }
+    }
+
+    /** Split [start, end] into the hash tree nodes covering the leaves wholly inside it,
+     *  and ranges for the leaves only partly inside it */
+    static void cover(int start, int end, List<Integer> treeNodes, List<int[]> partialRanges) {
+        if (end == start - 1) {
+            treeNodes.add(MerkleTree.ROOT);
+            return;
+        }
+        long leafSpan = 1L << (32 - MerkleTree.LEAF_BITS);
+        long remaining = ((end - start) & 0xffffffffL) + 1;
+        int cursor = start;
+        int runStart = -1;
+        int runEnd = -1;
+        while (remaining > 0) {
+            int leaf = MerkleTree.leafOf(cursor);
+            long take = Math.min(remaining, ((MerkleTree.lastIdentifier(leaf) - cursor) & 0xffffffffL) + 1);
+            if (take == leafSpan) {
+                if (runStart >= 0 && leaf == runEnd + 1) {
+                    runEnd = leaf;
+                } else {
+                    if (runStart >= 0) {
+                        coverLeaves(runStart, runEnd, treeNodes);
+                    }
+                    runStart = runEnd = leaf;
+                }
+            } else {
+                partialRanges.add(new int[] {cursor, (int) (cursor + take - 1)});
+            }
+            remaining -= take;
+            cursor += (int) take;
+        }
+        if (runStart >= 0) {
+            coverLeaves(runStart, runEnd, treeNodes);
+        }
+    }
+
+    /** Add the fewest tree nodes whose leaves are exactly first..last */
+    private static void coverLeaves(int first, int last, List<Integer> treeNodes) {
+        int left = first + MerkleTree.LEAVES;
+        int right = last + MerkleTree.LEAVES + 1;
+        while (left < right) {
+            if ((left & 1) == 1) {
+                treeNodes.add(left++);
+            }
+            if ((right & 1) == 1) {
+                treeNodes.add(--right);
+            }
+            left >>>= 1;
+            right >>>= 1;
+        }
+    }
+
+    /** Split [start, end] into ranges which each lie within one leaf */
+    private static List<int[]> split(int start, int end) {
+        List<int[]> ranges = new ArrayList<int[]>();
+        long remaining = ((end - start) & 0xffffffffL) + 1;
+        int cursor = start;
+        while (remaining > 0) {
+            long take = Math.min(remaining, ((MerkleTree.lastIdentifier(MerkleTree.leafOf(cursor)) - cursor) & 0xffffffffL) + 1);
+            ranges.add(new int[] {cursor, (int) (cursor + take - 1)});
+            remaining -= take;
+            cursor += (int) take;
+        }
+        return ranges;
+    }
+
+    /** Names of local replicas in [start, end], which lie within one leaf */
+    private List<String> localNames(final int start, final int end) throws IOException {
+        final List<String> names = new ArrayList<String>();
+        store.visitNames(MerkleTree.prefixOf(MerkleTree.leafOf(start)), new BlobStore.NameVisitor() {
+            @Override
+            public void visit(String name) {
+                try {
+                    if (Util.withinInterval(Util.hexStringToIdentifier(name), start, end)) {
+                        names.add(name);
+                    }
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    // not named by a digest, so not placed on the ring
+                }
+            }
+        });
+        return names;
+    }
+
+    private void push(RemoteChordNodeI remote, List<String> names) throws IOException {
+        List<byte[]> batch = new ArrayList<byte[]>();
+        long batchBytes = 0;
+        for (String name : names) {
+            BlobRef ref = store.get(name);
+            if (ref == null) {
+                continue;
+            }
+            if (ref.length > MAX_BATCH_BYTES) {
+                // large objects go on their own, in parts, so that they are never read whole
+                ChordNode.sendReplica(remote, name, ref);
+                pushedFiles.mark();
+                repairedBytes.mark(ref.length);
+                throttle(ref.length);
+                continue;
+            }
+            byte[] data = ref.readAll();
+            batch.add(data);
+            batchBytes += data.length;
+            if (batch.size() >= MAX_BATCH_FILES || batchBytes >= MAX_BATCH_BYTES) {
+                pushBatch(remote, batch, batchBytes);
+                batch.clear();
+                batchBytes = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            pushBatch(remote, batch, batchBytes);
+        }
+    }
+
+    private void pushBatch(RemoteChordNodeI remote, List<byte[]> batch, long bytes) throws IOException {
+        remote.replicateFiles(batch.toArray(new byte[batch.size()][]));
+        pushedFiles.mark(batch.size());
+        repairedBytes.mark(bytes);
+        throttle(bytes);
+    }
+
+    /** Fetch a copy which only the peer holds, keeping it only if it matches its name */
+    private void pull(RemoteChordNodeI remote, Finger peer, String name) throws IOException {
+        byte[] data = ChordNode.fetchReplica(remote, name);
+        if (data == null) {
+            return;
+        }
+        if (!name.equalsIgnoreCase(sha256Hex(data))) {
+            logger.warn("Peer "+peer+" holds a corrupt copy of "+name);
+            return;
+        }
+        store.put(name, data);
+        pulledFiles.mark();
+        repairedBytes.mark(data.length);
+        throttle(data.length);
+    }
+
+    /** Re-hash the next local replicas in name order, up to SCRUB_BYTES_PER_ROUND, and
+     *  delete copies which do not match their name */
+    private void scrub() throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = CryptoContext.sha256();
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            throw new IOException(e);
+        }
+        long scrubbedBytes = 0;
+        for (int i = 0; i < SCRUB_PREFIXES && scrubbedBytes < SCRUB_BYTES_PER_ROUND; i++) {
+            final List<String> names = new ArrayList<String>();
+            store.visitNames(String.format("%0"+SCRUB_PREFIX_LENGTH+"x", scrubPrefix), new BlobStore.NameVisitor() {
+                @Override
+                public void visit(String name) {
+                    if (name.compareTo(lastScrubbed) > 0) {
+                        names.add(name);
+                    }
+                }
+            });
+            Collections.sort(names);
+            for (String name : names) {
+                if (scrubbedBytes >= SCRUB_BYTES_PER_ROUND) {
+                    return;
+                }
+                lastScrubbed = name;
+                BlobRef ref = store.get(name);
+                if (ref == null) {
+                    continue;
+                }
+                scrubbedBytes += ref.length;
+                try (InputStream in = new DigestInputStream(ref.openStream(), sha256)) {
+                    IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM, new byte[SCRUB_BUFFER_SIZE]);
+                }
+                if (!name.equalsIgnoreCase(Hex.encodeHexString(sha256.digest()))) {
+                    logger.error("Replica "+name+" is corrupt, deleting it so that it is repaired");
+                    corruptFiles.mark();
+                    store.delete(name);
+                }
+            }
+            scrubPrefix = (scrubPrefix + 1) % SCRUB_PREFIXES;
+            lastScrubbed = "";
+        }
+    }
+
+    /** Sleep until the data moved this round stays within bytesPerSecond */
+    private void throttle(long bytes) throws IOException {
+        roundBytes += bytes;
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long dueMillis = roundBytes * 1000 / bytesPerSecond;
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - roundStartNanos);
+        if (dueMillis > elapsedMillis) {
+            try {
+                Thread.sleep(dueMillis - elapsedMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted during anti-entropy round", e);
+            }
+        }
+    }
+
+    private static String sha256Hex(byte[] data) {
+        return Hex.encodeHexString(CryptoContext.sha256(data));
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}
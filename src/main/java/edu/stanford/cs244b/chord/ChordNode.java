@@ -1,38 +1,75 @@
 package edu.stanford.cs244b.chord;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
-import java.rmi.Naming;
+import java.nio.file.Path;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.ws.rs.core.Response;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
 import com.sun.jersey.api.Responses;
 
 import edu.stanford.cs244b.Shard;
 import edu.stanford.cs244b.Shard.IdentifierAlgorithm;
 import edu.stanford.cs244b.Util;
+import edu.stanford.cs244b.erasure.ErasureCoder;
+import edu.stanford.cs244b.storage.BlobRef;
+import edu.stanford.cs244b.storage.BlobStore;
+import edu.stanford.cs244b.storage.MerkleBlobStore;
+import edu.stanford.cs244b.trace.Span;
+import edu.stanford.cs244b.trace.TraceContext;
+import edu.stanford.cs244b.trace.Tracer;
 
 /** Core components of the Chord distributed hash table implementation.
  *  Keeps track of other shards in the ring to ensure O(log n) lookup */
 
 public class ChordNode implements RemoteChordNodeI {
-    Registry registry;
+    /** Used to export this node and to reach remote nodes */
+    final ChordTransport transport;
+    
+    /** Stubs for remote nodes which have been contacted recently */
+    final StubCache stubCache;
+    
+    /** Recently resolved ring intervals, so that repeated lookups need no hops */
+    final RoutingCache routingCache = new RoutingCache();
     
     final Shard shard;
     
@@ -50,6 +87,10 @@ public class ChordNode implements RemoteChordNodeI {
     
     protected int fingerIndexToUpdate = 0;
     
+    /** Whether a joining node fills in its whole finger table before it starts stabilizing,
+     *  rather than leaving it to fixFingers */
+    protected boolean fastJoin = true;
+    
     final static int NUM_FINGERS = 32;
     
     /** In initial Chord implementation, only maintain a pointer to
@@ -64,12 +105,183 @@ public class ChordNode implements RemoteChordNodeI {
     /** List of successors to check in case of failure */
     protected Finger[] successorList = new Finger[REPLICATION_FACTOR];
     
-    protected Stabilizer stabilizer;
+    protected volatile Stabilizer stabilizer;
+    
+    /** Time between rounds of stabilization while the ring is changing, and the most it
+     *  backs off to while this node's neighbours stay the same */
+    protected long stabilizeMillis = Stabilizer.MIN_DELAY_MILLIS;
+    protected long maxStabilizeMillis = Stabilizer.MAX_DELAY_MILLIS;
+    
+    /** Number of fingers looked up in each round of stabilization */
+    final static int FINGERS_PER_ROUND = 4;
+    
+    final static int STABILIZATION_THREADS = 8;
+    
+    /** Runs the stabilization rounds of every ChordNode in this JVM */
+    final static ScheduledExecutorService stabilizationScheduler = Executors.newScheduledThreadPool(
+            STABILIZATION_THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "stabilizer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /** Looks up the fingers fixed in a round in parallel */
+    final static ExecutorService fingerExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "fix-fingers");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /** Makes the node leave the ring when the JVM exits */
+    private Thread shutdownHook;
+    
+    /** Number of replicas which must acknowledge a file before replication returns */
+    protected int writeQuorum = 1;
+    
+    final static int REPLICATION_THREADS = 16;
+    
+    /** Replicas larger than this are sent to and read from other nodes in parts of this size,
+     *  so that no call exceeds the transport's message limit and senders never hold the
+     *  whole object in memory */
+    final static int REPLICA_PART_BYTES = 4 * 1024 * 1024;
+    
+    /** Erasure coding happens in memory and each fragment is sent in a single call, so larger
+     *  objects are replicated whole instead */
+    final static int MAX_FRAGMENT_BYTES = 32 * 1024 * 1024;
+    
+    /** Durable queue of pending copies when replication runs in the background, otherwise null */
+    protected ReplicationQueue replicationQueue;
+    
+    /** Moves replicas to their new owner when the ring changes, or null if disabled */
+    protected RangeTransfer rangeTransfer;
+    
+    /** Compares and repairs replicas with the successors, or null if disabled */
+    protected AntiEntropy antiEntropy;
+    
+    /** Splits large objects into fragments stored on distinct nodes, or null if disabled */
+    protected ErasureCoder erasureCoder;
+    
+    /** Nodes past the last fragment's which are also asked for fragments, since nodes which
+     *  joined after an object was encoded move its fragments further from the owner */
+    final static int FRAGMENT_SEARCH_NODES = REPLICATION_FACTOR;
+    
+    /** Reads from replicas are hedged after this percentile of recent read latencies */
+    final static double HEDGE_PERCENTILE = 0.95;
+    final static int MIN_HEDGE_SAMPLES = 20;
+    final static long DEFAULT_HEDGE_DELAY_MILLIS = 50;
+    final static long MIN_HEDGE_DELAY_MILLIS = 5;
+    final static long MAX_HEDGE_DELAY_MILLIS = 1000;
+    
+    final MetricRegistry metrics;
+    
+    /** Latency of successful reads from replicas, used to pick the hedge delay */
+    final Timer replicaReadLatency;
+    
+    /** Reads which were sent to an additional replica because the first was slow */
+    final Meter hedgedReads;
+    
+    /** Reads which had to be served by replicas */
+    final Meter forwardedReads;
+    
+    /** Reads whose cached route was stale, so the owner had to be resolved again */
+    final Meter readRetries;
+    
+    /** Reads which no replica could serve, so the object was rebuilt from fragments */
+    final Meter erasureFallbacks;
+    
+    /** Time taken by iterative lookups, and the number of remote nodes each one asked */
+    final Timer lookupLatency;
+    final Histogram lookupHops;
+    
+    /** Time taken to obtain a stub for a remote node, which includes connecting to it
+     *  when it is not cached */
+    final Timer stubLookups;
+    
+    /** Time taken by each replica to store a copy, and the bytes sent to replicas */
+    final Timer replicaWriteLatency;
+    final Meter replicatedBytes;
+    
+    /** Time taken by rounds of stabilization and finger fixing, and how often they
+     *  change the successor or another finger */
+    final Timer stabilizeTimer;
+    final Timer fixFingersTimer;
+    final Meter successorChanges;
+    final Meter fingerChanges;
+    
+    /** Sends copies of files to replicas in parallel */
+    final ExecutorService replicationExecutor = Executors.newFixedThreadPool(REPLICATION_THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "replication");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
         
-    public ChordNode(InetAddress host, int port, Shard shard) throws RemoteException {
+    /** Fetches files from replicas, several at once when reads are hedged */
+    final ExecutorService readExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "replica-read");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+        
+    public ChordNode(InetAddress host, int port, Shard shard, ChordTransport transport) throws RemoteException {
+        this(host, port, shard, transport, new MetricRegistry());
+    }
+    
+    public ChordNode(InetAddress host, int port, Shard shard, ChordTransport transport, MetricRegistry metrics) throws RemoteException {
         super();
         
         this.shard = shard;
+        this.metrics = metrics;
+        this.replicaReadLatency = metrics.timer(MetricRegistry.name(ChordNode.class, "replica-read-latency"));
+        this.hedgedReads = metrics.meter(MetricRegistry.name(ChordNode.class, "hedged-reads"));
+        final Meter forwardedReads = metrics.meter(MetricRegistry.name(ChordNode.class, "forwarded-reads"));
+        this.forwardedReads = forwardedReads;
+        this.readRetries = metrics.meter(MetricRegistry.name(ChordNode.class, "read-retries"));
+        this.erasureFallbacks = metrics.meter(MetricRegistry.name(ChordNode.class, "erasure-fallbacks"));
+        this.lookupLatency = metrics.timer(MetricRegistry.name(ChordNode.class, "lookup-latency"));
+        this.lookupHops = metrics.histogram(MetricRegistry.name(ChordNode.class, "lookup-hops"));
+        this.stubLookups = metrics.timer(MetricRegistry.name(ChordNode.class, "stub-lookups"));
+        this.replicaWriteLatency = metrics.timer(MetricRegistry.name(ChordNode.class, "replica-write-latency"));
+        this.replicatedBytes = metrics.meter(MetricRegistry.name(ChordNode.class, "replicated-bytes"));
+        this.stabilizeTimer = metrics.timer(MetricRegistry.name(ChordNode.class, "stabilize"));
+        this.fixFingersTimer = metrics.timer(MetricRegistry.name(ChordNode.class, "fix-fingers"));
+        this.successorChanges = metrics.meter(MetricRegistry.name(ChordNode.class, "successor-changes"));
+        this.fingerChanges = metrics.meter(MetricRegistry.name(ChordNode.class, "finger-changes"));
+        metrics.register(MetricRegistry.name(ChordNode.class, "stabilize-interval"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return (stabilizer == null) ? null : stabilizer.getDelayMillis();
+            }
+        });
+        metrics.register(MetricRegistry.name(ChordNode.class, "hedge-ratio"), new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(hedgedReads.getOneMinuteRate(), forwardedReads.getOneMinuteRate());
+            }
+        });
+        this.transport = transport;
+        this.stubCache = new StubCache(transport);
+        stubCache.setListener(new StubCache.Listener() {
+            @Override
+            public void unreachable(Finger node) {
+                if (isNeighbour(node)) {
+                    ringChanged();
+                } else if (isFinger(node)) {
+                    fingersChanged();
+                }
+            }
+        });
         
         this.location = new Finger(host, port);
         fingerTable = new Finger[NUM_FINGERS];
@@ -81,44 +293,29 @@ public class ChordNode implements RemoteChordNodeI {
         	successorList[i] = null;
         }
         
-        // insane hack to get RMI working in virtualbox
-        System.getProperties().put("java.rmi.server.hostname", host.getHostAddress());
-        RemoteChordNodeI stub = (RemoteChordNodeI) UnicastRemoteObject.exportObject(this, 0);
-
         try {
-        	registry = LocateRegistry.createRegistry(port);
-        } catch (Exception e) {
-        	registry = LocateRegistry.getRegistry();
-        }
-        try {
-        	// insert ChordNode into RMI registry
-            String rmiURL = location.getRMIUrl();
-        	logger.info("Binding to registry at "+rmiURL);
-        	Naming.bind(rmiURL, stub);
-
-        } catch (Exception e) {
+            transport.export(this, location);
+        } catch (RemoteException e) {
         	logger.error("Registering host "+host+" in Chord ring with shardId="+shardIdAsHex()+" FAILED");
-        	e.printStackTrace();
+        	throw e;
         }
     }
     
-    /** Given a location, lookup the corresponding RemoteChordNodeI */
+    /** Given a location, lookup the corresponding RemoteChordNodeI.
+     *  Stubs are cached, and liveness is checked by the cache's background prober
+     *  rather than with an extra round trip on every lookup. */
     public RemoteChordNodeI getChordNode(Finger remoteLocation) throws RemoteException {
+        if (remoteLocation == null) {
+            throw new RemoteException("No ChordNode at null location");
+        }
+        if (remoteLocation.equals(location)) {
+            return this;
+        }
+        Timer.Context timer = stubLookups.time();
         try {
-            // OMG, figuring this out was painful...
-            // http://euclid.nmu.edu/~rappleto/Classes/RMI/rmi-coding.html
-            
-            // insane hack to get RMI working in virtualbox
-            System.getProperties().put("java.rmi.server.hostname", remoteLocation.host.getHostAddress());
-            //Registry registry = LocateRegistry.getRegistry(remoteLocation.host.getHostAddress(), remoteLocation.port);
-            String rmiURL = remoteLocation.getRMIUrl();
-            
-            RemoteChordNodeI chordNode = (RemoteChordNodeI) Naming.lookup(rmiURL);
-            Finger nodeLocation = chordNode.getLocation(); // verify that we can contact ChordNode at specified location
-            return chordNode;
-        } catch (Exception e) {
-//            logger.error("Failed to get remote ChordNode at location "+remoteLocation, e);
-            throw new RemoteException("Failed to get remote ChordNode at location "+remoteLocation);
+            return stubCache.get(remoteLocation);
+        } finally {
+            timer.stop();
         }
     }
     
@@ -150,13 +347,15 @@ public class ChordNode implements RemoteChordNodeI {
     @Override
     public void setPredecessor(Finger newPredecessor) {
         this.predecessor = newPredecessor;
+        routingCache.clear();
     }
     
     /** When node <i>n</i> joins the network:
      *  <ol>
      *  <li>Initialize predecessor TODO: and fingers of node <i>n</i></li>
      *  <li>TODO: Update the fingers and predecessors of existing nodes to reflect the addition of node <i>n</i></li>
-     *  <li>TODO: Notify higher-level software so it can transfer values associated with keys that node <i>n</i> is now responsible for</li>
+     *  <li>Transfer values associated with keys that node <i>n</i> is now responsible for;
+     *  this is done by <i>n</i>'s predecessor once stabilization makes <i>n</i> its successor</li>
      *  </ol>
      *  Returns true if join succeeded, false otherwise
      */
@@ -164,16 +363,17 @@ public class ChordNode implements RemoteChordNodeI {
         logger.info("Joining node "+existingLocation+"; isFirstNode="+isFirstNode);
     	try {
     		predecessor = null;
-    		fingerTable[0] = getChordNode(existingLocation).findSuccessor(getShardId()).getLocation();
+    		fingerTable[0] = resolve(getChordNode(existingLocation), getShardId()).successor;
     	} catch (RemoteException e) {
-    		logger.error("Trusted node is unreachable. Failed to join ring. Exiting...");
-    		System.exit(1);
+    		logger.error("Trusted node is unreachable. Failed to join ring.");
+    		return false;
     	}
     		
     	try {
+    		Finger[] remoteFingerTable = null;
     		if (!isFirstNode) {
     			// check for malicious nodes
-    			Finger[] remoteFingerTable = getChordNode(getSuccessor()).getFingerTable();
+    			remoteFingerTable = getChordNode(getSuccessor()).getFingerTable();
     			
     			// Nodes we must find
     			Set<Integer> nodesToFind = new HashSet<Integer>();
@@ -204,48 +404,72 @@ public class ChordNode implements RemoteChordNodeI {
     			// If not all fingers were found, error occurred
     			// TODO: handle nodes in finger table leaving before they are found
     			if (!nodesToFind.isEmpty()) {
-    				logger.error("Not all trusted nodes were found in ring during join. Failed to join ring. Exiting...");
-    				System.exit(1);
+    				logger.error("Not all trusted nodes were found in ring during join. Failed to join ring.");
+    				return false;
     			}
     		}
     		
     		refreshSuccessors(0);
     		
+    		if (!isFirstNode && fastJoin) {
+    			seedFingers(remoteFingerTable);
+    		}
     	} catch (RemoteException e) {
-    		logger.error("Failed to find successor node while walking ring. Ring is corrupted or contains malicious nodes. Exiting...", e);
-    		System.exit(1);
+    		logger.error("Failed to find successor node while walking ring. Ring is corrupted or contains malicious nodes.", e);
+    		return false;
     	}
     	
 		stabilizer = new Stabilizer();
 		stabilizer.start();
-        Runtime.getRuntime().addShutdownHook(new Thread() {
+		shutdownHook = new Thread() {
 			@Override
 			public void run() {
 				stabilizer.cancel();
 			}
-		});
+		};
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
 		return true;
     }
     
     /** Periodically run to verify successor relationship */
     public void stabilize() {
+    	Timer.Context timer = stabilizeTimer.time();
+    	try {
+    	    stabilizeSuccessor();
+    	} finally {
+    	    timer.stop();
+    	}
+    }
+    
+    private void stabilizeSuccessor() {
     	RemoteChordNodeI successor = null;
     	Finger x = null;
     	try {
     		successor = getChordNode(getSuccessor());
     		x = successor.getPredecessor();
     	} catch (RemoteException e) {
+    		ringChanged();
     		updateSuccessor();
     		try {
 				successor = getChordNode(getSuccessor());
 			} catch (RemoteException e1) {
-				e1.printStackTrace();
+				logger.error("New successor is unreachable", e1);
 			}
     	}
     	
-		if (x != null && Util.withinInterval(x.shardid, location.shardid+1, getSuccessor().shardid-1)) {
+		// a successor which has not yet noticed that its predecessor failed still reports it
+		if (x != null && Util.withinInterval(x.shardid, location.shardid+1, getSuccessor().shardid-1) &&
+		        !stubCache.isSuspected(x)) {
 			logger.info("Updating successor from "+Integer.toHexString(getSuccessor().shardid)+" to "+Integer.toHexString(x.shardid));
+			Finger oldSuccessor = getSuccessor();
 		    fingerTable[0] = x;
+		    routingCache.clear();
+		    successorChanges.mark();
+		    ringChanged();
+		    if (rangeTransfer != null) {
+		        // keys in [x, oldSuccessor) now belong to x rather than this node
+		        rangeTransfer.transfer(x.shardid, oldSuccessor.shardid-1, x, true);
+		    }
 		    try {
 		    	// Tell precedessors to refresh successor list
 		    	getChordNode(predecessor).refreshSuccessors(REPLICATION_FACTOR - 1);
@@ -261,6 +485,25 @@ public class ChordNode implements RemoteChordNodeI {
 		}
     }
     
+    /** Forget the predecessor if it is unreachable, so that the next node to notify
+     *  this node can take its place after it fails */
+    public void checkPredecessor() {
+        Finger current = predecessor;
+        if (current == null || current.equals(location)) {
+            return;
+        }
+        try {
+            getChordNode(current).getLocation();
+        } catch (RemoteException e) {
+            logger.info("Predecessor "+Integer.toHexString(current.shardid)+" is unreachable");
+            if (predecessor == current) {
+                predecessor = null;
+                routingCache.clear();
+                ringChanged();
+            }
+        }
+    }
+    
     /** Notify node of request to become predecessor */
     @Override
     public void notifyPredecessor(Finger newPredecessor) {
@@ -268,9 +511,64 @@ public class ChordNode implements RemoteChordNodeI {
     	        Util.withinInterval(newPredecessor.shardid, predecessor.shardid+1, location.shardid-1)) {
     	    String oldPredecessor = (predecessor == null ? "null" : Integer.toHexString(predecessor.shardid));
     	    logger.info("Updating predecessor from "+oldPredecessor+" to "+Integer.toHexString(newPredecessor.shardid));
+    		final Finger replaced = predecessor;
     		predecessor = newPredecessor;
+    		routingCache.clear();
+    		ringChanged();
+    		if (replaced != null && !replaced.equals(location) && !stubCache.isSuspected(replaced)) {
+    		    // the old predecessor now has a new successor, which its next round of
+    		    // stabilization would only find after backing off
+    		    stabilizationScheduler.execute(new Runnable() {
+    		        @Override
+    		        public void run() {
+    		            try {
+    		                getChordNode(replaced).refreshSuccessors(0);
+    		            } catch (RemoteException e) {
+    		                logger.info("Failed to tell old predecessor "+Integer.toHexString(replaced.shardid)+" about its new successor");
+    		            }
+    		        }
+    		    });
+    		}
     	}
     }
+    
+    /** Make the next round of stabilization run soon, since a neighbour of this node changed */
+    void ringChanged() {
+        Stabilizer current = stabilizer;
+        if (current != null) {
+            current.wake();
+        }
+    }
+    
+    /** Keep stabilizing at the current rate rather than backing off, since a finger changed */
+    void fingersChanged() {
+        Stabilizer current = stabilizer;
+        if (current != null) {
+            current.hold();
+        }
+    }
+    
+    /** Whether node is this node's predecessor or one of its successors */
+    private boolean isNeighbour(Finger node) {
+        if (node.equals(predecessor)) {
+            return true;
+        }
+        for (Finger successor : successorList) {
+            if (node.equals(successor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private boolean isFinger(Finger node) {
+        for (Finger finger : fingerTable) {
+            if (node.equals(finger)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
 	/** Compute identifier of finger at given index, taking signed integer wrapping into account */
 	protected int computeIdToFind(int fingerIndex) {
@@ -281,9 +579,21 @@ public class ChordNode implements RemoteChordNodeI {
 		return (int) (idToFind+Integer.MIN_VALUE);
 	}
     
-    /** Choose a random node and update finger table */
+    /** Update the next FINGERS_PER_ROUND fingers which need a remote lookup, chosen randomly
+     *  or by a linear scan, looking them up in parallel. Fingers passed over on the way which
+     *  fall before the successor are fixed without any calls. */
     public void fixFingers() {
+    	Timer.Context timer = fixFingersTimer.time();
     	try {
+    	    fixNextFingers();
+    	} finally {
+    	    timer.stop();
+    	}
+    }
+    
+    private void fixNextFingers() {
+    	List<Future<?>> lookups = new ArrayList<Future<?>>(FINGERS_PER_ROUND);
+    	for (int i = 1; i < NUM_FINGERS && lookups.size() < FINGERS_PER_ROUND; i++) {
     	    if (randomFingerUpdate) {
 	    	    Random rgen = new Random();
 	    	    fingerIndexToUpdate = rgen.nextInt(NUM_FINGERS - 1) + 1;
@@ -291,36 +601,232 @@ public class ChordNode implements RemoteChordNodeI {
     	        // sequentially scan 1 to NUM_FINGERS-1
     	        fingerIndexToUpdate = (fingerIndexToUpdate >= NUM_FINGERS-1) ? 1 : (fingerIndexToUpdate+1);    
     	    }
-	    	int idToFind = computeIdToFind(fingerIndexToUpdate);
-	    	Finger f = findSuccessor(idToFind).getLocation();
-	    	String oldFingerShardId = fingerTable[fingerIndexToUpdate] != null ? Integer.toHexString(fingerTable[fingerIndexToUpdate].shardid) : "null";
+    	    final int fingerIndex = fingerIndexToUpdate;
+    	    if (Util.withinInterval(computeIdToFind(fingerIndex), location.shardid+1, getSuccessor().shardid)) {
+    	        fixFinger(fingerIndex);
+    	    } else {
+    	        lookups.add(fingerExecutor.submit(new Runnable() {
+    	            @Override
+    	            public void run() {
+    	                fixFinger(fingerIndex);
+    	            }
+    	        }));
+    	    }
+    	}
+    	try {
+    	    for (Future<?> lookup : lookups) {
+    	        lookup.get();
+    	    }
+    	} catch (InterruptedException e) {
+    	    Thread.currentThread().interrupt();
+    	} catch (ExecutionException e) {
+    	    logger.error("Failed to update finger table", e.getCause());
+    	}
+    }
+    
+    /** Fill in the finger table of a node which just joined. Every finger first points at the
+     *  closest of the successor's fingers following its identifier, which is already close
+     *  since the successor's fingers cover nearly the same identifiers, and then the fingers
+     *  are looked up from the successor in one parallel batch. Fingers which fall before the
+     *  successor need no lookup, and fingers whose identifiers fall between the same two
+     *  known nodes are looked up once: in a ring of n nodes only about log(n) lookups are
+     *  made instead of NUM_FINGERS-1. */
+    void seedFingers(Finger[] successorFingers) {
+        long start = System.nanoTime();
+        final Finger successor = getSuccessor();
+        List<Finger> known = new ArrayList<Finger>();
+        known.add(successor);
+        for (Finger finger : successorFingers) {
+            if (finger != null && !finger.equals(location)) {
+                known.add(finger);
+            }
+        }
+        
+        // group the fingers needing a lookup by their guess, in order of increasing distance
+        Map<Finger, List<Integer>> groups = new LinkedHashMap<Finger, List<Integer>>();
+        for (int i = 1; i < NUM_FINGERS; i++) {
+            int idToFind = computeIdToFind(i);
+            if (Util.withinInterval(idToFind, location.shardid+1, successor.shardid)) {
+                fingerTable[i] = successor;
+                continue;
+            }
+            Finger guess = closestFollowing(idToFind, known);
+            fingerTable[i] = guess;
+            List<Integer> group = groups.get(guess);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(guess, group);
+            }
+            group.add(Integer.valueOf(i));
+        }
+        
+        // look up the first finger of each group, which the rest of the group share unless
+        // a node the successor did not know of lies between them
+        List<Integer> pending = new ArrayList<Integer>();
+        for (List<Integer> group : groups.values()) {
+            pending.add(group.get(0));
+        }
+        int lookups = 0;
+        while (!pending.isEmpty()) {
+            Map<Integer, Finger> found = lookupFingers(successor, pending);
+            lookups += pending.size();
+            List<Integer> retry = new ArrayList<Integer>();
+            for (List<Integer> group : groups.values()) {
+                Finger owner = group.isEmpty() ? null : found.get(group.get(0));
+                if (owner == null) {
+                    // failed or not looked up in this batch, keep the guesses for fixFingers
+                    continue;
+                }
+                int first = group.get(0).intValue();
+                fingerTable[first] = owner;
+                int firstId = computeIdToFind(first);
+                int next = 1;
+                while (next < group.size() && owner.shardid != firstId &&
+                        Util.withinInterval(computeIdToFind(group.get(next).intValue()), firstId, owner.shardid)) {
+                    fingerTable[group.get(next).intValue()] = owner;
+                    next++;
+                }
+                // the rest form a new group headed by the first finger past the owner
+                List<Integer> rest = new ArrayList<Integer>(group.subList(next, group.size()));
+                group.clear();
+                if (!rest.isEmpty()) {
+                    group.addAll(rest);
+                    retry.add(rest.get(0));
+                }
+            }
+            pending = retry;
+        }
+        logger.info("Seeded finger table from "+Integer.toHexString(successor.shardid)+" with "+lookups+" lookups in "+
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)+" ms");
+    }
+    
+    /** Look up the successors of the given fingers' identifiers in parallel, starting at
+     *  the start node; fingers whose lookup failed are missing from the result */
+    private Map<Integer, Finger> lookupFingers(Finger start, List<Integer> fingerIndexes) {
+        final RemoteChordNodeI startNode;
+        try {
+            startNode = getChordNode(start);
+        } catch (RemoteException e) {
+            logger.error("Failed to look up fingers from "+start, e);
+            return new HashMap<Integer, Finger>();
+        }
+        Map<Integer, Future<Finger>> lookups = new LinkedHashMap<Integer, Future<Finger>>();
+        for (Integer fingerIndex : fingerIndexes) {
+            final int idToFind = computeIdToFind(fingerIndex.intValue());
+            lookups.put(fingerIndex, fingerExecutor.submit(new Callable<Finger>() {
+                @Override
+                public Finger call() throws RemoteException {
+                    return resolve(startNode, idToFind).successor;
+                }
+            }));
+        }
+        Map<Integer, Finger> found = new HashMap<Integer, Finger>();
+        for (Map.Entry<Integer, Future<Finger>> lookup : lookups.entrySet()) {
+            try {
+                found.put(lookup.getKey(), lookup.getValue().get());
+            } catch (ExecutionException e) {
+                logger.error("Failed to look up fingerTable["+lookup.getKey()+"]", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return found;
+    }
+    
+    /** The node among known which is the first at or after identifier in the ring */
+    private static Finger closestFollowing(int identifier, List<Finger> known) {
+        Finger closest = null;
+        long closestDistance = Long.MAX_VALUE;
+        for (Finger node : known) {
+            long distance = (node.shardid - identifier) & 0xffffffffL;
+            if (distance < closestDistance) {
+                closest = node;
+                closestDistance = distance;
+            }
+        }
+        return closest;
+    }
+    
+    /** Point the finger at the given index at the successor of its identifier */
+    private void fixFinger(int fingerIndex) {
+    	try {
+	    	int idToFind = computeIdToFind(fingerIndex);
+	    	Finger f = findSuccessorLocation(idToFind);
+	    	String oldFingerShardId = fingerTable[fingerIndex] != null ? Integer.toHexString(fingerTable[fingerIndex].shardid) : "null";
 	    	String newFingerShardId = f != null ? Integer.toHexString(f.shardid) : "null";
 	    	if (!oldFingerShardId.equals(newFingerShardId)) {
-	    	    logger.info("Updating fingerTable[" + fingerIndexToUpdate + "] from "+ oldFingerShardId + " to " + newFingerShardId);
+	    	    logger.info("Updating fingerTable[" + fingerIndex + "] from "+ oldFingerShardId + " to " + newFingerShardId);
+	    	    fingerChanges.mark();
+	    	    fingersChanged();
 	    	}
-	    	fingerTable[fingerIndexToUpdate] = f;
+	    	fingerTable[fingerIndex] = f;
     	} catch (RemoteException e) {
     		// Predecessor's successor is unreachable, wait until its finger table gets fixed
     		logger.error("Failed to update finger table");
+    		fingersChanged();
     	}
     }
     
     @Override
     public RemoteChordNodeI findSuccessor(int identifier) throws RemoteException {
-        RemoteChordNodeI next = findPredecessor(identifier);
-        return getChordNode(next.getSuccessor());
+        return getChordNode(findSuccessorLocation(identifier));
     }
     
     @Override
     public RemoteChordNodeI findPredecessor(int identifier) throws RemoteException {
-        RemoteChordNodeI next = this;
-        //logger.info("FindPredecessor for id="+Integer.toHexString(identifier)+" next_shardid="+Integer.toHexString(next.getShardId()));
-        while (!Util.withinInterval(identifier, next.getShardId()+1, next.getSuccessor().shardid)) {
-            next = next.closestPrecedingFinger(identifier);
-//            logger.info("FindPredecessor for id="+Integer.toHexString(identifier)+" next_shardid="+Integer.toHexString(next.getShardId()));
+        return getChordNode(findPredecessorLocation(identifier));
+    }
+    
+    /** Location of the node which succeeds the identifier */
+    public Finger findSuccessorLocation(int identifier) throws RemoteException {
+        return resolve(this, identifier).successor;
+    }
+    
+    /** Location of the node whose interval (node, successor] contains the identifier */
+    public Finger findPredecessorLocation(int identifier) throws RemoteException {
+        return resolve(this, identifier).location;
+    }
+    
+    /** Contact a series of nodes moving forward around the Chord circle towards the
+     *  identifier, starting at the given node. Each hop is a single lookupStep call. */
+    LookupStep resolve(RemoteChordNodeI start, int identifier) throws RemoteException {
+        Span span = Tracer.startSpan("lookup");
+        try {
+            Timer.Context timer = lookupLatency.time();
+            LookupStep step = start.lookupStep(identifier);
+            int hops = (start == this) ? 0 : 1;
+            //logger.info("FindPredecessor for id="+Integer.toHexString(identifier)+" next_shardid="+Integer.toHexString(step.location.shardid));
+            while (!Util.withinInterval(identifier, step.location.shardid+1, step.successor.shardid)) {
+                if (step.nextHop.equals(step.location)) {
+                    throw new RemoteException("Lookup of "+Integer.toHexString(identifier)+" stuck at "+step.location);
+                }
+                step = getChordNode(step.nextHop).lookupStep(identifier);
+                hops++;
+            }
+            timer.stop();
+            lookupHops.update(hops);
+            routingCache.put(step);
+            return step;
+        } finally {
+            Tracer.endSpan(span);
         }
-        return next;
-        
+    }
+    
+    /** Location of the node where replicas of the identifier start, answered from the
+     *  routing cache when possible. Callers which get a stale answer from the returned
+     *  node should invalidate the cached route and resolve it again. */
+    public Finger lookupOwner(int identifier) throws RemoteException {
+        LookupStep cached = routingCache.lookup(identifier);
+        if (cached != null) {
+            return cached.location;
+        }
+        return findPredecessorLocation(identifier);
+    }
+    
+    @Override
+    public LookupStep lookupStep(int identifier) {
+        return new LookupStep(location, getSuccessor(), closestPrecedingFingerLocation(identifier));
     }
     
     @Override
@@ -339,9 +845,27 @@ public class ChordNode implements RemoteChordNodeI {
         return this;
     }
     
-    /** Leave Chord ring and update other nodes */
+    /** Closest preceding finger which is not known to be unreachable, without contacting it */
+    Finger closestPrecedingFingerLocation(int identifier) {
+        for (int index = NUM_FINGERS-1; index >= 0; index--) {
+            Finger finger = fingerTable[index];
+            if (Util.withinInterval(finger.shardid, location.shardid+1, identifier-1) &&
+                    !stubCache.isSuspected(finger)) {
+                return finger;
+            }
+        }
+        return location;
+    }
+    
+    /** Leave Chord ring and update other nodes, then exit the JVM */
     public void leave(int exitCode) {
-    	if (this.location.host == predecessor.host) {
+        leave();
+        System.exit(exitCode);
+    }
+    
+    /** Leave Chord ring and update other nodes */
+    public void leave() {
+    	if (predecessor == null || this.location.host == predecessor.host) {
     		return;
     	}
     	
@@ -351,19 +875,75 @@ public class ChordNode implements RemoteChordNodeI {
     		logger.error("Failed to set successor's predecessor", e);
     	}
     	
+    	if (rangeTransfer != null && predecessor != null) {
+    	    // the predecessor takes over the keys this node owned
+    	    rangeTransfer.transferBeforeLeaving(location.shardid, getSuccessor().shardid-1, predecessor);
+    	}
+    	
+    	if (shard != null) {
+    	    // the successor takes this node's place in the run of nodes holding each object's fragments
+    	    handOverFragments(getSuccessor());
+    	}
+    	
     	for (int i = 0; i < NUM_FINGERS; i++) {
     		int fingerValue = (location.shardid - (1 << i)) + 1;
     		
     		try {
-    			RemoteChordNodeI p = findPredecessor(fingerValue);
+    			RemoteChordNodeI p = getChordNode(findPredecessorLocation(fingerValue));
     			p.removeNode(getLocation(), i, getSuccessor());
     		} catch (RemoteException e) {
     			logger.error("Failed to notify predecessor of node leaving", e);
     		}
     		
     	}
-    	
-    	System.exit(exitCode);
+    }
+    
+    /** Send every fragment held by this node to the target */
+    private void handOverFragments(final Finger target) {
+        final int[] count = new int[1];
+        try {
+            final RemoteChordNodeI node = getChordNode(target);
+            shard.visitFragments(new BlobStore.NameVisitor() {
+                @Override
+                public void visit(String name) throws IOException {
+                    byte[] fragment = shard.getFragment(name);
+                    if (fragment != null) {
+                        node.storeFragment(name, fragment);
+                        count[0]++;
+                    }
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Failed to hand over fragments to "+target, e);
+        }
+        if (count[0] > 0) {
+            logger.info("Handed over "+count[0]+" fragments to "+target);
+        }
+    }
+    
+    /** Stop all background work without telling other nodes, as if this node had crashed */
+    public void stop() {
+        if (stabilizer != null) {
+            stabilizer.stop();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // already shutting down
+            }
+        }
+        if (rangeTransfer != null) {
+            rangeTransfer.shutdown();
+        }
+        if (antiEntropy != null) {
+            antiEntropy.shutdown();
+        }
+        if (replicationQueue != null) {
+            replicationQueue.shutdown();
+        }
+        replicationExecutor.shutdownNow();
+        readExecutor.shutdownNow();
+        stubCache.shutdown();
+        transport.shutdown();
     }
     
     @Override
@@ -392,57 +972,349 @@ public class ChordNode implements RemoteChordNodeI {
     	return Util.withinInterval(identifier, this.getShardId(), this.getSuccessor().shardid-1);
     }
 		
-	/** Look up file on remote replica node, keep looking at successors for replica 
-	 * @throws RemoteException 
-	 * @throws SignatureException */
-	public byte[] forwardLookup(int identifier, String sha256hash, String hmac) throws RemoteException, SignatureException, IOException {
-	    int numTries = REPLICATION_FACTOR;
-	    RemoteChordNodeI replica = null;
-	    while (numTries > 0) {
+	/** Look up file on remote replica node, hedging the request to the owner's successors.
+	 *  The owner is asked first; if it has not answered within the hedge delay, or fails,
+	 *  the next replica is asked as well, and the first copy which verifies is returned.
+	 *  If the route came from the routing cache and no replica has the file, the owner is
+	 *  resolved again and the replicas are tried once more. With erasure coding, the object
+	 *  may be stored as fragments instead, and they are read alongside the replicas as soon
+	 *  as a replica fails or the hedge delay passes.
+	 * @throws RemoteException if no replica could return the file
+	 * @throws SignatureException if every copy which was found is corrupt */
+	public byte[] forwardLookup(int identifier, String sha256hash, String hmac, IdentifierAlgorithm algo) throws RemoteException, SignatureException, IOException {
+	    forwardedReads.mark();
+	    Span span = Tracer.startSpan("forward read");
+	    try {
+	        return forwardRead(identifier, sha256hash, hmac, algo);
+	    } finally {
+	        Tracer.endSpan(span);
+	    }
+	}
+	
+	private byte[] forwardRead(int identifier, String sha256hash, String hmac, IdentifierAlgorithm algo) throws RemoteException, SignatureException, IOException {
+	    ErasureRead fragments = (erasureCoder == null) ? null : new ErasureRead(identifier, sha256hash, hmac, algo);
+	    LookupStep cachedRoute = routingCache.lookup(identifier);
+	    if (cachedRoute != null) {
+	        HedgedRead read = new HedgedRead(cachedRoute, sha256hash, hmac, algo, fragments);
 	        try {
-	            numTries--;
-	            if (replica == null) {
-	                // replica from previous iteration was dead, try looking it up again
-                    replica = getChordNode(findPredecessor(identifier).getLocation());
-	            } else {
-	                // replica from previous iteration returned corrupt data, try its successor
-                    replica = getChordNode(replica.getSuccessor());
+	            return read.run();
+	        } catch (RemoteException | SignatureException e) {
+	            // cached owner may be stale, resolve it again before giving up
+	            logger.info("Read of "+sha256hash+" via cached route failed, resolving owner again");
+	            routingCache.invalidate(identifier);
+	            readRetries.mark();
+	            if (read.fallbackLaunched) {
+	                // the fragments were found without the cached route, so they are not read again
+	                fragments = null;
 	            }
-	            int shardId = replica.getShardId(); // will throw remoteException if this fails
-	            byte[] retrievedData = replica.getFile(sha256hash);
-	            if (retrievedData == null) {
-	                logger.error("Replica "+Integer.toHexString(shardId)+" does not have copy of file "+sha256hash);
-	                continue;
+	        }
+	    }
+	    try {
+	        return new HedgedRead(resolve(this, identifier), sha256hash, hmac, algo, fragments).run();
+	    } catch (RemoteException e) {
+	        routingCache.invalidate(identifier);
+	        throw e;
+	    }
+	}
+	
+	/** State of a single hedged read: the replicas known so far, in ring order, and the
+	 *  requests which have been sent to them. A new request is launched whenever the hedge
+	 *  delay passes without a response, or when every outstanding request has failed.
+	 *  The fallback, if any, is launched alongside the replicas the first time either happens. */
+	private class HedgedRead {
+	    final String sha256hash;
+	    final String hmac;
+	    final IdentifierAlgorithm algo;
+	    final Callable<byte[]> fallback;
+	    final List<Finger> candidates = new ArrayList<Finger>(REPLICATION_FACTOR);
+	    final List<Future<byte[]>> requests = new ArrayList<Future<byte[]>>();
+	    final CompletionService<byte[]> completion = new ExecutorCompletionService<byte[]>(readExecutor);
+	    boolean candidatesExhausted = false;
+	    boolean fallbackLaunched = false;
+	    int replicasAsked = 0;
+	    int outstanding = 0;
+	    
+	    HedgedRead(LookupStep route, String sha256hash, String hmac, IdentifierAlgorithm algo, Callable<byte[]> fallback) {
+	        this.sha256hash = sha256hash;
+	        this.hmac = hmac;
+	        this.algo = algo;
+	        this.fallback = fallback;
+	        candidates.add(route.location);
+	        if (REPLICATION_FACTOR > 1 && !route.successor.equals(route.location)) {
+	            candidates.add(route.successor);
+	        }
+	    }
+	    
+	    byte[] run() throws RemoteException, SignatureException {
+	        Exception lastFailure = null;
+	        SignatureException corruption = null;
+	        try {
+	            while (true) {
+	                if (outstanding == 0 && !launchNext() && !launchFallback()) {
+	                    break;
+	                }
+	                Future<byte[]> response;
+	                if (candidatesExhausted && (fallback == null || fallbackLaunched)) {
+	                    response = completion.take();
+	                } else {
+	                    response = completion.poll(hedgeDelayMillis(), TimeUnit.MILLISECONDS);
+	                    if (response == null) {
+	                        if (launchNext()) {
+	                            hedgedReads.mark();
+	                        }
+	                        launchFallback();
+	                        continue;
+	                    }
+	                }
+	                outstanding--;
+	                try {
+	                    return response.get();
+	                } catch (ExecutionException e) {
+	                    Throwable cause = e.getCause();
+	                    if (cause instanceof SignatureException) {
+	                        logger.error("Signature mismatch", cause.getLocalizedMessage());
+	                        corruption = (SignatureException) cause;
+	                    } else {
+	                        logger.error("Error reading from replica", cause);
+	                    }
+	                    lastFailure = (cause instanceof Exception) ? (Exception) cause : e;
+	                    launchFallback();
+	                }
+	            }
+	        } catch (InterruptedException e) {
+	            Thread.currentThread().interrupt();
+	            throw new RemoteException("Interrupted while reading from replicas", e);
+	        } finally {
+	            for (Future<byte[]> request : requests) {
+	                request.cancel(true);
+	            }
+	        }
+	        if (corruption != null) {
+	            throw corruption;
+	        }
+	        throw new RemoteException("Cannot retrieve file from replicas", lastFailure);
+	    }
+	    
+	    /** Start the fallback unless it has already been started, returns false if it was not started now */
+	    boolean launchFallback() {
+	        if (fallback == null || fallbackLaunched) {
+	            return false;
+	        }
+	        fallbackLaunched = true;
+	        requests.add(completion.submit(TraceContext.wrap(fallback)));
+	        outstanding++;
+	        return true;
+	    }
+	    
+	    /** Send a request to the next replica, returns false if there is none */
+	    boolean launchNext() {
+	        if (replicasAsked >= candidates.size()) {
+	            extendCandidates();
+	        }
+	        if (replicasAsked >= candidates.size()) {
+	            candidatesExhausted = true;
+	            return false;
+	        }
+	        requests.add(completion.submit(TraceContext.wrap(readReplica(candidates.get(replicasAsked), sha256hash, hmac, algo))));
+	        replicasAsked++;
+	        outstanding++;
+	        if (replicasAsked >= REPLICATION_FACTOR) {
+	            candidatesExhausted = true;
+	        }
+	        return true;
+	    }
+	    
+	    /** Append the next replica after the last candidate, from that node's successor list */
+	    void extendCandidates() {
+	        if (candidates.size() >= REPLICATION_FACTOR) {
+	            return;
+	        }
+	        Finger last = candidates.get(candidates.size() - 1);
+	        try {
+	            for (Finger successor : getChordNode(last).getSuccessorList()) {
+	                if (successor != null && !candidates.contains(successor)) {
+	                    candidates.add(successor);
+	                    return;
+	                }
 	            }
-
-	            InputStream downloadInputStream = new ByteArrayInputStream(retrievedData);
-	            byte[] verifiedBytes;
-                verifiedBytes = shard.verifyFile(downloadInputStream, hmac);
-	            return verifiedBytes;
 	        } catch (RemoteException e) {
-	            logger.error("Error looking up remote node", e);
-	            if (numTries <= 0) {
-	                throw e;
-	            } else {
-	                // reset replica, try again after waiting for stabilize to complete
-	                replica = null;
+	            logger.error("Cannot extend replica list past "+last, e);
+	        }
+	    }
+	}
+	
+	/** Rebuild an object from any dataShards of its fragments. Fragment i was stored on the
+	 *  i-th node from the owner, but nodes which joined or failed since then shift where it
+	 *  is, so each node in a window a little larger than the fragments is asked for all of
+	 *  the object's fragments it holds, whatever their index. The first dataShards nodes are
+	 *  asked in parallel, and the next one whenever too few fragments are still expected or
+	 *  the hedge delay passes. Fragments which are no longer on the node where they would be
+	 *  placed now are stored there again once the object has been rebuilt. */
+	private class ErasureRead implements Callable<byte[]> {
+	    final int identifier;
+	    final String sha256hash;
+	    final String hmac;
+	    final IdentifierAlgorithm algo;
+	    final CompletionService<byte[][]> completion = new ExecutorCompletionService<byte[][]>(readExecutor);
+	    final List<Future<byte[][]>> requests = new ArrayList<Future<byte[][]>>();
+	    List<Finger> locations;
+	    
+	    ErasureRead(int identifier, String sha256hash, String hmac, IdentifierAlgorithm algo) {
+	        this.identifier = identifier;
+	        this.sha256hash = sha256hash;
+	        this.hmac = hmac;
+	        this.algo = algo;
+	    }
+	    
+	    @Override
+	    public byte[] call() throws RemoteException, SignatureException, IOException {
+	        logger.info("Reading erasure-coded fragments of "+sha256hash);
+	        erasureFallbacks.mark();
+	        int dataShards = erasureCoder.getDataShards();
+	        int totalShards = erasureCoder.getTotalShards();
+	        locations = fragmentLocations(identifier, totalShards + FRAGMENT_SEARCH_NODES);
+	        ErasureCoder.Fragment[] fragments = new ErasureCoder.Fragment[totalShards];
+	        // whether fragment i was found on the node where it would be placed now
+	        boolean[] placed = new boolean[totalShards];
+	        int received = 0;
+	        int outstanding = 0;
+	        try {
+	            while (true) {
+	                while (received + outstanding < dataShards && requests.size() < locations.size()) {
+	                    launch();
+	                    outstanding++;
+	                }
+	                if (received >= dataShards || outstanding == 0) {
+	                    break;
+	                }
+	                Future<byte[][]> response;
+	                if (requests.size() < locations.size()) {
+	                    response = completion.poll(hedgeDelayMillis(), TimeUnit.MILLISECONDS);
+	                    if (response == null) {
+	                        launch();
+	                        outstanding++;
+	                        hedgedReads.mark();
+	                        continue;
+	                    }
+	                } else {
+	                    response = completion.take();
+	                }
+	                outstanding--;
+	                int node = requests.indexOf(response);
 	                try {
-                        Thread.sleep(Stabilizer.SLEEP_MILLIS + Stabilizer.SLEEP_MILLIS);
-                    } catch (InterruptedException e1) {
-                        logger.error("Thread sleep failed", e);
-                    }
+	                    for (byte[] bytes : response.get()) {
+	                        ErasureCoder.Fragment fragment;
+	                        try {
+	                            fragment = erasureCoder.parse(bytes);
+	                        } catch (IOException e) {
+	                            logger.error("Discarding fragment of "+sha256hash+" from "+locations.get(node), e);
+	                            continue;
+	                        }
+	                        if (fragments[fragment.index] == null) {
+	                            fragments[fragment.index] = fragment;
+	                            received++;
+	                        }
+	                        if (fragment.index == node) {
+	                            placed[node] = true;
+	                        }
+	                    }
+	                } catch (ExecutionException e) {
+	                    logger.error("Error reading fragments of "+sha256hash+" from "+locations.get(node), e.getCause());
+	                }
 	            }
-	        } catch (SignatureException | IOException e) {
-	            logger.error("Signature mismatch", e.getLocalizedMessage());
-	            if (numTries <= 0) {
-	                throw e;
-	            } // try successor replica in next iteration 
-	        } catch (InvalidKeyException | NoSuchAlgorithmException
-                    | NoSuchProviderException e) {
-                logger.error("Failure on uploader user's local node", e);
-            }
+	        } catch (InterruptedException e) {
+	            Thread.currentThread().interrupt();
+	            throw new RemoteException("Interrupted while reading fragments", e);
+	        } finally {
+	            for (Future<byte[][]> request : requests) {
+	                request.cancel(true);
+	            }
+	        }
+	        if (received < dataShards) {
+	            throw new RemoteException("Only "+received+" of "+dataShards+" fragments needed to rebuild "+sha256hash+" were found");
+	        }
+	        byte[] data;
+	        try {
+	            data = shard.verifyFile(new ByteArrayInputStream(erasureCoder.decode(fragments)), hmac, algo);
+	        } catch (InvalidKeyException | NoSuchAlgorithmException | NoSuchProviderException e) {
+	            throw new IOException(e);
+	        }
+	        repair(data, placed);
+	        return data;
+	    }
+	    
+	    /** Ask the next node in the window for every fragment of the object it holds */
+	    void launch() {
+	        final Finger location = locations.get(requests.size());
+	        requests.add(completion.submit(TraceContext.wrap(new Callable<byte[][]>() {
+	            @Override
+	            public byte[][] call() throws RemoteException {
+	                byte[][] fragments = getChordNode(location).getFragments(sha256hash);
+	                return (fragments != null) ? fragments : new byte[0][];
+	            }
+	        })));
+	    }
+	    
+	    /** Store the fragments which were not found on the nodes they would be placed on now, in
+	     *  the background. Only nodes which were asked are known to be missing their fragment. */
+	    void repair(final byte[] data, boolean[] placed) {
+	        final List<Integer> missing = new ArrayList<Integer>();
+	        for (int i = 0; i < placed.length && i < requests.size(); i++) {
+	            if (!placed[i]) {
+	                missing.add(i);
+	            }
+	        }
+	        // in a ring with fewer nodes than fragments, where fragments belong is ambiguous
+	        if (missing.isEmpty() || locations.size() < placed.length) {
+	            return;
+	        }
+	        replicationExecutor.execute(new Runnable() {
+	            @Override
+	            public void run() {
+	                try {
+	                    byte[][] fragments = erasureCoder.encode(data);
+	                    for (int index : missing) {
+	                        getChordNode(locations.get(index)).storeFragment(
+	                                ErasureCoder.fragmentName(sha256hash, index), fragments[index]);
+	                    }
+	                    logger.info("Stored "+missing.size()+" misplaced fragments of "+sha256hash+" again");
+	                } catch (IOException e) {
+	                    logger.error("Failed to repair fragments of "+sha256hash, e);
+	                }
+	            }
+	        });
+	    }
+	}
+	
+	/** Fetch and verify the file from a single replica */
+	private Callable<byte[]> readReplica(final Finger replicaLocation, final String sha256hash, final String hmac,
+	        final IdentifierAlgorithm algo) {
+	    return new Callable<byte[]>() {
+	        @Override
+	        public byte[] call() throws Exception {
+	            Timer.Context timer = replicaReadLatency.time();
+	            byte[] retrievedData;
+	            try {
+	                retrievedData = fetchReplica(getChordNode(replicaLocation), sha256hash);
+	            } finally {
+	                timer.stop();
+	            }
+	            if (retrievedData == null) {
+	                throw new RemoteException("Replica "+Integer.toHexString(replicaLocation.shardid)+" does not have copy of file "+sha256hash);
+	            }
+	            return shard.verifyFile(new ByteArrayInputStream(retrievedData), hmac, algo);
+	        }
+	    };
+	}
+	
+	/** Time to wait for a replica before hedging to the next one: a high percentile of
+	 *  recent replica read latencies, so that only the slowest few reads are duplicated */
+	long hedgeDelayMillis() {
+	    if (replicaReadLatency.getCount() < MIN_HEDGE_SAMPLES) {
+	        return DEFAULT_HEDGE_DELAY_MILLIS;
 	    }
-	    throw new RemoteException("Cannot retrieve file from replicas");
+	    long percentile = TimeUnit.NANOSECONDS.toMillis((long) replicaReadLatency.getSnapshot().getValue(HEDGE_PERCENTILE));
+	    return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(MAX_HEDGE_DELAY_MILLIS, percentile));
 	}
 
 	/** Remote method to return item if contained on this server */
@@ -463,43 +1335,467 @@ public class ChordNode implements RemoteChordNodeI {
 		return fingerTable;
 	}
 	
-	/** Find node where we should start replication from, and send saved file down the ring to be replicated */
-    public void beginReplicatingFile(int identifier, byte[] data) {
+    /** Hand replicas held in store over to their new owner when the ring changes,
+     *  sending at most bytesPerSecond (0 for no limit) */
+    public void enableRangeTransfer(BlobStore store, long bytesPerSecond) {
+        rangeTransfer = new RangeTransfer(this, store, bytesPerSecond, metrics);
+    }
+    
+    /** Periodically compare the replicas in store with the successors' copies and repair
+     *  any differences, moving at most bytesPerSecond (0 for no limit) */
+    public void enableAntiEntropy(MerkleBlobStore store, long intervalSeconds, long bytesPerSecond) {
+        antiEntropy = new AntiEntropy(this, store, intervalSeconds, bytesPerSecond, metrics);
+        antiEntropy.start();
+    }
+    
+    /** Store uploads of at least erasureMinBytes as dataShards + parityShards erasure-coded
+     *  fragments on distinct nodes, instead of as whole replicas */
+    public void enableErasureCoding(int dataShards, int parityShards) {
+        erasureCoder = new ErasureCoder(dataShards, parityShards);
+    }
+    
+    public boolean isErasureCoding() {
+        return erasureCoder != null;
+    }
+    
+    /** Replicate files through a durable background queue kept in journalDir, instead
+     *  of sending them to replicas before the upload is acknowledged */
+    public void enableAsyncReplication(Path journalDir, BlobStore... stores) throws IOException {
+        replicationQueue = new ReplicationQueue(this, journalDir, metrics, stores);
+        replicationQueue.start();
+    }
+    
+	/** Find the nodes which should hold replicas of the file, and send the saved file to them
+	 *  along with its sha256, which replicas store it under without hashing it again.
+	 *  With asynchronous replication the file is only queued, and this returns once the
+	 *  job has been written to disk; failing to record the job is reported to the caller.
+	 * @throws IOException */
+    public void beginReplicatingFile(int identifier, BlobStore store, String name, String sha256hash) throws IOException {
+        if (REPLICATION_FACTOR > 0 && replicationQueue != null) {
+            replicationQueue.enqueue(identifier, store, name, sha256hash, false);
+            return;
+        }
         try {
             if (REPLICATION_FACTOR > 0) {
-                getChordNode(findPredecessor(identifier).getLocation()).replicateFile(data, REPLICATION_FACTOR-1);
+                replicate(sha256hash, objectRef(store, name), replicaLocations(identifier));
             }
-        } catch (RemoteException e) {
+        } catch (IOException e) {
             logger.error("Failed to replicate file", e);
         }
     }
 	
-	/** Receive replication request from predecessor */
+    /** Replicate a content-addressed chunk, unless its owner already has a copy
+     *  (eg: because the same chunk was part of an earlier upload from another node).
+     *  The local copy is removed once the replicas have it, so the chunk is read from them.
+     * @throws IOException */
+    public void beginReplicatingChunk(int identifier, BlobStore store, String sha256hash) throws IOException {
+        if (REPLICATION_FACTOR > 0 && replicationQueue != null) {
+            replicationQueue.enqueue(identifier, store, sha256hash, sha256hash, true);
+            return;
+        }
+        try {
+            if (REPLICATION_FACTOR > 0) {
+                List<Finger> replicas = replicaLocations(identifier);
+                if (getChordNode(replicas.get(0)).hasFile(sha256hash)) {
+                    logger.debug("Owner already has a copy of chunk "+sha256hash);
+                } else {
+                    replicate(sha256hash, objectRef(store, sha256hash), replicas);
+                }
+                store.delete(sha256hash);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to replicate chunk", e);
+        }
+    }
+    
+    /** Encode the object into fragments and store fragment i on the i-th node starting at the
+     *  identifier's owner. If any fragment could not be stored, whole replicas are made as
+     *  well, so that the object is never less durable than without erasure coding.
+     *  With asynchronous replication the object is only queued, as in beginReplicatingFile.
+     * @throws IOException */
+    public void beginErasureCoding(int identifier, BlobStore store, String name, String sha256hash) throws IOException {
+        if (replicationQueue != null) {
+            replicationQueue.enqueueFragments(identifier, store, name, sha256hash);
+            return;
+        }
+        try {
+            storeErasureCoded(identifier, store, name, sha256hash);
+        } catch (IOException e) {
+            logger.error("Failed to store erasure-coded fragments of "+sha256hash+", replicating it instead", e);
+            beginReplicatingFile(identifier, store, name, sha256hash);
+        }
+    }
+    
+    /** Encode the object into fragments and store each of them on its node. Throws if the
+     *  fragments would be larger than MAX_FRAGMENT_BYTES, so that the caller replicates it. */
+    void storeErasureCoded(int identifier, BlobStore store, String name, String sha256hash) throws IOException {
+        BlobRef ref = objectRef(store, name);
+        if (ref.length > (long) erasureCoder.getDataShards() * MAX_FRAGMENT_BYTES) {
+            throw new IOException("Fragments of "+sha256hash+" would exceed "+MAX_FRAGMENT_BYTES+" bytes");
+        }
+        byte[][] fragments = erasureCoder.encode(ref.readAll());
+        storeFragments(fragmentLocations(identifier, fragments.length), sha256hash, fragments);
+    }
+    
+    /** Send each fragment to its node concurrently and wait for all of them */
+    void storeFragments(final List<Finger> locations, final String sha256hash, byte[][] fragments) throws RemoteException {
+        CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(replicationExecutor);
+        for (int i = 0; i < fragments.length; i++) {
+            final int index = i;
+            final byte[] fragment = fragments[i];
+            completion.submit(TraceContext.wrap(new Callable<Integer>() {
+                @Override
+                public Integer call() throws RemoteException {
+                    Finger location = locations.get(index % locations.size());
+                    getChordNode(location).storeFragment(ErasureCoder.fragmentName(sha256hash, index), fragment);
+                    return index;
+                }
+            }));
+        }
+        int stored = 0;
+        RemoteException failure = null;
+        try {
+            for (int i = 0; i < fragments.length; i++) {
+                try {
+                    completion.take().get();
+                    stored++;
+                } catch (ExecutionException e) {
+                    logger.error("Failed to store fragment of "+sha256hash, e.getCause());
+                    failure = new RemoteException("Failed to store fragment", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while storing fragments", e);
+        }
+        if (failure != null) {
+            throw new RemoteException("Only "+stored+" of "+fragments.length+" fragments of "+sha256hash+" were stored", failure);
+        }
+    }
+    
+    /** Nodes which hold the fragments of the identifier: its owner followed by its successors,
+     *  count distinct nodes unless the ring is smaller */
+    List<Finger> fragmentLocations(int identifier, int count) throws RemoteException {
+        List<Finger> locations = replicaLocations(identifier);
+        while (locations.size() < count) {
+            Finger last = locations.get(locations.size() - 1);
+            Finger next = null;
+            for (Finger successor : getChordNode(last).getSuccessorList()) {
+                if (successor != null && !locations.contains(successor)) {
+                    next = successor;
+                    break;
+                }
+            }
+            if (next == null) {
+                logger.warn("Ring has only "+locations.size()+" nodes, some nodes hold several of "+count+" fragments");
+                break;
+            }
+            locations.add(next);
+        }
+        return locations;
+    }
+    
+    private static BlobRef objectRef(BlobStore store, String name) throws IOException {
+        BlobRef ref = store.get(name);
+        if (ref == null) {
+            throw new FileNotFoundException("No object "+name+" in "+store.getName()+" store");
+        }
+        return ref;
+    }
+    
+    /** Send an object to a replica under its sha256, in parts if it is larger than
+     *  REPLICA_PART_BYTES, so that it is never read into memory whole */
+    static void sendReplica(RemoteChordNodeI replica, String sha256hash, BlobRef ref) throws IOException {
+        if (ref.length <= REPLICA_PART_BYTES) {
+            replica.replicateAttested(new String[] { sha256hash }, new byte[][] { ref.readAll() });
+            return;
+        }
+        String transferId = UUID.randomUUID().toString();
+        for (long offset = 0; offset < ref.length; offset += REPLICA_PART_BYTES) {
+            replica.replicatePart(sha256hash, transferId, offset, ref.length, ref.read(offset, REPLICA_PART_BYTES));
+        }
+    }
+    
+    /** Read a replica from another node, in parts if it is larger than REPLICA_PART_BYTES;
+     *  null if the node does not have it */
+    static byte[] fetchReplica(RemoteChordNodeI replica, String sha256hash) throws RemoteException {
+        byte[] part = replica.getFilePart(sha256hash, 0, REPLICA_PART_BYTES);
+        if (part == null || part.length < REPLICA_PART_BYTES) {
+            return part;
+        }
+        ByteArrayOutputStream data = new ByteArrayOutputStream(2 * REPLICA_PART_BYTES);
+        while (part.length == REPLICA_PART_BYTES) {
+            data.write(part, 0, part.length);
+            part = replica.getFilePart(sha256hash, data.size(), REPLICA_PART_BYTES);
+            if (part == null) {
+                // deleted while it was being read
+                return null;
+            }
+        }
+        data.write(part, 0, part.length);
+        return data.toByteArray();
+    }
+    
+    /** Nodes which should hold replicas of the identifier: its owner followed by the
+     *  owner's successors, REPLICATION_FACTOR distinct nodes at most */
+    public List<Finger> replicaLocations(int identifier) throws RemoteException {
+        Finger owner;
+        Finger[] successors;
+        try {
+            owner = lookupOwner(identifier);
+            successors = getChordNode(owner).getSuccessorList();
+        } catch (RemoteException e) {
+            // cached owner may be stale, resolve it again
+            routingCache.invalidate(identifier);
+            owner = findPredecessorLocation(identifier);
+            successors = getChordNode(owner).getSuccessorList();
+        }
+        List<Finger> replicas = new ArrayList<Finger>(REPLICATION_FACTOR);
+        replicas.add(owner);
+        for (Finger successor : successors) {
+            if (replicas.size() >= REPLICATION_FACTOR) {
+                break;
+            }
+            if (successor != null && !replicas.contains(successor)) {
+                replicas.add(successor);
+            }
+        }
+        return replicas;
+    }
+    
+    /** Send the object to all replicas concurrently. Returns once writeQuorum replicas have
+     *  acknowledged it; the remaining copies complete in the background. Small objects are
+     *  read once for all replicas, large ones are streamed to each replica in parts. */
+    void replicate(final String sha256hash, final BlobRef ref, List<Finger> replicas) throws IOException {
+        final String[] names = new String[] { sha256hash };
+        final byte[][] files = (ref.length <= REPLICA_PART_BYTES) ? new byte[][] { ref.readAll() } : null;
+        CompletionService<Finger> completion = new ExecutorCompletionService<Finger>(replicationExecutor);
+        for (final Finger replica : replicas) {
+            completion.submit(TraceContext.wrap(new Callable<Finger>() {
+                @Override
+                public Finger call() throws IOException {
+                    try {
+                        Timer.Context timer = replicaWriteLatency.time();
+                        if (files != null) {
+                            getChordNode(replica).replicateAttested(names, files);
+                        } else {
+                            sendReplica(getChordNode(replica), sha256hash, ref);
+                        }
+                        timer.stop();
+                        replicatedBytes.mark(ref.length);
+                        return replica;
+                    } catch (IOException e) {
+                        logger.error("Failed to replicate file to "+replica, e);
+                        throw e;
+                    }
+                }
+            }));
+        }
+        
+        int quorum = Math.min(writeQuorum, replicas.size());
+        int acks = 0;
+        int failures = 0;
+        try {
+            while (acks < quorum && acks + failures < replicas.size()) {
+                try {
+                    completion.take().get();
+                    acks++;
+                } catch (ExecutionException e) {
+                    failures++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (acks < quorum) {
+            throw new RemoteException("Only "+acks+" of "+replicas.size()+" replicas acknowledged file, write quorum is "+quorum);
+        }
+    }
+    
+    /** Set whether a joining node fills in its whole finger table before it starts stabilizing */
+    public void setFastJoin(boolean fastJoin) {
+        this.fastJoin = fastJoin;
+    }
+    
+    /** Set the number of replicas which must acknowledge a file before replication returns */
+    public void setWriteQuorum(int writeQuorum) {
+        this.writeQuorum = Math.max(1, writeQuorum);
+    }
+
+    /** Set the time between rounds of stabilization while the ring changes, and the
+     *  longest time it backs off to while it does not; takes effect after the current round */
+    public void setStabilizeMillis(long stabilizeMillis, long maxStabilizeMillis) {
+        this.stabilizeMillis = Math.max(1, stabilizeMillis);
+        this.maxStabilizeMillis = Math.max(this.stabilizeMillis, maxStabilizeMillis);
+    }
+    
+    /** Return successor list, used to find replica nodes */
+    @Override
+    public Finger[] getSuccessorList() {
+        return successorList;
+    }
+    
+	/** Remote method to return part of a replica if it is stored on this server */
+	@Override
+	public byte[] getFilePart(String hash, long offset, int length) throws RemoteException {
+	    if (length > REPLICA_PART_BYTES) {
+	        throw new RemoteException("Part of "+length+" bytes exceeds "+REPLICA_PART_BYTES);
+	    }
+	    try {
+	        return shard.getReplicaPart(hash, offset, length);
+	    } catch (IOException e) {
+	        logger.error("Failed to read part of "+hash, e);
+	        throw new RemoteException("Failed to read part of "+hash, e);
+	    }
+	}
+	
+	/** Remote method to check whether this server holds a replica of the object */
+	@Override
+	public boolean hasFile(String hash) {
+		return shard.hasReplica(hash);
+	}
+	
+	/** Receive replication request. The file is also passed on to the next nodesLeft
+	 *  successors; throws if the file could not be saved on this node, so that the
+	 *  sender does not count it as a replica. */
 	@Override
-	public void replicateFile(byte[] data, int nodesLeft) {
+	public void replicateFile(byte[] data, int nodesLeft) throws RemoteException {
 		InputStream uploadInputStream = new ByteArrayInputStream(data);
 		
+		RemoteException saveFailure = null;
 		try {
 		    // always use SHA256_REPLICATE for replicated files, since
             // only the user's node has secret key for HMAC
 			shard.saveFile(uploadInputStream, IdentifierAlgorithm.SHA256_REPLICATE);
 		} catch (Exception e) {
 			logger.error("Failed to save replicated file", e);
+			saveFailure = new RemoteException("Failed to save replicated file", e);
 		}
 		
 		if (nodesLeft > 0) {
 			try {
+				Timer.Context timer = replicaWriteLatency.time();
 				getChordNode(getSuccessor()).replicateFile(data, nodesLeft - 1);
+				timer.stop();
+				replicatedBytes.mark(data.length);
 			} catch (RemoteException e) {
 				logger.error("Failed to replicate file further", e);
 			}
 		}
+		if (saveFailure != null) {
+		    throw saveFailure;
+		}
 	}
 
 	
+	/** Receive a batch of small replicas. Throws if any of them could not be saved, in which
+	 *  case the sender retries the whole batch; saving a replica twice is harmless. */
+	@Override
+	public void replicateFiles(byte[][] files) throws RemoteException {
+	    RemoteException saveFailure = null;
+	    for (byte[] data : files) {
+	        try {
+	            replicateFile(data, 0);
+	        } catch (RemoteException e) {
+	            saveFailure = e;
+	        }
+	    }
+	    if (saveFailure != null) {
+	        throw saveFailure;
+	    }
+	}
+	
+	/** Receive replicas named by the sha256 which the sender computed, storing them without
+	 *  hashing them again. A replica which does not match its name is caught when it is
+	 *  read, since readers verify every object they fetch, or by anti-entropy scrubbing.
+	 *  Throws if any of them could not be saved, in which case the sender retries. */
+	@Override
+	public void replicateAttested(String[] sha256hashes, byte[][] files) throws RemoteException {
+	    if (sha256hashes.length != files.length) {
+	        throw new RemoteException("Got "+sha256hashes.length+" names for "+files.length+" replicas");
+	    }
+	    RemoteException saveFailure = null;
+	    for (int i = 0; i < files.length; i++) {
+	        try {
+	            shard.saveAttestedReplica(sha256hashes[i], files[i]);
+	        } catch (IOException e) {
+	            logger.error("Failed to save replica "+sha256hashes[i], e);
+	            saveFailure = new RemoteException("Failed to save replica "+sha256hashes[i], e);
+	        }
+	    }
+	    if (saveFailure != null) {
+	        throw saveFailure;
+	    }
+	}
+	
+	/** Receive one part of a replica too large to send in a single call */
+	@Override
+	public void replicatePart(String sha256hash, String transferId, long offset, long totalLength, byte[] data) throws RemoteException {
+	    try {
+	        shard.saveReplicaPart(sha256hash, transferId, offset, totalLength, data);
+	    } catch (IOException e) {
+	        logger.error("Failed to save part of replica "+sha256hash, e);
+	        throw new RemoteException("Failed to save part of replica "+sha256hash, e);
+	    }
+	}
+	
+	/** Remote method to save a fragment of an erasure-coded object */
+	@Override
+	public void storeFragment(String name, byte[] fragment) throws RemoteException {
+	    try {
+	        shard.saveFragment(name, fragment);
+	    } catch (IOException e) {
+	        logger.error("Failed to save fragment "+name, e);
+	        throw new RemoteException("Failed to save fragment", e);
+	    }
+	}
+	
+	/** Remote method to return a fragment if it is stored on this server */
+	@Override
+	public byte[] getFragment(String name) {
+	    try {
+	        return shard.getFragment(name);
+	    } catch (IOException e) {
+	        logger.error("Error getting fragment "+name, e);
+	        return null;
+	    }
+	}
+	
+	/** Remote method to return every fragment of an object stored on this server */
+	@Override
+	public byte[][] getFragments(String sha256hash) {
+	    try {
+	        return shard.getFragments(sha256hash);
+	    } catch (IOException e) {
+	        logger.error("Error getting fragments of "+sha256hash, e);
+	        return null;
+	    }
+	}
+	
+	/** Remote method returning digests from the hash tree of this server's replicas */
+	@Override
+	public long[] replicaDigests(int[] treeNodes) {
+	    return (antiEntropy == null) ? null : antiEntropy.digests(treeNodes);
+	}
+	
+	/** Remote method listing this server's replicas within an identifier range */
+	@Override
+	public String[] listReplicas(int start, int end) throws RemoteException {
+	    if (antiEntropy == null) {
+	        return new String[0];
+	    }
+	    try {
+	        return antiEntropy.list(start, end);
+	    } catch (IOException e) {
+	        throw new RemoteException("Failed to list replicas", e);
+	    }
+	}
+	
 	/** Used to update successor list */
 	@Override
 	public void refreshSuccessors(int nodesLeft) throws RemoteException {
+		// called when a successor changed, so stabilize again soon
+		ringChanged();
 		Set<Integer> seenSuccessors = new HashSet<Integer>();
 		Finger successor = getSuccessor();
 		for (int i = 0; i < REPLICATION_FACTOR; i++) {
@@ -526,12 +1822,16 @@ public class ChordNode implements RemoteChordNodeI {
 		return getSuccessor().shardid != location.shardid;
 	}
 	
-	/** Try successor list if successor is unreachable */
+	/** Try successor list, then fingers, if successor is unreachable */
 	public void updateSuccessor() {
 		boolean success = false;
 		
 		for (int i = 1; i < REPLICATION_FACTOR; i++) {
+			if (successorList[i] == null) {
+				continue;
+			}
 			fingerTable[0] = successorList[i];
+			routingCache.clear();
 			try {
 				// Update successor list using new direct successor
 				refreshSuccessors(0);
@@ -542,35 +1842,121 @@ public class ChordNode implements RemoteChordNodeI {
 			}
 		}
 		
+		// Fall back to the closest finger which is not known to be down;
+		// stabilization then walks back to the true successor through predecessors
+		for (int i = 1; i < NUM_FINGERS && !success; i++) {
+			Finger finger = fingerTable[i];
+			if (finger == null || finger.equals(location) || stubCache.isSuspected(finger)) {
+				continue;
+			}
+			fingerTable[0] = finger;
+			routingCache.clear();
+			try {
+				refreshSuccessors(0);
+				success = true;
+			} catch (RemoteException e) {
+				logger.error("Unreachable finger while recovering from successor failure", e);
+			}
+		}
+		
 		if (success) {
 			logger.info("Successfully recovered from successor failure");
+			successorChanges.mark();
+			ringChanged();
 		} else {
-			logger.error("All successors are unreachable. Exiting...");
-//			leave(1);
+			logger.error("All successors are unreachable");
 		}
 	}
     
-    public class Stabilizer extends Thread {
-        final static int SLEEP_MILLIS = 1000;
+    /** Runs rounds of stabilization and finger fixing on the shared scheduler. The delay
+     *  between rounds doubles, up to maxStabilizeMillis, while rounds find nothing to change,
+     *  and drops back to stabilizeMillis as soon as this node's successor or predecessor
+     *  changes or fails, so that a quiet ring costs few calls and churn is repaired quickly.
+     *  Changed or failed fingers only stop the delay from growing, since they do not affect
+     *  whether lookups find the right node. */
+    public class Stabilizer implements Runnable {
+        final static long MIN_DELAY_MILLIS = 1000;
+        final static long MAX_DELAY_MILLIS = 16000;
+        
+        /** Set when a change is seen during or between rounds */
+        private final AtomicBoolean changed = new AtomicBoolean();
+        private final AtomicBoolean fingersChanged = new AtomicBoolean();
+        /** Guarded by this; nextRound is null while a round is running */
+        private long delayMillis;
+        private ScheduledFuture<?> nextRound;
+        private boolean stopped;
+        
+        synchronized void start() {
+            delayMillis = stabilizeMillis;
+            nextRound = stabilizationScheduler.schedule(this, 0, TimeUnit.MILLISECONDS);
+        }
         
-        /** Run stabilization and fix fingers for ChordNode */
+        /** Run stabilization and fix fingers for ChordNode, then schedule the next round */
+        @Override
         public void run() {
+            synchronized (this) {
+                nextRound = null;
+            }
             try {
-                while (!Thread.currentThread().isInterrupted()) {
-                    stabilize();
-                    fixFingers();
-//                    logger.info("Node "+Integer.toHexString(location.shardid)+" predecessor="+Integer.toHexString(predecessor.shardid)+" successor="+Integer.toHexString(fingerTable[0].shardid));
-                    Thread.sleep(SLEEP_MILLIS);
+                checkPredecessor();
+                stabilize();
+                fixFingers();
+//                logger.info("Node "+Integer.toHexString(location.shardid)+" predecessor="+Integer.toHexString(predecessor.shardid)+" successor="+Integer.toHexString(fingerTable[0].shardid));
+            } catch (RuntimeException e) {
+                // the scheduler would silently drop this node's rounds if the exception escaped
+                logger.error("Stabilization round failed", e);
+                changed.set(true);
+            }
+            synchronized (this) {
+                if (stopped) {
+                    return;
                 }
-            } catch (InterruptedException e) {
-                logger.info("Stabilizer exiting...", e);
+                boolean wasFingersChanged = fingersChanged.getAndSet(false);
+                if (changed.getAndSet(false)) {
+                    delayMillis = stabilizeMillis;
+                } else if (!wasFingersChanged) {
+                    delayMillis = Math.min(delayMillis * 2, maxStabilizeMillis);
+                }
+                nextRound = stabilizationScheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        /** Run the next round after stabilizeMillis rather than waiting out a backed-off delay */
+        void wake() {
+            changed.set(true);
+            synchronized (this) {
+                // a round which is running schedules the next one itself once it finishes
+                if (stopped || nextRound == null || delayMillis <= stabilizeMillis) {
+                    return;
+                }
+                if (nextRound.cancel(false)) {
+                    delayMillis = stabilizeMillis;
+                    nextRound = stabilizationScheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        
+        /** Keep the current delay after this round instead of backing off further */
+        void hold() {
+            fingersChanged.set(true);
+        }
+        
+        synchronized long getDelayMillis() {
+            return delayMillis;
+        }
+        
+        /** Stop running rounds; a round in progress finishes */
+        synchronized void stop() {
+            stopped = true;
+            if (nextRound != null) {
+                nextRound.cancel(false);
             }
         }
         
-        /** Kill stabilization thread */
+        /** Stop stabilization and leave the ring */
         public void cancel() {
-            interrupt();
-            leave(0);
+            stop();
+            leave();
         }
     }
 }
@@ -0,0 +1,17 @@
+package edu.stanford.cs244b.chord;
+
+import java.rmi.RemoteException;
+
+/** Mechanism used by ChordNodes to talk to each other. All nodes in a ring
+ *  must use the same transport. */
+public interface ChordTransport {
+    /** Make the local node reachable by remote nodes at the given location */
+    void export(RemoteChordNodeI node, Finger location) throws RemoteException;
+    
+    /** Obtain a stub for the node at the given location. The remote node is not
+     *  necessarily contacted, so the stub may refer to a node that is down. */
+    RemoteChordNodeI connect(Finger location) throws RemoteException;
+    
+    /** Stop serving the local node and close connections to remote nodes */
+    void shutdown();
+}
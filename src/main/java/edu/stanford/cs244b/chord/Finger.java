@@ -25,6 +25,21 @@ public class Finger implements Serializable {
         return "rmi://"+host.getHostAddress()+":"+port+"/"+ChordNode.class.getCanonicalName();
     }
     
+    /** Fingers are equal if they refer to the same host and port */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Finger)) {
+            return false;
+        }
+        Finger finger = (Finger) other;
+        return port == finger.port && host.equals(finger.host);
+    }
+    
+    @Override
+    public int hashCode() {
+        return 31 * host.hashCode() + port;
+    }
+    
     @Override
     public String toString() {
         return "shardid="+Integer.toHexString(shardid)+" @"+host+":"+port;
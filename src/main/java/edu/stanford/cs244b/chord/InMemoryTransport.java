@@ -0,0 +1,128 @@
+package edu.stanford.cs244b.chord;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** Transport connecting ChordNodes which run in the same JVM, used to simulate large
+ *  rings without sockets. Every node gets its own transport on a shared {@link Network},
+ *  and a call is a direct method call on the target node, after an optional delay
+ *  standing in for the network round trip.
+ *  <p/>
+ *  Stubs look their node up on every call, so a node which has failed or left makes
+ *  calls to it throw RemoteException just as a node that is down would. */
+public class InMemoryTransport implements ChordTransport {
+
+    /** Nodes reachable from each other, keyed by location */
+    public static class Network {
+        private final ConcurrentHashMap<Finger, RemoteChordNodeI> nodes = new ConcurrentHashMap<Finger, RemoteChordNodeI>();
+        private final long latencyNanos;
+        private final AtomicLong calls = new AtomicLong();
+        private final ThreadLocal<int[]> lookupSteps = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                return new int[1];
+            }
+        };
+
+        /** Network where every call takes at least latencyMicros */
+        public Network(long latencyMicros) {
+            this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        }
+
+        /** Make the node at location unreachable without telling any other node, as if it had crashed */
+        public void fail(Finger location) {
+            nodes.remove(location);
+        }
+
+        /** Number of calls made between all nodes so far */
+        public long getCalls() {
+            return calls.get();
+        }
+
+        /** Number of lookupStep calls made by this thread since the last call, ie: the hops of the lookups it made */
+        public int takeLookupSteps() {
+            int[] steps = lookupSteps.get();
+            int taken = steps[0];
+            steps[0] = 0;
+            return taken;
+        }
+    }
+
+    private final Network network;
+    private Finger exportedLocation;
+
+    public InMemoryTransport(Network network) {
+        this.network = network;
+    }
+
+    @Override
+    public void export(RemoteChordNodeI node, Finger location) throws RemoteException {
+        if (network.nodes.putIfAbsent(location, node) != null) {
+            throw new RemoteException("Location "+location+" is already in use");
+        }
+        exportedLocation = location;
+    }
+
+    @Override
+    public RemoteChordNodeI connect(final Finger location) throws RemoteException {
+        return (RemoteChordNodeI) Proxy.newProxyInstance(RemoteChordNodeI.class.getClassLoader(),
+                new Class<?>[] {RemoteChordNodeI.class, RemoteStub.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == RemoteStub.class) {
+                    return location;
+                } else if (method.getDeclaringClass() == Object.class) {
+                    return method.invoke(this, args);
+                }
+                network.calls.incrementAndGet();
+                if (network.latencyNanos > 0) {
+                    LockSupport.parkNanos(network.latencyNanos);
+                }
+                RemoteChordNodeI node = network.nodes.get(location);
+                if (node == null) {
+                    throw new RemoteException("No ChordNode at location "+location);
+                }
+                if (method.getName().equals("lookupStep")) {
+                    network.lookupSteps.get()[0]++;
+                }
+                try {
+                    return copyArray(method.invoke(node, args));
+                } catch (InvocationTargetException e) {
+                    // like RMI, report exceptions thrown by the remote method as ServerException,
+                    // so that they are not mistaken for the node being unreachable
+                    if (e.getCause() instanceof RemoteException) {
+                        throw new ServerException("Remote call failed", (RemoteException) e.getCause());
+                    }
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        if (exportedLocation != null) {
+            network.nodes.remove(exportedLocation);
+        }
+    }
+
+    /** Callers of a real transport get their own copy of arrays such as the finger table */
+    private static Object copyArray(Object result) {
+        if (result == null || !result.getClass().isArray()) {
+            return result;
+        }
+        int length = Array.getLength(result);
+        Object copy = Array.newInstance(result.getClass().getComponentType(), length);
+        System.arraycopy(result, 0, copy, 0, length);
+        return copy;
+    }
+}
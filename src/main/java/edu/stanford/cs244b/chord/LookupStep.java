@@ -0,0 +1,24 @@
+package edu.stanford.cs244b.chord;
+
+import java.io.Serializable;
+
+/** Answer to a single hop of an iterative lookup: the location and successor of the
+ *  node that was asked, and the closest preceding finger it knows for the identifier.
+ *  Returned as plain data so that a hop costs exactly one round trip. */
+@SuppressWarnings("serial")
+public class LookupStep implements Serializable {
+    public final Finger location;
+    public final Finger successor;
+    public final Finger nextHop;
+    
+    public LookupStep(Finger location, Finger successor, Finger nextHop) {
+        this.location = location;
+        this.successor = successor;
+        this.nextHop = nextHop;
+    }
+    
+    @Override
+    public String toString() {
+        return "location="+location+" successor="+successor+" nextHop="+nextHop;
+    }
+}
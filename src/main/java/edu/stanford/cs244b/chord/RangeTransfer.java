@@ -0,0 +1,265 @@
+package edu.stanford.cs244b.chord;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import edu.stanford.cs244b.Util;
+import edu.stanford.cs244b.storage.BlobRef;
+import edu.stanford.cs244b.storage.BlobStore;
+
+/** Moves replicas to the node which has become responsible for them after the ring
+ *  changed. Transfers run one at a time on a background thread; each streams the
+ *  objects whose identifiers fall within a range to the new owner in bounded batches,
+ *  throttled to a maximum rate, and only deletes the local copies once the new owner
+ *  has acknowledged them. Until then reads are served by the remaining replicas. */
+public class RangeTransfer {
+    final static Logger logger = LoggerFactory.getLogger(RangeTransfer.class);
+
+    /** Upper bounds on the objects and data sent in a single replicateAttested call;
+     *  larger objects are sent on their own */
+    final static int MAX_BATCH_FILES = 64;
+    final static long MAX_BATCH_BYTES = 1024 * 1024;
+
+    /** A batch which still fails after this many attempts ends the transfer */
+    final static int MAX_ATTEMPTS = 5;
+    final static long INITIAL_BACKOFF_MILLIS = 500;
+
+    /** How long a leaving node waits for its range to reach its predecessor */
+    final static long LEAVE_TIMEOUT_SECONDS = 30;
+
+    private final ChordNode node;
+    private final BlobStore store;
+    private final long bytesPerSecond;
+
+    private final ExecutorService transfers = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "range-transfer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicInteger pendingTransfers = new AtomicInteger();
+
+    private final Meter transferredFiles;
+    private final Meter transferredBytes;
+    private final Meter deletedFiles;
+    private final Meter failures;
+
+    /** Transfer objects held in store, sending at most bytesPerSecond (0 for no limit) */
+    public RangeTransfer(ChordNode node, BlobStore store, long bytesPerSecond, MetricRegistry metrics) {
+        this.node = node;
+        this.store = store;
+        this.bytesPerSecond = bytesPerSecond;
+
+        transferredFiles = metrics.meter(MetricRegistry.name(RangeTransfer.class, "transferred-files"));
+        transferredBytes = metrics.meter(MetricRegistry.name(RangeTransfer.class, "transferred-bytes"));
+        deletedFiles = metrics.meter(MetricRegistry.name(RangeTransfer.class, "deleted-files"));
+        failures = metrics.meter(MetricRegistry.name(RangeTransfer.class, "failures"));
+        metrics.register(MetricRegistry.name(RangeTransfer.class, "pending"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return pendingTransfers.get();
+            }
+        });
+    }
+
+    /** Send the objects with identifiers in [start, end] to newOwner in the background.
+     *  With removeLocal, copies which this node no longer has to hold are deleted once sent. */
+    public Future<?> transfer(final int start, final int end, final Finger newOwner, final boolean removeLocal) {
+        pendingTransfers.incrementAndGet();
+        return transfers.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runTransfer(start, end, newOwner, removeLocal);
+                } catch (IOException | RuntimeException e) {
+                    failures.mark();
+                    logger.error("Failed to transfer range "+Integer.toHexString(start)+"-"+
+                            Integer.toHexString(end)+" to "+newOwner, e);
+                } finally {
+                    pendingTransfers.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /** Hand the range to newOwner before leaving the ring, waiting at most LEAVE_TIMEOUT_SECONDS */
+    public void transferBeforeLeaving(int start, int end, Finger newOwner) {
+        Future<?> result = transfer(start, end, newOwner, false);
+        try {
+            result.get(LEAVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.error("Range was not fully transferred to "+newOwner+" before leaving", e);
+        }
+    }
+
+    public void shutdown() {
+        transfers.shutdownNow();
+    }
+
+    private void runTransfer(final int start, final int end, Finger newOwner, boolean removeLocal) throws IOException {
+        final List<String> names = new ArrayList<String>();
+        store.visitNames("", new BlobStore.NameVisitor() {
+            @Override
+            public void visit(String name) {
+                try {
+                    if (Util.withinInterval(Util.hexStringToIdentifier(name), start, end)) {
+                        names.add(name);
+                    }
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    // not named by a digest, so not placed on the ring
+                }
+            }
+        });
+        if (names.isEmpty()) {
+            return;
+        }
+        logger.info("Transferring "+names.size()+" objects in "+Integer.toHexString(start)+"-"+
+                Integer.toHexString(end)+" to "+newOwner);
+
+        RemoteChordNodeI owner = node.getChordNode(newOwner);
+        // on a small ring this node may still be one of the new owner's replicas
+        boolean keepLocal = !removeLocal || isReplicaOf(owner);
+
+        long startNanos = System.nanoTime();
+        long sentBytes = 0;
+        List<String> batchNames = new ArrayList<String>();
+        List<byte[]> batchFiles = new ArrayList<byte[]>();
+        long batchBytes = 0;
+        for (String name : names) {
+            BlobRef ref = store.get(name);
+            if (ref == null) {
+                continue;
+            }
+            if (ref.length > MAX_BATCH_BYTES) {
+                // large objects go on their own, in parts, so that they are never read whole
+                sendLarge(owner, newOwner, name, ref, keepLocal);
+                sentBytes += ref.length;
+                throttle(startNanos, sentBytes);
+                continue;
+            }
+            byte[] data = ref.readAll();
+            batchNames.add(name);
+            batchFiles.add(data);
+            batchBytes += data.length;
+            if (batchFiles.size() >= MAX_BATCH_FILES || batchBytes >= MAX_BATCH_BYTES) {
+                sendBatch(owner, newOwner, batchNames, batchFiles, batchBytes, keepLocal);
+                sentBytes += batchBytes;
+                throttle(startNanos, sentBytes);
+                batchNames.clear();
+                batchFiles.clear();
+                batchBytes = 0;
+            }
+        }
+        if (!batchFiles.isEmpty()) {
+            sendBatch(owner, newOwner, batchNames, batchFiles, batchBytes, keepLocal);
+        }
+    }
+
+    private boolean isReplicaOf(RemoteChordNodeI owner) throws RemoteException {
+        Finger[] successors = owner.getSuccessorList();
+        for (int i = 0; i < successors.length && i < ChordNode.REPLICATION_FACTOR - 1; i++) {
+            if (node.getLocation().equals(successors[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Send one batch, retrying with backoff, and delete the local copies once it is acknowledged */
+    private void sendBatch(RemoteChordNodeI owner, Finger newOwner, List<String> names, List<byte[]> files,
+            long bytes, boolean keepLocal) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                owner.replicateAttested(names.toArray(new String[names.size()]), files.toArray(new byte[files.size()][]));
+                break;
+            } catch (RemoteException e) {
+                failures.mark();
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn("Failed to send batch of "+files.size()+" objects to "+newOwner+", retrying", e);
+                sleep(INITIAL_BACKOFF_MILLIS << (attempt - 1));
+            }
+        }
+        transferredFiles.mark(files.size());
+        transferredBytes.mark(bytes);
+        if (!keepLocal) {
+            deleteTransferred(names);
+        }
+    }
+
+    /** Send one large object, retrying with backoff, and delete the local copy once it is acknowledged */
+    private void sendLarge(RemoteChordNodeI owner, Finger newOwner, String name, BlobRef ref,
+            boolean keepLocal) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                ChordNode.sendReplica(owner, name, ref);
+                break;
+            } catch (RemoteException e) {
+                failures.mark();
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn("Failed to send "+name+" to "+newOwner+", retrying", e);
+                sleep(INITIAL_BACKOFF_MILLIS << (attempt - 1));
+            }
+        }
+        transferredFiles.mark();
+        transferredBytes.mark(ref.length);
+        if (!keepLocal) {
+            deleteTransferred(Collections.singletonList(name));
+        }
+    }
+
+    private void deleteTransferred(List<String> names) throws IOException {
+        for (String name : names) {
+            // the ring may have changed again while sending, never drop an object this node owns
+            if (!node.ownsIdentifier(Util.hexStringToIdentifier(name)) && store.delete(name)) {
+                deletedFiles.mark();
+            }
+        }
+    }
+
+    /** Sleep until sending sentBytes since startNanos stays within bytesPerSecond */
+    private void throttle(long startNanos, long sentBytes) throws IOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long dueMillis = sentBytes * 1000 / bytesPerSecond;
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (dueMillis > elapsedMillis) {
+            sleep(dueMillis - elapsedMillis);
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during range transfer", e);
+        }
+    }
+}
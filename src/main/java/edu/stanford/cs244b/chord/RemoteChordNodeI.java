@@ -38,17 +38,60 @@ public interface RemoteChordNodeI extends Remote {
     /** Return closest preceding id */
     public abstract RemoteChordNodeI closestPrecedingFinger(int identifier) throws RemoteException;
     
+    /** Return this node's location and successor together with its closest preceding
+     *  finger for the identifier, so that an iterative lookup costs one round trip per hop */
+    public abstract LookupStep lookupStep(int identifier) throws RemoteException;
+    
     /** Remove node from finger table */
     public abstract void removeNode(Finger node, int index, Finger replacement) throws RemoteException;
     
     /** Look up file located on this server */
     public byte[] getFile(String hash) throws RemoteException;
     
+    /** Read up to length bytes of a replica starting at offset, null if this server does not
+     *  hold it; a part shorter than length is the end of the replica */
+    public byte[] getFilePart(String hash, long offset, int length) throws RemoteException;
+    
+    /** Check whether this server holds a replica of the file, without transferring it */
+    public boolean hasFile(String hash) throws RemoteException;
+    
     /** Return finger table */
     public Finger[] getFingerTable() throws RemoteException;
     
+    /** Return list of successors, the nodes that hold replicas of objects owned by this node */
+    public Finger[] getSuccessorList() throws RemoteException;
+    
     /** Save replica of file received from previous server */
     public void replicateFile(byte[] data, int nodesLeft) throws RemoteException;
     
+    /** Save replicas of a batch of small files in a single round trip */
+    public void replicateFiles(byte[][] files) throws RemoteException;
+    
+    /** Save replicas under the sha256 computed by the sender, which the receiver trusts
+     *  rather than hashing them again; files[i] is named sha256hashes[i] */
+    public void replicateAttested(String[] sha256hashes, byte[][] files) throws RemoteException;
+    
+    /** Save one part of a replica too large to send in a single call. The parts of a transfer
+     *  must arrive in order; once the last one has, the replica is checked against its sha256
+     *  and saved. A transfer which fails part way is restarted with a new transferId. */
+    public void replicatePart(String sha256hash, String transferId, long offset, long totalLength, byte[] data) throws RemoteException;
+    
+    /** Save an erasure-coded fragment of an object under the given name */
+    public void storeFragment(String name, byte[] fragment) throws RemoteException;
+    
+    /** Look up an erasure-coded fragment stored on this server, null if it is not present */
+    public byte[] getFragment(String name) throws RemoteException;
+    
+    /** Every erasure-coded fragment of the object with the given sha256 stored on this server,
+     *  whichever fragment indexes they are */
+    public byte[][] getFragments(String sha256hash) throws RemoteException;
+    
+    /** Digests of nodes of the hash tree over this server's replicas, numbered as in MerkleTree;
+     *  null if this server does not keep one */
+    public long[] replicaDigests(int[] treeNodes) throws RemoteException;
+    
+    /** Names of the replicas held by this server with identifiers in [start, end] */
+    public String[] listReplicas(int start, int end) throws RemoteException;
+    
     public void refreshSuccessors(int nodesLeft) throws RemoteException;
 }
\ No newline at end of file
@@ -0,0 +1,7 @@
+package edu.stanford.cs244b.chord;
+
+/** Implemented by local proxies for remote nodes, so that a reference to a remote
+ *  node can be passed on without asking the node for its location */
+public interface RemoteStub {
+    Finger getStubLocation();
+}
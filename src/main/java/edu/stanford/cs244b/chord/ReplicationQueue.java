@@ -0,0 +1,554 @@
+package edu.stanford.cs244b.chord;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import edu.stanford.cs244b.storage.BlobRef;
+import edu.stanford.cs244b.storage.BlobStore;
+import edu.stanford.cs244b.storage.ObjectDirectory;
+
+/** Background replication stage. Every saved object becomes a job which is written
+ *  to a journal directory before the upload is acknowledged, so pending copies
+ *  survive a restart. A pool of workers sends jobs to their replicas, batching
+ *  small files which go to the same node into a single replicateAttested call, and
+ *  retries failed copies with exponential backoff. Objects which are erasure-coded
+ *  have their fragments stored by the workers instead. */
+public class ReplicationQueue {
+    final static Logger logger = LoggerFactory.getLogger(ReplicationQueue.class);
+
+    final static int WORKERS = 4;
+
+    /** Maximum number of jobs taken from the queue by a worker at once */
+    final static int MAX_BATCH_JOBS = 64;
+
+    /** Files up to this size are batched, larger files are sent on their own */
+    final static long SMALL_FILE_BYTES = 64 * 1024;
+
+    /** Upper bound on the data sent in a single replicateAttested call */
+    final static long MAX_BATCH_BYTES = 1024 * 1024;
+
+    final static long INITIAL_BACKOFF_MILLIS = 500;
+    final static long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+    /** Copies which still fail after this many attempts are dropped */
+    final static int MAX_ATTEMPTS = 12;
+
+    private final static String JOB_PREFIX = "job-";
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    /** An object to be copied to one replica, or to all replicas of its identifier if target is null */
+    static class Job implements Delayed {
+        final String id;
+        final int identifier;
+        /** Name of the BlobStore which holds the object, and the object's name within it */
+        final String store;
+        final String name;
+        /** sha256 under which replicas store the object */
+        final String sha256;
+        final Finger target;
+        /** sha256 of a content-addressed chunk, which is skipped if the owner already has it */
+        final String chunkSha256;
+        /** Whether the object is stored as erasure-coded fragments rather than whole replicas */
+        final boolean fragments;
+        final int attempts;
+        final long createdMillis;
+        final long readyMillis;
+
+        Job(String id, int identifier, String store, String name, String sha256, Finger target, String chunkSha256,
+                boolean fragments, int attempts, long createdMillis, long readyMillis) {
+            this.id = id;
+            this.identifier = identifier;
+            this.store = store;
+            this.name = name;
+            this.sha256 = sha256;
+            this.target = target;
+            this.chunkSha256 = chunkSha256;
+            this.fragments = fragments;
+            this.attempts = attempts;
+            this.createdMillis = createdMillis;
+            this.readyMillis = readyMillis;
+        }
+
+        /** The job to run after this one failed to reach the given target */
+        Job retry(Finger failedTarget) {
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempts, 16));
+            return new Job(newJobId(), identifier, store, name, sha256, failedTarget, chunkSha256, fragments,
+                    attempts + 1, createdMillis, System.currentTimeMillis() + backoff);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(readyMillis, ((Job) other).readyMillis);
+        }
+    }
+
+    private final ChordNode node;
+    private final Path journalDir;
+    private final Map<String, BlobStore> stores = new LinkedHashMap<String, BlobStore>();
+    private final DelayQueue<Job> readyJobs = new DelayQueue<Job>();
+    private final Map<String, Job> pendingJobs = new ConcurrentHashMap<String, Job>();
+
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "replication-queue");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Meter replicatedFiles;
+    private final Meter replicatedBytes;
+    private final Meter failures;
+    private final Meter droppedJobs;
+    private final Timer batchTimer;
+
+    public ReplicationQueue(ChordNode node, Path journalDir, MetricRegistry metrics, BlobStore... stores) throws IOException {
+        this.node = node;
+        this.journalDir = journalDir;
+        for (BlobStore store : stores) {
+            this.stores.put(store.getName(), store);
+        }
+        Files.createDirectories(journalDir);
+        ObjectDirectory.syncDirectory(journalDir.toAbsolutePath().getParent());
+
+        replicatedFiles = metrics.meter(MetricRegistry.name(ReplicationQueue.class, "replicated-files"));
+        replicatedBytes = metrics.meter(MetricRegistry.name(ReplicationQueue.class, "replicated-bytes"));
+        failures = metrics.meter(MetricRegistry.name(ReplicationQueue.class, "failures"));
+        droppedJobs = metrics.meter(MetricRegistry.name(ReplicationQueue.class, "dropped"));
+        batchTimer = metrics.timer(MetricRegistry.name(ReplicationQueue.class, "batch"));
+        metrics.register(MetricRegistry.name(ReplicationQueue.class, "pending"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return pendingJobs.size();
+            }
+        });
+        metrics.register(MetricRegistry.name(ReplicationQueue.class, "lag-millis"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return lagMillis();
+            }
+        });
+    }
+
+    /** Reload jobs left in the journal by a previous run and start the workers */
+    public void start() throws IOException {
+        try (DirectoryStream<Path> journal = Files.newDirectoryStream(journalDir)) {
+            for (Path jobFile : journal) {
+                String name = jobFile.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // crashed while writing the job, so the upload was never acknowledged
+                    Files.deleteIfExists(jobFile);
+                } else if (name.startsWith(JOB_PREFIX)) {
+                    try {
+                        Job job = readJob(jobFile);
+                        pendingJobs.put(job.id, job);
+                        readyJobs.add(job);
+                    } catch (IOException | RuntimeException e) {
+                        logger.error("Discarding unreadable replication job "+jobFile, e);
+                        Files.deleteIfExists(jobFile);
+                    }
+                }
+            }
+        }
+        if (!pendingJobs.isEmpty()) {
+            logger.info("Resuming "+pendingJobs.size()+" pending replication jobs");
+        }
+        for (int i = 0; i < WORKERS; i++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /** Durably record that the object, whose sha256 is sha256hash, must be copied to the replicas
+     *  of the identifier. Content-addressed chunks are named by their sha256, and are skipped if
+     *  the owner has them. */
+    public void enqueue(int identifier, BlobStore store, String name, String sha256hash, boolean chunk) throws IOException {
+        if (!stores.containsKey(store.getName())) {
+            throw new IllegalArgumentException("Store "+store.getName()+" is not replicated by this queue");
+        }
+        long now = System.currentTimeMillis();
+        add(new Job(newJobId(), identifier, store.getName(), name, sha256hash, null, chunk ? name : null, false, 0, now, now));
+    }
+
+    /** Durably record that the object, whose sha256 is sha256hash, must be erasure-coded and its
+     *  fragments stored on the nodes following the identifier's owner */
+    public void enqueueFragments(int identifier, BlobStore store, String name, String sha256hash) throws IOException {
+        if (!stores.containsKey(store.getName())) {
+            throw new IllegalArgumentException("Store "+store.getName()+" is not replicated by this queue");
+        }
+        long now = System.currentTimeMillis();
+        add(new Job(newJobId(), identifier, store.getName(), name, sha256hash, null, null, true, 0, now, now));
+    }
+
+    /** Number of jobs which have not completed yet */
+    public int size() {
+        return pendingJobs.size();
+    }
+
+    /** Age of the oldest job which has not completed yet */
+    public long lagMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (Job job : pendingJobs.values()) {
+            oldest = Math.min(oldest, job.createdMillis);
+        }
+        return (oldest == Long.MAX_VALUE) ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    private void add(Job job) throws IOException {
+        writeJob(job);
+        pendingJobs.put(job.id, job);
+        readyJobs.add(job);
+    }
+
+    private void complete(Job job) {
+        pendingJobs.remove(job.id);
+        try {
+            Files.deleteIfExists(jobPath(job.id));
+        } catch (IOException e) {
+            logger.error("Failed to remove completed replication job "+job.id, e);
+        }
+    }
+
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Job> batch = new ArrayList<Job>();
+                batch.add(readyJobs.take());
+                readyJobs.drainTo(batch, MAX_BATCH_JOBS - 1);
+                Timer.Context timer = batchTimer.time();
+                try {
+                    process(batch);
+                } catch (RuntimeException e) {
+                    logger.error("Replication worker failed", e);
+                } finally {
+                    timer.stop();
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.info("Replication worker exiting...");
+        }
+    }
+
+    /** Work out the targets of each job, send each target its files, and
+     *  schedule a retry for every copy which failed */
+    private void process(List<Job> batch) {
+        Map<Finger, List<Job>> jobsByTarget = new LinkedHashMap<Finger, List<Job>>();
+        Map<Job, List<Finger>> failedTargets = new LinkedHashMap<Job, List<Finger>>();
+        List<Job> resolvedJobs = new ArrayList<Job>();
+
+        for (Job job : batch) {
+            BlobStore store = stores.get(job.store);
+            if (store == null || !store.contains(job.name)) {
+                logger.info("Dropping replication of "+describe(job)+" which no longer exists");
+                complete(job);
+                continue;
+            }
+            if (job.fragments) {
+                storeFragments(job, store);
+                continue;
+            }
+            List<Finger> targets;
+            if (job.target != null) {
+                targets = new ArrayList<Finger>();
+                targets.add(job.target);
+            } else {
+                try {
+                    targets = node.replicaLocations(job.identifier);
+                    if (job.chunkSha256 != null && node.getChordNode(targets.get(0)).hasFile(job.chunkSha256)) {
+                        logger.debug("Owner already has a copy of chunk "+job.chunkSha256);
+                        complete(job);
+                        releaseChunk(job);
+                        continue;
+                    }
+                } catch (RemoteException e) {
+                    logger.error("Cannot find replicas of "+describe(job), e);
+                    retry(job, null);
+                    continue;
+                }
+            }
+            resolvedJobs.add(job);
+            for (Finger target : targets) {
+                List<Job> jobs = jobsByTarget.get(target);
+                if (jobs == null) {
+                    jobs = new ArrayList<Job>();
+                    jobsByTarget.put(target, jobs);
+                }
+                jobs.add(job);
+            }
+        }
+
+        for (Map.Entry<Finger, List<Job>> entry : jobsByTarget.entrySet()) {
+            for (Job failed : send(entry.getKey(), entry.getValue())) {
+                List<Finger> targets = failedTargets.get(failed);
+                if (targets == null) {
+                    targets = new ArrayList<Finger>();
+                    failedTargets.put(failed, targets);
+                }
+                targets.add(entry.getKey());
+            }
+        }
+
+        for (Job job : resolvedJobs) {
+            List<Finger> targets = failedTargets.get(job);
+            if (targets == null) {
+                complete(job);
+                releaseChunk(job);
+                continue;
+            }
+            for (Finger target : targets) {
+                retry(job, target);
+            }
+        }
+    }
+
+    /** Store the fragments of an erasure-coded object. If any of them cannot be stored, the
+     *  object is replicated whole instead, as ChordNode.beginErasureCoding does. */
+    private void storeFragments(Job job, BlobStore store) {
+        try {
+            node.storeErasureCoded(job.identifier, store, job.name, job.sha256);
+            replicatedFiles.mark();
+            complete(job);
+        } catch (IOException e) {
+            logger.error("Failed to store erasure-coded fragments of "+describe(job)+", replicating it instead", e);
+            failures.mark();
+            try {
+                add(new Job(newJobId(), job.identifier, job.store, job.name, job.sha256, null, null, false,
+                        0, job.createdMillis, System.currentTimeMillis()));
+                complete(job);
+            } catch (IOException e1) {
+                logger.error("Failed to record replication of "+describe(job), e1);
+                retry(job, null);
+            }
+        }
+    }
+
+    /** Send the files of the jobs to one target, returning the jobs which failed */
+    private List<Job> send(Finger target, List<Job> jobs) {
+        List<Job> failed = new ArrayList<Job>();
+        RemoteChordNodeI replica;
+        try {
+            replica = node.getChordNode(target);
+        } catch (RemoteException e) {
+            logger.error("Replica "+target+" is unreachable", e);
+            failed.addAll(jobs);
+            return failed;
+        }
+
+        List<Job> smallJobs = new ArrayList<Job>();
+        List<String> smallNames = new ArrayList<String>();
+        List<byte[]> smallFiles = new ArrayList<byte[]>();
+        long smallBytes = 0;
+        for (Job job : jobs) {
+            BlobRef ref;
+            byte[] data;
+            try {
+                ref = stores.get(job.store).get(job.name);
+                if (ref == null) {
+                    throw new FileNotFoundException(describe(job));
+                }
+                if (ref.length > SMALL_FILE_BYTES) {
+                    // large objects are sent on their own, in parts if need be
+                    ChordNode.sendReplica(replica, job.sha256, ref);
+                    replicatedFiles.mark();
+                    replicatedBytes.mark(ref.length);
+                    continue;
+                }
+                data = ref.readAll();
+            } catch (IOException e) {
+                logger.error("Failed to replicate "+describe(job)+" to "+target, e);
+                failed.add(job);
+                continue;
+            }
+            smallJobs.add(job);
+            smallNames.add(job.sha256);
+            smallFiles.add(data);
+            smallBytes += data.length;
+            if (smallBytes >= MAX_BATCH_BYTES) {
+                sendBatch(replica, target, smallJobs, smallNames, smallFiles, smallBytes, failed);
+                smallJobs.clear();
+                smallNames.clear();
+                smallFiles.clear();
+                smallBytes = 0;
+            }
+        }
+        if (!smallJobs.isEmpty()) {
+            sendBatch(replica, target, smallJobs, smallNames, smallFiles, smallBytes, failed);
+        }
+        return failed;
+    }
+
+    private void sendBatch(RemoteChordNodeI replica, Finger target, List<Job> jobs, List<String> names,
+            List<byte[]> files, long bytes, List<Job> failed) {
+        try {
+            replica.replicateAttested(names.toArray(new String[names.size()]), files.toArray(new byte[files.size()][]));
+            replicatedFiles.mark(files.size());
+            replicatedBytes.mark(bytes);
+        } catch (RemoteException e) {
+            logger.error("Failed to replicate batch of "+files.size()+" files to "+target, e);
+            failed.addAll(jobs);
+        }
+    }
+
+    /** Remove the uploader's copy of a chunk once its replicas have it, unless another job
+     *  still has to send it. Chunks which could not be replicated are kept. */
+    private void releaseChunk(Job job) {
+        if (job.chunkSha256 == null) {
+            return;
+        }
+        for (Job other : pendingJobs.values()) {
+            if (other.store.equals(job.store) && other.name.equals(job.name)) {
+                return;
+            }
+        }
+        try {
+            stores.get(job.store).delete(job.name);
+        } catch (IOException e) {
+            logger.error("Failed to remove replicated chunk "+describe(job), e);
+        }
+    }
+
+    /** Replace the job with one which runs again after a backoff, or drop it after MAX_ATTEMPTS */
+    private void retry(Job job, Finger target) {
+        failures.mark();
+        if (job.attempts + 1 >= MAX_ATTEMPTS) {
+            logger.error("Giving up replicating "+describe(job)+" to "+(target == null ? "its replicas" : target)+
+                    " after "+MAX_ATTEMPTS+" attempts");
+            droppedJobs.mark();
+        } else {
+            try {
+                add(job.retry(target));
+            } catch (IOException e) {
+                logger.error("Failed to record retry of replication job "+job.id, e);
+                droppedJobs.mark();
+            }
+        }
+        complete(job);
+    }
+
+    private static String describe(Job job) {
+        return job.store+"/"+job.name;
+    }
+
+    private Path jobPath(String id) {
+        return journalDir.resolve(JOB_PREFIX+id);
+    }
+
+    private static String newJobId() {
+        return UUID.randomUUID().toString();
+    }
+
+    /** Write the job to a temp file, force it to disk, and move it into place durably */
+    private void writeJob(Job job) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("identifier", Integer.toString(job.identifier));
+        properties.setProperty("store", job.store);
+        properties.setProperty("name", job.name);
+        properties.setProperty("sha256", job.sha256);
+        properties.setProperty("attempts", Integer.toString(job.attempts));
+        properties.setProperty("created", Long.toString(job.createdMillis));
+        properties.setProperty("ready", Long.toString(job.readyMillis));
+        if (job.target != null) {
+            properties.setProperty("target.host", job.target.host.getHostAddress());
+            properties.setProperty("target.port", Integer.toString(job.target.port));
+        }
+        if (job.chunkSha256 != null) {
+            properties.setProperty("chunk", job.chunkSha256);
+        }
+        if (job.fragments) {
+            properties.setProperty("fragments", "true");
+        }
+
+        Path tempPath = journalDir.resolve(JOB_PREFIX+job.id+TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream out = Channels.newOutputStream(channel);
+            properties.store(out, null);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tempPath, jobPath(job.id), StandardCopyOption.ATOMIC_MOVE);
+        ObjectDirectory.syncDirectory(journalDir);
+    }
+
+    private Job readJob(Path jobFile) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(jobFile)) {
+            properties.load(in);
+        }
+        Finger target = null;
+        if (properties.getProperty("target.host") != null) {
+            target = new Finger(InetAddress.getByName(properties.getProperty("target.host")),
+                    Integer.parseInt(required(properties, "target.port")));
+        }
+        String store = required(properties, "store");
+        if (!stores.containsKey(store)) {
+            throw new IOException("Replication job names unknown store "+store);
+        }
+        String id = jobFile.getFileName().toString().substring(JOB_PREFIX.length());
+        return new Job(id,
+                Integer.parseInt(required(properties, "identifier")),
+                store,
+                required(properties, "name"),
+                required(properties, "sha256"),
+                target,
+                properties.getProperty("chunk"),
+                Boolean.parseBoolean(properties.getProperty("fragments")),
+                Integer.parseInt(required(properties, "attempts")),
+                Long.parseLong(required(properties, "created")),
+                Long.parseLong(required(properties, "ready")));
+    }
+
+    private static String required(Properties properties, String key) throws IOException {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IOException("Replication job has no "+key);
+        }
+        return value;
+    }
+}
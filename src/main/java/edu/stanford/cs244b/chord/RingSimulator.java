@@ -0,0 +1,410 @@
+package edu.stanford.cs244b.chord;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+/** Runs rings of hundreds of ChordNodes in one JVM over an {@link InMemoryTransport},
+ *  without Dropwizard or storage, and reports how routing behaves as the ring grows:
+ *  <ul>
+ *  <li>how long stabilization takes to link every successor and predecessor, and then
+ *  to point every finger at the right node, after all nodes have joined</li>
+ *  <li>hop counts and latency of lookups of random identifiers</li>
+ *  <li>latency of inserts (choosing the replicas of a new object) and gets (finding the
+ *  owner of an inserted object, with the routing cache)</li>
+ *  <li>calls per node per second made to maintain the ring once it has settled</li>
+ *  <li>the same after some nodes crash, and again after as many new nodes join</li>
+ *  </ul>
+ *  Every answer is checked against the ring computed from the live nodes: wrong counts
+ *  lookups which failed or found the wrong node, and stale counts the same for inserts
+ *  and gets, which may be answered from an out of date routing cache.
+ *  <p/>
+ *  Usage: <code>RingSimulator [options] size...</code>, with options
+ *  <code>--lookups=N</code>, <code>--churn=N</code> (nodes to fail and join),
+ *  <code>--latency-micros=N</code> (per call), <code>--stabilize-millis=N</code>,
+ *  <code>--max-stabilize-millis=N</code>, <code>--timeout-seconds=N</code>,
+ *  <code>--no-fast-join</code> and <code>--verbose</code>. */
+public class RingSimulator {
+    final static int PORT = 8081;
+    final static long POLL_MILLIS = 10;
+    final static int JOIN_ATTEMPTS = 5;
+    /** Time over which the calls nodes make to maintain the ring are counted after the workloads */
+    final static long IDLE_MILLIS = 2000;
+
+    private int lookups = 1000;
+    private int churn = -1;
+    private long latencyMicros = 0;
+    private long stabilizeMillis = 100;
+    private long maxStabilizeMillis = -1;
+    private boolean fastJoin = true;
+    private long timeoutSeconds = 120;
+    private final Random random = new Random(42);
+
+    private InMemoryTransport.Network network;
+    private final List<ChordNode> nodes = new ArrayList<ChordNode>();
+    private int hostsCreated;
+    private int joinRetries;
+
+    /** Latencies and hop counts of one workload */
+    private static class Stats {
+        final long[] micros;
+        final int[] hops;
+        int count;
+        int wrong;
+        int failed;
+
+        Stats(int size) {
+            micros = new long[size];
+            hops = new int[size];
+        }
+
+        void add(long nanos, int hopCount) {
+            micros[count] = TimeUnit.NANOSECONDS.toMicros(nanos);
+            hops[count] = hopCount;
+            count++;
+        }
+
+        double meanHops() {
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                total += hops[i];
+            }
+            return (count == 0) ? 0 : ((double) total) / count;
+        }
+
+        int maxHops() {
+            int max = 0;
+            for (int i = 0; i < count; i++) {
+                max = Math.max(max, hops[i]);
+            }
+            return max;
+        }
+
+        long percentileMicros(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(micros, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.min(count - 1, Math.ceil(percentile * count) - 1)];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        RingSimulator simulator = new RingSimulator();
+        List<Integer> sizes = new ArrayList<Integer>();
+        boolean verbose = false;
+        for (String arg : args) {
+            if (arg.startsWith("--lookups=")) {
+                simulator.lookups = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("--churn=")) {
+                simulator.churn = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("--latency-micros=")) {
+                simulator.latencyMicros = Long.parseLong(value(arg));
+            } else if (arg.startsWith("--stabilize-millis=")) {
+                simulator.stabilizeMillis = Long.parseLong(value(arg));
+            } else if (arg.startsWith("--max-stabilize-millis=")) {
+                simulator.maxStabilizeMillis = Long.parseLong(value(arg));
+            } else if (arg.startsWith("--timeout-seconds=")) {
+                simulator.timeoutSeconds = Long.parseLong(value(arg));
+            } else if (arg.equals("--no-fast-join")) {
+                simulator.fastJoin = false;
+            } else if (arg.equals("--verbose")) {
+                verbose = true;
+            } else {
+                sizes.add(Integer.valueOf(arg));
+            }
+        }
+        if (simulator.maxStabilizeMillis < 0) {
+            simulator.maxStabilizeMillis = simulator.stabilizeMillis * (ChordNode.Stabilizer.MAX_DELAY_MILLIS / ChordNode.Stabilizer.MIN_DELAY_MILLIS);
+        }
+        if (sizes.isEmpty()) {
+            sizes = Arrays.asList(16, 64, 256);
+        }
+        // nodes log every pointer they change, which would drown the results
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(verbose ? Level.INFO : Level.OFF);
+
+        System.out.println("stabilize every "+simulator.stabilizeMillis+" to "+simulator.maxStabilizeMillis+" ms, "+
+                simulator.latencyMicros+" us per call, "+simulator.lookups+" lookups per workload");
+        System.out.println(String.format("%-6s %-7s %8s %7s %10s %10s %6s %5s %9s %9s %9s %9s %9s %9s %6s %6s %7s",
+                "nodes", "phase", "join ms", "retries", "ring ms", "finger ms", "hops", "max", "look p50", "look p99",
+                "put p50", "put p99", "get p50", "get p99", "wrong", "stale", "idle/s"));
+        for (int size : sizes) {
+            simulator.run(size);
+        }
+        System.exit(0);
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    /** Build a ring of the given size, measure it, then churn it and measure it again */
+    void run(int size) throws Exception {
+        network = new InMemoryTransport.Network(latencyMicros);
+        nodes.clear();
+        hostsCreated = 0;
+
+        long joinStart = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            startNode(nodes.isEmpty() ? null : nodes.get(0));
+        }
+        long joinMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - joinStart);
+        measure(size, "join", joinMillis);
+
+        int churned = (churn >= 0) ? churn : size / 10;
+        if (churned > 0 && churned < size / 2) {
+            for (ChordNode failed : chooseFailures(churned)) {
+                network.fail(failed.getLocation());
+                failed.stop();
+                nodes.remove(failed);
+            }
+            measure(size - churned, "fail", 0);
+
+            // joins are only attempted on a repaired ring, since a join fails while the
+            // successor's fingers still point at failed nodes
+            joinStart = System.nanoTime();
+            for (int i = 0; i < churned; i++) {
+                startNode(nodes.get(random.nextInt(nodes.size())));
+            }
+            joinMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - joinStart);
+            measure(size, "rejoin", joinMillis);
+        }
+
+        for (ChordNode node : nodes) {
+            node.stop();
+        }
+    }
+
+    /** Wait for the ring to converge, then run the workloads and print a row */
+    private void measure(int size, String phase, long joinMillis) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        long ringMillis = -1;
+        long fingerMillis = -1;
+        while (System.nanoTime() < deadline) {
+            if (ringMillis < 0 && ringConverged()) {
+                ringMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+            if (ringMillis >= 0 && fingersConverged()) {
+                fingerMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                break;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+
+        Stats lookupStats = lookups();
+        int[] keys = new int[lookups];
+        Stats putStats = inserts(keys);
+        Stats getStats = gets(keys);
+        int wrong = lookupStats.wrong + lookupStats.failed;
+        // inserts and gets start from the routing cache, which does not see changes elsewhere in the ring
+        int stale = putStats.wrong + putStats.failed + getStats.wrong + getStats.failed;
+
+        // calls per node per second once the ring has settled, ie: the cost of stabilization
+        long calls = network.getCalls();
+        Thread.sleep(IDLE_MILLIS);
+        double idleCalls = (network.getCalls() - calls) * 1000.0 / IDLE_MILLIS / size;
+
+        System.out.println(String.format("%-6d %-7s %8d %7d %10s %10s %6.2f %5d %9d %9d %9d %9d %9d %9d %6d %6d %7.1f",
+                size, phase, joinMillis, joinRetries, formatMillis(ringMillis), formatMillis(fingerMillis),
+                lookupStats.meanHops(), lookupStats.maxHops(),
+                lookupStats.percentileMicros(0.5), lookupStats.percentileMicros(0.99),
+                putStats.percentileMicros(0.5), putStats.percentileMicros(0.99),
+                getStats.percentileMicros(0.5), getStats.percentileMicros(0.99), wrong, stale, idleCalls));
+        joinRetries = 0;
+    }
+
+    private static String formatMillis(long millis) {
+        return (millis < 0) ? "timeout" : Long.toString(millis);
+    }
+
+    /** Start a node on a new host and join it to the ring through entry, or start a new ring if entry is null */
+    private ChordNode startNode(ChordNode entry) throws UnknownHostException, RemoteException, InterruptedException {
+        hostsCreated++;
+        InetAddress host = InetAddress.getByAddress(new byte[] {
+                10, (byte) (hostsCreated >> 16), (byte) (hostsCreated >> 8), (byte) hostsCreated });
+        ChordNode node = new ChordNode(host, PORT, null, new InMemoryTransport(network));
+        node.setStabilizeMillis(stabilizeMillis, maxStabilizeMillis);
+        node.setFastJoin(fastJoin);
+        for (int attempt = 1; attempt <= JOIN_ATTEMPTS; attempt++) {
+            boolean joined = (entry == null) ? node.join(node.getLocation(), true) : node.join(entry.getLocation(), false);
+            if (joined) {
+                nodes.add(node);
+                return node;
+            }
+            // a join fails if the successor's fingers are not all on its successor chain,
+            // which happens while earlier joins are being stabilized
+            joinRetries++;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (!ringConverged() && System.nanoTime() < deadline) {
+                Thread.sleep(POLL_MILLIS);
+            }
+        }
+        node.stop();
+        throw new IllegalStateException("Node "+node.getLocation()+" failed to join the ring");
+    }
+
+    /** Nodes to crash, no two of them adjacent: a successor list of REPLICATION_FACTOR
+     *  entries only survives REPLICATION_FACTOR-1 consecutive failures */
+    private List<ChordNode> chooseFailures(int count) {
+        List<ChordNode> ring = sortedNodes();
+        boolean[] unavailable = new boolean[ring.size()];
+        List<ChordNode> failures = new ArrayList<ChordNode>();
+        while (failures.size() < count) {
+            int index = random.nextInt(ring.size());
+            if (unavailable[index]) {
+                continue;
+            }
+            failures.add(ring.get(index));
+            unavailable[index] = true;
+            unavailable[(index + 1) % ring.size()] = true;
+            unavailable[(index + ring.size() - 1) % ring.size()] = true;
+        }
+        return failures;
+    }
+
+    private List<ChordNode> sortedNodes() {
+        List<ChordNode> sorted = new ArrayList<ChordNode>(nodes);
+        Collections.sort(sorted, new Comparator<ChordNode>() {
+            @Override
+            public int compare(ChordNode a, ChordNode b) {
+                return Integer.compare(a.getShardId(), b.getShardId());
+            }
+        });
+        return sorted;
+    }
+
+    private int[] sortedIds(List<ChordNode> sorted) {
+        int[] ids = new int[sorted.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = sorted.get(i).getShardId();
+        }
+        return ids;
+    }
+
+    /** Index in ids of the first node at or after identifier */
+    private static int successorIndex(int[] ids, int identifier) {
+        int index = Arrays.binarySearch(ids, identifier);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return (index == ids.length) ? 0 : index;
+    }
+
+    /** Whether every node's successor and predecessor are its neighbours among the live nodes */
+    private boolean ringConverged() {
+        List<ChordNode> sorted = sortedNodes();
+        int n = sorted.size();
+        for (int i = 0; i < n; i++) {
+            ChordNode node = sorted.get(i);
+            Finger predecessor = node.getPredecessor();
+            if (!node.getSuccessor().equals(sorted.get((i + 1) % n).getLocation()) ||
+                    predecessor == null || !predecessor.equals(sorted.get((i + n - 1) % n).getLocation())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Whether every finger of every node points at the successor of its identifier */
+    private boolean fingersConverged() {
+        List<ChordNode> sorted = sortedNodes();
+        int[] ids = sortedIds(sorted);
+        for (ChordNode node : sorted) {
+            Finger[] fingers = node.getFingerTable();
+            for (int i = 1; i < ChordNode.NUM_FINGERS; i++) {
+                int expected = ids[successorIndex(ids, node.computeIdToFind(i))];
+                if (fingers[i] == null || fingers[i].shardid != expected) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Find the node preceding random identifiers, starting at random nodes */
+    private Stats lookups() {
+        List<ChordNode> sorted = sortedNodes();
+        int[] ids = sortedIds(sorted);
+        Stats stats = new Stats(lookups);
+        for (int i = 0; i < lookups; i++) {
+            ChordNode node = sorted.get(random.nextInt(sorted.size()));
+            int identifier = random.nextInt();
+            network.takeLookupSteps();
+            long start = System.nanoTime();
+            try {
+                Finger found = node.findPredecessorLocation(identifier);
+                stats.add(System.nanoTime() - start, network.takeLookupSteps());
+                if (found.shardid != expectedPredecessor(ids, identifier)) {
+                    stats.wrong++;
+                }
+            } catch (RemoteException e) {
+                stats.failed++;
+            }
+        }
+        return stats;
+    }
+
+    /** Choose replicas for new objects with random identifiers, starting at random nodes */
+    private Stats inserts(int[] keys) {
+        List<ChordNode> sorted = sortedNodes();
+        int[] ids = sortedIds(sorted);
+        Stats stats = new Stats(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            ChordNode node = sorted.get(random.nextInt(sorted.size()));
+            keys[i] = random.nextInt();
+            network.takeLookupSteps();
+            long start = System.nanoTime();
+            try {
+                List<Finger> replicas = node.replicaLocations(keys[i]);
+                stats.add(System.nanoTime() - start, network.takeLookupSteps());
+                if (replicas.get(0).shardid != expectedPredecessor(ids, keys[i])) {
+                    stats.wrong++;
+                }
+            } catch (RemoteException e) {
+                stats.failed++;
+            }
+        }
+        return stats;
+    }
+
+    /** Find the owners of inserted objects from random nodes, which may have them cached */
+    private Stats gets(int[] keys) {
+        List<ChordNode> sorted = sortedNodes();
+        int[] ids = sortedIds(sorted);
+        Stats stats = new Stats(keys.length);
+        for (int key : keys) {
+            ChordNode node = sorted.get(random.nextInt(sorted.size()));
+            network.takeLookupSteps();
+            long start = System.nanoTime();
+            try {
+                Finger owner = node.lookupOwner(key);
+                stats.add(System.nanoTime() - start, network.takeLookupSteps());
+                if (owner.shardid != expectedPredecessor(ids, key)) {
+                    stats.wrong++;
+                }
+            } catch (RemoteException e) {
+                stats.failed++;
+            }
+        }
+        return stats;
+    }
+
+    /** Node whose interval (node, successor] contains identifier */
+    private static int expectedPredecessor(int[] ids, int identifier) {
+        return ids[(successorIndex(ids, identifier) + ids.length - 1) % ids.length];
+    }
+}
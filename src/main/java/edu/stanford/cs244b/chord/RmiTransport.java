@@ -0,0 +1,73 @@
+package edu.stanford.cs244b.chord;
+
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Java RMI transport: every node is bound in an RMI registry listening on the node's port */
+public class RmiTransport implements ChordTransport {
+    final static Logger logger = LoggerFactory.getLogger(RmiTransport.class);
+    
+    Registry registry;
+    
+    RemoteChordNodeI exportedNode;
+    
+    @Override
+    public void export(RemoteChordNodeI node, Finger location) throws RemoteException {
+        // insane hack to get RMI working in virtualbox
+        System.getProperties().put("java.rmi.server.hostname", location.host.getHostAddress());
+        RemoteChordNodeI stub = (RemoteChordNodeI) UnicastRemoteObject.exportObject(node, 0);
+        exportedNode = node;
+
+        try {
+        	registry = LocateRegistry.createRegistry(location.port);
+        } catch (Exception e) {
+        	registry = LocateRegistry.getRegistry();
+        }
+        try {
+        	// insert ChordNode into RMI registry
+            String rmiURL = location.getRMIUrl();
+        	logger.info("Binding to registry at "+rmiURL);
+        	Naming.bind(rmiURL, stub);
+
+        } catch (Exception e) {
+        	logger.error("Registering "+location+" in RMI registry FAILED");
+        	e.printStackTrace();
+        }
+    }
+    
+    @Override
+    public RemoteChordNodeI connect(Finger remoteLocation) throws RemoteException {
+        try {
+            // OMG, figuring this out was painful...
+            // http://euclid.nmu.edu/~rappleto/Classes/RMI/rmi-coding.html
+            
+            // insane hack to get RMI working in virtualbox
+            System.getProperties().put("java.rmi.server.hostname", remoteLocation.host.getHostAddress());
+            //Registry registry = LocateRegistry.getRegistry(remoteLocation.host.getHostAddress(), remoteLocation.port);
+            String rmiURL = remoteLocation.getRMIUrl();
+            
+            return (RemoteChordNodeI) Naming.lookup(rmiURL);
+        } catch (RemoteException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RemoteException("Failed to look up remote ChordNode at location "+remoteLocation, e);
+        }
+    }
+    
+    @Override
+    public void shutdown() {
+        try {
+            if (exportedNode != null) {
+                UnicastRemoteObject.unexportObject(exportedNode, true);
+            }
+        } catch (RemoteException e) {
+            logger.error("Failed to unexport ChordNode", e);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package edu.stanford.cs244b.chord;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.stanford.cs244b.Util;
+
+/** Bounded cache of recently resolved ring intervals. Each entry is the final step of a
+ *  lookup: the node whose interval (node, successor] contained the identifier. Later
+ *  lookups of any identifier in a cached interval are answered without any hops.
+ *  <p/>
+ *  Entries are evicted least-recently-used first and expire after TTL_MILLIS, since
+ *  joins in other parts of the ring are not observed by this node. */
+public class RoutingCache {
+    final static int CAPACITY = 1024;
+    final static long TTL_MILLIS = 30000;
+    
+    private static class Entry {
+        final LookupStep step;
+        final long createdMillis = System.currentTimeMillis();
+        
+        Entry(LookupStep step) {
+            this.step = step;
+        }
+    }
+    
+    /** Entries keyed by the shardid of the node at the start of the interval */
+    private final TreeMap<Integer, Entry> intervals = new TreeMap<Integer, Entry>();
+    /** Same entries in access order, for LRU eviction */
+    private final LinkedHashMap<Integer, Entry> accessOrder = new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+    
+    /** Return the cached lookup result whose interval contains the identifier, or null */
+    public synchronized LookupStep lookup(int identifier) {
+        Map.Entry<Integer, Entry> candidate = intervals.lowerEntry(identifier);
+        if (candidate == null) {
+            // identifier precedes every interval start, so only a wrapping interval can contain it
+            candidate = intervals.lastEntry();
+        }
+        if (candidate == null) {
+            return null;
+        }
+        Entry entry = candidate.getValue();
+        LookupStep step = entry.step;
+        if (!Util.withinInterval(identifier, step.location.shardid+1, step.successor.shardid)) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.createdMillis > TTL_MILLIS) {
+            remove(candidate.getKey());
+            return null;
+        }
+        accessOrder.get(candidate.getKey());
+        return step;
+    }
+    
+    /** Remember the result of a lookup */
+    public synchronized void put(LookupStep step) {
+        Integer start = step.location.shardid;
+        Entry entry = new Entry(step);
+        intervals.put(start, entry);
+        accessOrder.put(start, entry);
+        if (accessOrder.size() > CAPACITY) {
+            Iterator<Integer> eldest = accessOrder.keySet().iterator();
+            Integer evicted = eldest.next();
+            eldest.remove();
+            intervals.remove(evicted);
+        }
+    }
+    
+    /** Drop the interval containing the identifier, eg: because its owner gave a stale answer */
+    public synchronized void invalidate(int identifier) {
+        LookupStep step = lookup(identifier);
+        if (step != null) {
+            remove(step.location.shardid);
+        }
+    }
+    
+    /** Drop everything, eg: because ring membership around this node changed */
+    public synchronized void clear() {
+        intervals.clear();
+        accessOrder.clear();
+    }
+    
+    private void remove(Integer start) {
+        intervals.remove(start);
+        accessOrder.remove(start);
+    }
+}
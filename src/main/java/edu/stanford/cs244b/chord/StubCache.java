@@ -0,0 +1,206 @@
+package edu.stanford.cs244b.chord;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.stanford.cs244b.trace.Span;
+import edu.stanford.cs244b.trace.Tracer;
+
+/** Cache of stubs for remote ChordNodes, keyed by location.
+ *  <p/>
+ *  A location is contacted synchronously only the first time it is looked up.
+ *  After that, a background prober periodically checks every cached node, and
+ *  lookups of nodes which failed their last probe (or whose stub threw a
+ *  RemoteException) fail immediately without any network traffic. Entries
+ *  expire after TTL_MILLIS so that stubs are eventually refreshed; the prober
+ *  replaces expired entries which were used since they were created, so that
+ *  nodes in use, such as neighbours which are only contacted every few rounds of
+ *  stabilization, are probed without a gap. */
+public class StubCache {
+    final static Logger logger = LoggerFactory.getLogger(StubCache.class);
+    
+    final static long TTL_MILLIS = 60000;
+    final static long PROBE_INTERVAL_MILLIS = 1000;
+    
+    private final ChordTransport transport;
+    private final ConcurrentHashMap<Finger, Entry> entries = new ConcurrentHashMap<Finger, Entry>();
+    private final ScheduledExecutorService prober;
+    private volatile Listener listener;
+    
+    /** Told when a node which was reachable stops responding to calls or probes */
+    public interface Listener {
+        void unreachable(Finger location);
+    }
+    
+    private class Entry {
+        final Finger location;
+        final RemoteChordNodeI stub;
+        final long createdMillis = System.currentTimeMillis();
+        volatile boolean alive;
+        volatile boolean used;
+        
+        Entry(Finger location, RemoteChordNodeI rawStub, boolean alive) {
+            this.location = location;
+            this.stub = (rawStub == null) ? null : wrap(this, rawStub);
+            this.alive = alive;
+        }
+        
+        boolean expired(long now) {
+            return now - createdMillis > TTL_MILLIS;
+        }
+    }
+    
+    public StubCache(ChordTransport transport) {
+        this.transport = transport;
+        prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "stub-cache-prober");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        prober.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probeAll();
+            }
+        }, PROBE_INTERVAL_MILLIS, PROBE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    /** Return a stub for the node at the given location, or throw if it is known to be unreachable */
+    public RemoteChordNodeI get(Finger location) throws RemoteException {
+        Entry entry = entries.get(location);
+        if (entry != null && !entry.expired(System.currentTimeMillis())) {
+            if (!entry.alive) {
+                throw new RemoteException("ChordNode at location "+location+" is unreachable");
+            }
+            entry.used = true;
+            return entry.stub;
+        }
+        return connect(location);
+    }
+    
+    /** Whether the node at this location is known to be unreachable */
+    public boolean isSuspected(Finger location) {
+        Entry entry = entries.get(location);
+        return entry != null && !entry.alive;
+    }
+    
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+    
+    /** Forget the stub for this location */
+    public void evict(Finger location) {
+        entries.remove(location);
+    }
+    
+    public void shutdown() {
+        prober.shutdownNow();
+        entries.clear();
+    }
+    
+    /** Look up a fresh stub and verify that the node responds before caching it */
+    private RemoteChordNodeI connect(Finger location) throws RemoteException {
+        try {
+            RemoteChordNodeI rawStub = transport.connect(location);
+            rawStub.getLocation();
+            Entry entry = new Entry(location, rawStub, true);
+            entries.put(location, entry);
+            return entry.stub;
+        } catch (Exception e) {
+            // remember the failure so that the prober, not the caller, retries this node
+            entries.put(location, new Entry(location, null, false));
+            throw new RemoteException("Failed to get remote ChordNode at location "+location);
+        }
+    }
+    
+    /** Check every cached node, reviving nodes that respond again and dropping expired entries */
+    private void probeAll() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Finger, Entry> cached : entries.entrySet()) {
+            Entry entry = cached.getValue();
+            if (entry.expired(now) && !(entry.alive && entry.used)) {
+                entries.remove(cached.getKey(), entry);
+                continue;
+            }
+            try {
+                if (entry.alive && entry.expired(now)) {
+                    RemoteChordNodeI rawStub = transport.connect(entry.location);
+                    rawStub.getLocation();
+                    entries.replace(cached.getKey(), entry, new Entry(entry.location, rawStub, true));
+                } else if (entry.alive) {
+                    entry.stub.getLocation();
+                } else {
+                    RemoteChordNodeI rawStub = transport.connect(entry.location);
+                    rawStub.getLocation();
+                    logger.info("ChordNode at location "+entry.location+" is reachable again");
+                    entries.replace(cached.getKey(), entry, new Entry(entry.location, rawStub, true));
+                }
+            } catch (Exception e) {
+                markUnreachable(entry);
+            } catch (Throwable t) {
+                logger.error("Failed to probe "+entry.location, t);
+            }
+        }
+    }
+    
+    private void markUnreachable(Entry entry) {
+        if (entry.alive) {
+            entry.alive = false;
+            Listener current = listener;
+            if (current != null) {
+                current.unreachable(entry.location);
+            }
+        }
+    }
+    
+    /** Wrap the stub so that a failed call marks its entry as unreachable, and calls
+     *  made within a sampled trace are recorded as spans */
+    private RemoteChordNodeI wrap(final Entry entry, final RemoteChordNodeI rawStub) {
+        return (RemoteChordNodeI) Proxy.newProxyInstance(RemoteChordNodeI.class.getClassLoader(),
+                new Class<?>[] {RemoteChordNodeI.class, RemoteStub.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == RemoteStub.class) {
+                    return entry.location;
+                } else if (method.getDeclaringClass() == Object.class) {
+                    return method.invoke(rawStub, args);
+                }
+                try (Span span = Tracer.startSpan("call "+method.getName())) {
+                    if (span != null) {
+                        span.setPeer(entry.location.getShardId());
+                    }
+                    try {
+                        return method.invoke(rawStub, args);
+                    } catch (InvocationTargetException e) {
+                        // ServerException means the node answered but the method itself failed,
+                        // or that the call could not be encoded; neither says the node is down
+                        if (e.getCause() instanceof RemoteException && !(e.getCause() instanceof ServerException) && entry.alive) {
+                            logger.info("Call to "+entry.location+" failed, marking node as unreachable");
+                            markUnreachable(entry);
+                        }
+                        if (span != null) {
+                            span.setError(e.getCause());
+                        }
+                        throw e.getCause();
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,163 @@
+package edu.stanford.cs244b.chord.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Persistent client connection to a remote node. Requests are pipelined:
+ *  any number of threads may have calls outstanding on the same connection,
+ *  and a reader thread matches responses to callers by requestId. */
+class NioConnection implements Runnable {
+    final static Logger logger = LoggerFactory.getLogger(NioConnection.class);
+
+    private final InetSocketAddress address;
+    private final SocketChannel channel;
+    private final Object writeLock = new Object();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, PendingCall> pendingCalls = new ConcurrentHashMap<Integer, PendingCall>();
+    private volatile boolean closed = false;
+    /** Whether the reader is part way through the body of a response, and when it last received any of it */
+    private volatile boolean readingBody = false;
+    private volatile long lastReadNanos = System.nanoTime();
+
+    /** Response to a request which is in flight */
+    private static class PendingCall {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile byte[] response;
+        volatile IOException error;
+    }
+
+    NioConnection(InetSocketAddress address, int connectTimeoutMillis) throws IOException {
+        this.address = address;
+        channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, connectTimeoutMillis);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        Thread reader = new Thread(this, "nio-rpc-reader-"+address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /** Send the encoded request and wait for the body of the matching response. The wait is
+     *  extended for as long as a large response, to this call or one ahead of it, is still
+     *  arriving, so that its size does not have to be known in advance. */
+    byte[] call(ByteArrayOutputStream request, long timeoutMillis) throws IOException {
+        if (closed) {
+            throw new RemoteException("Connection to "+address+" is closed");
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        // a message which cannot be encoded says nothing about the connection
+        ByteBuffer frame = ByteBuffer.wrap(RpcCodec.toFrame(request, requestId));
+        PendingCall call = new PendingCall();
+        pendingCalls.put(requestId, call);
+        try {
+            try {
+                if (closed) {
+                    throw new RemoteException("Connection to "+address+" is closed");
+                }
+                synchronized (writeLock) {
+                    while (frame.hasRemaining()) {
+                        channel.write(frame);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            // a slow response only fails this call; the others pipelined on the
+            // connection keep waiting for theirs
+            long waitMillis = timeoutMillis;
+            while (!call.done.await(waitMillis, TimeUnit.MILLISECONDS)) {
+                long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadNanos);
+                if (!readingBody || idleMillis >= timeoutMillis) {
+                    throw new RemoteException("Timed out waiting for response from "+address);
+                }
+                waitMillis = timeoutMillis - idleMillis;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for response from "+address);
+        } finally {
+            pendingCalls.remove(requestId);
+        }
+        if (call.error != null) {
+            throw call.error;
+        }
+        return call.response;
+    }
+
+    /** Read responses and hand them to the waiting callers */
+    @Override
+    public void run() {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        try {
+            while (!closed) {
+                header.clear();
+                readFully(header);
+                int length = header.getInt(0);
+                int requestId = header.getInt(4);
+                if (length < 4 || length > RpcCodec.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length "+length+" from "+address);
+                }
+                ByteBuffer body = ByteBuffer.allocate(length - 4);
+                readingBody = true;
+                readFully(body);
+                readingBody = false;
+                PendingCall call = pendingCalls.get(requestId);
+                if (call != null) {
+                    call.response = body.array();
+                    call.done.countDown();
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                logger.debug("Connection to "+address+" failed", e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection to "+address+" closed by peer");
+            }
+            lastReadNanos = System.nanoTime();
+        }
+    }
+
+    /** Close the connection and fail every call which is still waiting for a response */
+    void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close connection to "+address, e);
+        }
+        for (PendingCall call : pendingCalls.values()) {
+            call.error = new RemoteException("Connection to "+address+" was closed");
+            call.done.countDown();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package edu.stanford.cs244b.chord.nio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.stanford.cs244b.chord.ChordTransport;
+import edu.stanford.cs244b.chord.RemoteChordNodeI;
+import edu.stanford.cs244b.trace.Span;
+import edu.stanford.cs244b.trace.Tracer;
+
+/** Serves RemoteChordNodeI calls for the local node. A single selector thread
+ *  does all socket I/O, and decoded requests are executed on a worker pool so
+ *  that pipelined requests (and requests which themselves call other nodes)
+ *  run concurrently. */
+class NioServer extends Thread {
+    final static Logger logger = LoggerFactory.getLogger(NioServer.class);
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final RemoteChordNodeI node;
+    private final ChordTransport transport;
+    private final ExecutorService workers;
+    /** Records calls which are part of a sampled trace, or null */
+    private final Tracer tracer;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    /** Connections with responses waiting to be written */
+    private final Queue<ServerConnection> pendingWrites = new ConcurrentLinkedQueue<ServerConnection>();
+
+    /** State of one accepted connection */
+    private class ServerConnection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        ServerConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        void send(byte[] frame) {
+            writeQueue.add(ByteBuffer.wrap(frame));
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+    }
+
+    NioServer(InetSocketAddress address, RemoteChordNodeI node, ChordTransport transport, ExecutorService workers,
+            Tracer tracer) throws IOException {
+        super("nio-rpc-server-"+address.getPort());
+        setDaemon(true);
+        this.node = node;
+        this.transport = transport;
+        this.workers = workers;
+        this.tracer = tracer;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted() && selector.isOpen()) {
+                selector.select();
+                ServerConnection writable;
+                while ((writable = pendingWrites.poll()) != null) {
+                    if (writable.key.isValid()) {
+                        writable.key.interestOps(writable.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read((ServerConnection) key.attachment());
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write((ServerConnection) key.attachment());
+                        }
+                    } catch (IOException e) {
+                        logger.debug("Closing RPC connection", e);
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logger.info("RPC server exiting", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            new ServerConnection(channel);
+        }
+    }
+
+    /** Read as many complete frames as are available and dispatch them */
+    private void read(ServerConnection connection) throws IOException {
+        if (connection.channel.read(connection.readBuffer) < 0) {
+            throw new IOException("Connection closed by peer");
+        }
+        ByteBuffer buffer = connection.readBuffer;
+        buffer.flip();
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt(buffer.position());
+            if (length < 4 || length > RpcCodec.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length "+length);
+            }
+            if (buffer.remaining() < 4 + length) {
+                break;
+            }
+            buffer.getInt();
+            final byte[] request = new byte[length];
+            buffer.get(request);
+            final ServerConnection replyTo = connection;
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    replyTo.send(dispatch(request));
+                }
+            });
+        }
+        buffer.compact();
+        // grow the buffer as the next frame arrives rather than to the length its header
+        // claims, so that a peer has to send the bytes it makes this node allocate, and
+        // go back to a small buffer once a large frame has been consumed
+        int capacity = INITIAL_BUFFER_SIZE;
+        if (buffer.position() >= 4) {
+            int needed = 4 + buffer.getInt(0);
+            if (needed > INITIAL_BUFFER_SIZE) {
+                capacity = buffer.hasRemaining() ? buffer.capacity() : Math.min(needed, buffer.capacity() * 2);
+            }
+        }
+        if (capacity != buffer.capacity()) {
+            ByteBuffer resized = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            resized.put(buffer);
+            connection.readBuffer = resized;
+        }
+    }
+
+    private void write(ServerConnection connection) throws IOException {
+        ByteBuffer frame;
+        while ((frame = connection.writeQueue.peek()) != null) {
+            connection.channel.write(frame);
+            if (frame.hasRemaining()) {
+                return;
+            }
+            connection.writeQueue.poll();
+        }
+        connection.key.interestOps(SelectionKey.OP_READ);
+        // a response may have been queued after the queue was found empty
+        if (!connection.writeQueue.isEmpty()) {
+            connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /** Decode a request (requestId onwards), invoke it on the local node and encode the response frame */
+    private byte[] dispatch(byte[] request) {
+        int requestId = 0;
+        ByteArrayOutputStream response;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+            requestId = in.readInt();
+            Method method = RpcCodec.method(in.readShort());
+            Object[] args = new Object[in.readByte()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = RpcCodec.readValue(in, transport);
+            }
+            long traceId = 0;
+            long parentSpanId = 0;
+            if (in.available() >= 16) {
+                traceId = in.readLong();
+                parentSpanId = in.readLong();
+            }
+            try (Span span = (tracer != null && traceId != 0) ?
+                    tracer.startRemote(traceId, parentSpanId, "serve "+method.getName()) : null) {
+                try {
+                    response = RpcCodec.encodeResponse(method.invoke(node, args));
+                } catch (InvocationTargetException e) {
+                    if (span != null) {
+                        span.setError(e.getCause());
+                    }
+                    response = RpcCodec.encodeError(e.getCause());
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Failed to handle RPC request", e);
+            try {
+                response = RpcCodec.encodeError(e);
+            } catch (IOException e1) {
+                throw new IllegalStateException(e1);
+            }
+        }
+        try {
+            return RpcCodec.toFrame(response, requestId);
+        } catch (IOException e) {
+            // the result is too large to send, so tell the caller instead of leaving it waiting
+            logger.warn("Failed to send RPC response", e);
+            try {
+                return RpcCodec.toFrame(RpcCodec.encodeError(e), requestId);
+            } catch (IOException e1) {
+                throw new IllegalStateException(e1);
+            }
+        }
+    }
+
+    void close() {
+        interrupt();
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.error("Failed to close RPC server", e);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package edu.stanford.cs244b.chord.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.stanford.cs244b.chord.ChordTransport;
+import edu.stanford.cs244b.chord.Finger;
+import edu.stanford.cs244b.chord.RemoteChordNodeI;
+import edu.stanford.cs244b.chord.RemoteStub;
+import edu.stanford.cs244b.trace.TraceContext;
+import edu.stanford.cs244b.trace.Tracer;
+
+/** Transport which sends RemoteChordNodeI calls in a compact binary format
+ *  (see {@link RpcCodec}) over persistent connections. Each remote node gets a
+ *  small pool of connections, and every connection carries any number of
+ *  concurrent pipelined requests, so a call costs one network round trip. */
+public class NioTransport implements ChordTransport {
+    final static Logger logger = LoggerFactory.getLogger(NioTransport.class);
+
+    static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    static final int CALL_TIMEOUT_MILLIS = 10000;
+    /** Slowest rate at which the file contents of a request are expected to be sent and
+     *  stored, including any further replicas they are passed on to, beyond which calls
+     *  carrying them time out */
+    static final int MIN_BYTES_PER_SECOND = 1024 * 1024;
+
+    private final int connectionsPerPeer;
+    private final Tracer tracer;
+    private final ConcurrentHashMap<InetSocketAddress, ConnectionPool> pools = new ConcurrentHashMap<InetSocketAddress, ConnectionPool>();
+    private NioServer server;
+    private ExecutorService serverWorkers;
+
+    /** Fixed-size set of connections to one remote node, used round-robin */
+    private static class ConnectionPool {
+        private final InetSocketAddress address;
+        private final NioConnection[] connections;
+        private final AtomicInteger next = new AtomicInteger();
+
+        ConnectionPool(InetSocketAddress address, int size) {
+            this.address = address;
+            this.connections = new NioConnection[size];
+        }
+
+        NioConnection acquire() throws IOException {
+            int index = (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+            NioConnection connection = connections[index];
+            if (connection == null || connection.isClosed()) {
+                synchronized (this) {
+                    connection = connections[index];
+                    if (connection == null || connection.isClosed()) {
+                        connection = new NioConnection(address, CONNECT_TIMEOUT_MILLIS);
+                        connections[index] = connection;
+                    }
+                }
+            }
+            return connection;
+        }
+
+        synchronized void close() {
+            for (NioConnection connection : connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    public NioTransport(int connectionsPerPeer) {
+        this(connectionsPerPeer, null);
+    }
+
+    /** Transport which records calls received within sampled traces with tracer */
+    public NioTransport(int connectionsPerPeer, Tracer tracer) {
+        this.connectionsPerPeer = Math.max(1, connectionsPerPeer);
+        this.tracer = tracer;
+    }
+
+    @Override
+    public void export(RemoteChordNodeI node, Finger location) throws RemoteException {
+        // handlers make calls of their own which may come back to this node (lookups,
+        // refreshing successors, passing on replicas), so a bounded pool could deadlock
+        serverWorkers = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "nio-rpc-worker-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            server = new NioServer(new InetSocketAddress(location.port), node, this, serverWorkers, tracer);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to listen for RPC requests on port "+location.port, e);
+        }
+        logger.info("Listening for RPC requests at "+location);
+        server.start();
+    }
+
+    @Override
+    public RemoteChordNodeI connect(final Finger location) {
+        return (RemoteChordNodeI) Proxy.newProxyInstance(RemoteChordNodeI.class.getClassLoader(),
+                new Class<?>[] {RemoteChordNodeI.class, RemoteStub.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == RemoteStub.class) {
+                    return location;
+                } else if (method.getDeclaringClass() == Object.class) {
+                    if (method.getName().equals("equals")) {
+                        return proxy == args[0];
+                    } else if (method.getName().equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    return "NioStub "+location;
+                }
+                return call(location, method, args);
+            }
+        });
+    }
+
+    /** Send a call to the remote node and wait for its result */
+    Object call(Finger location, Method method, Object[] args) throws RemoteException {
+        Short methodId = RpcCodec.methodId(method);
+        if (methodId == null) {
+            throw new RemoteException("Method "+method+" cannot be called remotely");
+        }
+        ByteArrayOutputStream request;
+        try {
+            request = RpcCodec.encodeRequest(methodId, args, TraceContext.current());
+            RpcCodec.checkFrameLength(request);
+        } catch (IOException e) {
+            // the call never reached the peer, so this must not count against its liveness
+            throw new ServerException("Cannot send "+method.getName()+" to "+location, e);
+        }
+        try {
+            NioConnection connection = poolFor(location).acquire();
+            long timeoutMillis = CALL_TIMEOUT_MILLIS + request.size() * 1000L / MIN_BYTES_PER_SECOND;
+            byte[] response = connection.call(request, timeoutMillis);
+            return RpcCodec.decodeResponse(response, this);
+        } catch (RemoteException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new RemoteException("Failed to call "+method.getName()+" on "+location, e);
+        }
+    }
+
+    private ConnectionPool poolFor(Finger location) {
+        InetSocketAddress address = new InetSocketAddress(location.host, location.port);
+        ConnectionPool pool = pools.get(address);
+        if (pool == null) {
+            ConnectionPool created = new ConnectionPool(address, connectionsPerPeer);
+            pool = pools.putIfAbsent(address, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    @Override
+    public void shutdown() {
+        if (server != null) {
+            server.close();
+            serverWorkers.shutdownNow();
+        }
+        for (ConnectionPool pool : pools.values()) {
+            pool.close();
+        }
+        pools.clear();
+    }
+}
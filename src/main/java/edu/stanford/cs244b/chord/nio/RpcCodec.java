@@ -0,0 +1,371 @@
+package edu.stanford.cs244b.chord.nio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.rmi.ServerException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.stanford.cs244b.chord.ChordTransport;
+import edu.stanford.cs244b.chord.Finger;
+import edu.stanford.cs244b.chord.LookupStep;
+import edu.stanford.cs244b.chord.RemoteChordNodeI;
+import edu.stanford.cs244b.chord.RemoteStub;
+import edu.stanford.cs244b.trace.TraceContext;
+
+/** Compact binary encoding of RemoteChordNodeI calls.
+ *  <p/>
+ *  Every message is a frame: <i>int length, int requestId</i> followed by
+ *  <ul>
+ *  <li>request: <i>short methodId, byte argCount, value...</i> and, if the call is
+ *  part of a sampled trace, <i>long traceId, long spanId</i> of the calling span</li>
+ *  <li>response: <i>byte status, value</i> (or an error message if status is STATUS_ERROR)</li>
+ *  </ul>
+ *  Values are tagged with a single type byte. Every type used by RemoteChordNodeI (ints,
+ *  strings, byte arrays, Fingers, node references and so on) has its own encoding;
+ *  there is deliberately no fallback to Java serialization, so that a peer cannot make
+ *  this node instantiate arbitrary classes. */
+public final class RpcCodec {
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    /** Refuse frames larger than this. Batches of replicas are about 1 MiB, and objects
+     *  larger than ChordNode.REPLICA_PART_BYTES are sent and read in parts */
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private static final byte NULL = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte STRING = 4;
+    private static final byte BYTES = 5;
+    private static final byte FINGER = 6;
+    private static final byte FINGER_ARRAY = 7;
+    private static final byte NODE = 8;
+    private static final byte INET_ADDRESS = 9;
+    // 10 was Java serialization, which is no longer accepted
+    private static final byte LOOKUP_STEP = 11;
+    private static final byte BYTES_ARRAY = 12;
+    private static final byte INT_ARRAY = 13;
+    private static final byte LONG_ARRAY = 14;
+    private static final byte STRING_ARRAY = 15;
+
+    /** Methods of RemoteChordNodeI in a deterministic order, indexed by method id */
+    private static final Method[] METHODS = RemoteChordNodeI.class.getMethods();
+    private static final Map<Method, Short> METHOD_IDS = new HashMap<Method, Short>();
+    static {
+        Arrays.sort(METHODS, new Comparator<Method>() {
+            @Override
+            public int compare(Method a, Method b) {
+                return a.toGenericString().compareTo(b.toGenericString());
+            }
+        });
+        for (short id = 0; id < METHODS.length; id++) {
+            METHOD_IDS.put(METHODS[id], id);
+        }
+    }
+
+    private RpcCodec() {}
+
+    static Short methodId(Method method) {
+        return METHOD_IDS.get(method);
+    }
+
+    static Method method(short methodId) throws IOException {
+        if (methodId < 0 || methodId >= METHODS.length) {
+            throw new IOException("Unknown method id "+methodId);
+        }
+        return METHODS[methodId];
+    }
+
+    /** Encode a request, leaving room for the frame header (length and requestId).
+     *  The trace context is appended after the arguments, or omitted if it is null. */
+    static ByteArrayOutputStream encodeRequest(short methodId, Object[] args, TraceContext trace) throws IOException {
+        ByteArrayOutputStream bytes = newFrame();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(methodId);
+        int argCount = (args == null) ? 0 : args.length;
+        out.writeByte(argCount);
+        for (int i = 0; i < argCount; i++) {
+            writeValue(out, args[i]);
+        }
+        if (trace != null) {
+            out.writeLong(trace.traceId);
+            out.writeLong(trace.spanId);
+        }
+        out.flush();
+        return bytes;
+    }
+
+    static ByteArrayOutputStream encodeResponse(Object result) throws IOException {
+        ByteArrayOutputStream bytes = newFrame();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(STATUS_OK);
+        writeValue(out, result);
+        out.flush();
+        return bytes;
+    }
+
+    static ByteArrayOutputStream encodeError(Throwable error) throws IOException {
+        ByteArrayOutputStream bytes = newFrame();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(STATUS_ERROR);
+        writeString(out, String.valueOf(error));
+        out.flush();
+        return bytes;
+    }
+
+    /** Decode a response body (the bytes following the requestId) */
+    static Object decodeResponse(byte[] body, ChordTransport transport) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte status = in.readByte();
+        if (status == STATUS_ERROR) {
+            // like RMI, report exceptions thrown by the remote method as ServerException,
+            // so that callers can tell them apart from communication failures
+            throw new ServerException("Remote call failed: "+readString(in));
+        }
+        return readValue(in, transport);
+    }
+
+    /** Fill in the frame header of an encoded message */
+    static byte[] toFrame(ByteArrayOutputStream message, int requestId) throws IOException {
+        checkFrameLength(message);
+        byte[] frame = message.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        frame[4] = (byte) (requestId >>> 24);
+        frame[5] = (byte) (requestId >>> 16);
+        frame[6] = (byte) (requestId >>> 8);
+        frame[7] = (byte) requestId;
+        return frame;
+    }
+
+    /** Throw if the encoded message is too large to be sent as a single frame */
+    static void checkFrameLength(ByteArrayOutputStream message) throws IOException {
+        if (message.size() - 4 > MAX_FRAME_LENGTH) {
+            throw new IOException("Message of "+message.size()+" bytes exceeds the "+MAX_FRAME_LENGTH+
+                    " byte frame limit");
+        }
+    }
+
+    private static ByteArrayOutputStream newFrame() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        // placeholder for length and requestId
+        bytes.write(new byte[8], 0, 8);
+        return bytes;
+    }
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof byte[][]) {
+            byte[][] arrays = (byte[][]) value;
+            out.writeByte(BYTES_ARRAY);
+            out.writeInt(arrays.length);
+            for (byte[] bytes : arrays) {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } else if (value instanceof int[]) {
+            int[] ints = (int[]) value;
+            out.writeByte(INT_ARRAY);
+            out.writeInt(ints.length);
+            for (int i : ints) {
+                out.writeInt(i);
+            }
+        } else if (value instanceof long[]) {
+            long[] longs = (long[]) value;
+            out.writeByte(LONG_ARRAY);
+            out.writeInt(longs.length);
+            for (long l : longs) {
+                out.writeLong(l);
+            }
+        } else if (value instanceof String[]) {
+            String[] strings = (String[]) value;
+            out.writeByte(STRING_ARRAY);
+            out.writeInt(strings.length);
+            for (String string : strings) {
+                writeString(out, string);
+            }
+        } else if (value instanceof Finger) {
+            out.writeByte(FINGER);
+            writeFinger(out, (Finger) value);
+        } else if (value instanceof Finger[]) {
+            Finger[] fingers = (Finger[]) value;
+            out.writeByte(FINGER_ARRAY);
+            out.writeInt(fingers.length);
+            for (Finger finger : fingers) {
+                out.writeBoolean(finger != null);
+                if (finger != null) {
+                    writeFinger(out, finger);
+                }
+            }
+        } else if (value instanceof LookupStep) {
+            LookupStep step = (LookupStep) value;
+            out.writeByte(LOOKUP_STEP);
+            writeFinger(out, step.location);
+            writeFinger(out, step.successor);
+            writeFinger(out, step.nextHop);
+        } else if (value instanceof RemoteChordNodeI) {
+            // node references are sent as locations, the receiver connects to them itself
+            out.writeByte(NODE);
+            writeFinger(out, locationOf((RemoteChordNodeI) value));
+        } else if (value instanceof InetAddress) {
+            out.writeByte(INET_ADDRESS);
+            writeAddress(out, (InetAddress) value);
+        } else {
+            throw new IOException("Cannot encode value of "+value.getClass());
+        }
+    }
+
+    static Object readValue(DataInputStream in, ChordTransport transport) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case NULL:
+            return null;
+        case INT:
+            return in.readInt();
+        case LONG:
+            return in.readLong();
+        case BOOLEAN:
+            return in.readBoolean();
+        case STRING:
+            return readString(in);
+        case BYTES:
+            return readBytes(in);
+        case BYTES_ARRAY:
+            int count = in.readInt();
+            if (count < 0 || count > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid array length "+count);
+            }
+            byte[][] arrays = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                arrays[i] = readBytes(in);
+            }
+            return arrays;
+        case INT_ARRAY:
+            int[] ints = new int[readArrayLength(in)];
+            for (int i = 0; i < ints.length; i++) {
+                ints[i] = in.readInt();
+            }
+            return ints;
+        case LONG_ARRAY:
+            long[] longs = new long[readArrayLength(in)];
+            for (int i = 0; i < longs.length; i++) {
+                longs[i] = in.readLong();
+            }
+            return longs;
+        case STRING_ARRAY:
+            String[] strings = new String[readArrayLength(in)];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(in);
+            }
+            return strings;
+        case FINGER:
+            return readFinger(in);
+        case FINGER_ARRAY:
+            Finger[] fingers = new Finger[readArrayLength(in)];
+            for (int i = 0; i < fingers.length; i++) {
+                fingers[i] = in.readBoolean() ? readFinger(in) : null;
+            }
+            return fingers;
+        case LOOKUP_STEP:
+            return new LookupStep(readFinger(in), readFinger(in), readFinger(in));
+        case NODE:
+            return transport.connect(readFinger(in));
+        case INET_ADDRESS:
+            return readAddress(in);
+        default:
+            throw new IOException("Unknown value type "+type);
+        }
+    }
+
+    private static int readArrayLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid array length "+length);
+        }
+        return length;
+    }
+
+    private static Finger locationOf(RemoteChordNodeI node) throws IOException {
+        if (node instanceof RemoteStub) {
+            return ((RemoteStub) node).getStubLocation();
+        }
+        return node.getLocation();
+    }
+
+    private static void writeFinger(DataOutputStream out, Finger finger) throws IOException {
+        writeAddress(out, finger.host);
+        out.writeInt(finger.port);
+    }
+
+    private static Finger readFinger(DataInputStream in) throws IOException {
+        InetAddress host = readAddress(in);
+        return new Finger(host, in.readInt());
+    }
+
+    private static void writeAddress(DataOutputStream out, InetAddress address) throws IOException {
+        byte[] bytes = address.getAddress();
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    private static InetAddress readAddress(DataInputStream in) throws IOException {
+        int length = in.readUnsignedByte();
+        if (length != 4 && length != 16) {
+            throw new IOException("Invalid address length "+length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return InetAddress.getByAddress(bytes);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid length "+length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
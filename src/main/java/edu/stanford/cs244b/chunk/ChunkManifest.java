@@ -0,0 +1,96 @@
+package edu.stanford.cs244b.chunk;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Small object describing a file which was split into content-addressed chunks.
+ *  Serialized as text: a header line with the total length and SHA-256 of the
+ *  whole file, followed by one "sha256 length" line per chunk in file order. */
+public class ChunkManifest {
+    private static final String HEADER = "chunk-manifest";
+
+    public static class Chunk {
+        public final String sha256;
+        public final int length;
+
+        public Chunk(String sha256, int length) {
+            this.sha256 = sha256;
+            this.length = length;
+        }
+    }
+
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+    private long totalLength = 0;
+    private String sha256;
+
+    public void addChunk(String chunkSha256, int length) {
+        chunks.add(new Chunk(chunkSha256, length));
+        totalLength += length;
+    }
+
+    public List<Chunk> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    /** SHA-256 of the whole (reassembled) file */
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
+    public byte[] toByteArray() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(HEADER).append(' ').append(totalLength).append(' ').append(sha256).append('\n');
+        for (Chunk chunk : chunks) {
+            builder.append(chunk.sha256).append(' ').append(chunk.length).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static ChunkManifest fromByteArray(byte[] bytes) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+        String[] header = splitLine(reader.readLine(), 3);
+        if (!HEADER.equals(header[0])) {
+            throw new IOException("Not a chunk manifest");
+        }
+        ChunkManifest manifest = new ChunkManifest();
+        manifest.setSha256(header[2]);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = splitLine(line, 2);
+            manifest.addChunk(fields[0], Integer.parseInt(fields[1]));
+        }
+        if (manifest.getTotalLength() != Long.parseLong(header[1])) {
+            throw new IOException("Chunk manifest is truncated");
+        }
+        return manifest;
+    }
+
+    private static String[] splitLine(String line, int numFields) throws IOException {
+        if (line == null) {
+            throw new IOException("Chunk manifest is truncated");
+        }
+        String[] fields = line.split(" ");
+        if (fields.length != numFields) {
+            throw new IOException("Malformed chunk manifest line: "+line);
+        }
+        return fields;
+    }
+}
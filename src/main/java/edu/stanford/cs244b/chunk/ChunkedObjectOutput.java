@@ -0,0 +1,108 @@
+package edu.stanford.cs244b.chunk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+/** Reassembles a chunked file, or a byte range of it, for the client. Chunks are
+ *  fetched in parallel (possibly from many different nodes), while at most
+ *  <i>window</i> chunks are held in memory ahead of the one currently being written.
+ *  Chunks outside the requested range are never fetched. */
+public class ChunkedObjectOutput implements StreamingOutput {
+    /** Source of verified chunk contents */
+    public interface ChunkSource {
+        byte[] readChunk(ChunkManifest.Chunk chunk) throws IOException;
+    }
+
+    private final List<ChunkManifest.Chunk> chunks = new ArrayList<ChunkManifest.Chunk>();
+    /** Offset within the file of the first chunk in chunks */
+    private long firstChunkOffset = 0;
+    private final long offset;
+    private final long length;
+    private final ChunkSource source;
+    private final ExecutorService executor;
+    private final int window;
+
+    public ChunkedObjectOutput(ChunkManifest manifest, ChunkSource source, ExecutorService executor, int window) {
+        this(manifest, 0, manifest.getTotalLength(), source, executor, window);
+    }
+
+    /** Output <i>length</i> bytes of the file starting at <i>offset</i> */
+    public ChunkedObjectOutput(ChunkManifest manifest, long offset, long length,
+            ChunkSource source, ExecutorService executor, int window) {
+        this.offset = offset;
+        this.length = length;
+        this.source = source;
+        this.executor = executor;
+        this.window = window;
+        long chunkOffset = 0;
+        for (ChunkManifest.Chunk chunk : manifest.getChunks()) {
+            if (chunkOffset + chunk.length > offset && chunkOffset < offset + length) {
+                if (chunks.isEmpty()) {
+                    firstChunkOffset = chunkOffset;
+                }
+                chunks.add(chunk);
+            }
+            chunkOffset += chunk.length;
+        }
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        Iterator<ChunkManifest.Chunk> remaining = chunks.iterator();
+        long chunkOffset = firstChunkOffset;
+        long end = offset + length;
+        try {
+            while (remaining.hasNext() || !pending.isEmpty()) {
+                while (remaining.hasNext() && pending.size() < window) {
+                    pending.add(submit(remaining.next()));
+                }
+                // only the first and last chunks can extend outside the range
+                byte[] chunk = await(pending.poll());
+                int from = (int) Math.max(0, offset - chunkOffset);
+                int to = (int) Math.min(chunk.length, end - chunkOffset);
+                output.write(chunk, from, to - from);
+                chunkOffset += chunk.length;
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+        output.flush();
+    }
+
+    private Future<byte[]> submit(final ChunkManifest.Chunk chunk) {
+        return executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return source.readChunk(chunk);
+            }
+        });
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching chunk", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to fetch chunk", e.getCause());
+        }
+    }
+}
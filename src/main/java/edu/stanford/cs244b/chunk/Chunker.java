@@ -0,0 +1,103 @@
+package edu.stanford.cs244b.chunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Splits a stream into content-defined chunks using a gear rolling hash
+ *  (as in FastCDC), so that an insertion near the start of a file only
+ *  changes the chunks around it and identical regions of different uploads
+ *  produce identical chunks.
+ *  <p/>
+ *  Chunks are between averageSize/4 and averageSize*4 bytes long, and at
+ *  most one maximum-size chunk is buffered at any time. */
+public class Chunker {
+    /** Fixed seed so that every node in the ring cuts identical content at identical boundaries */
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x244bL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream inputStream;
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+
+    private final byte[] buffer;
+    private int bufferLength = 0;
+    private boolean exhausted = false;
+
+    public Chunker(InputStream inputStream, int averageSize) {
+        this.inputStream = inputStream;
+        // round average size down to a power of two so that it can be used as a bit mask
+        int average = Integer.highestOneBit(Math.max(averageSize, 64));
+        this.minSize = average / 4;
+        this.maxSize = average * 4;
+        this.mask = average - 1;
+        this.buffer = new byte[maxSize];
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /** True once the underlying stream has been read to the end */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /** If the whole stream fits within a single maximum-size chunk, consume and
+     *  return it so that it can be stored as an ordinary file; otherwise return null */
+    public byte[] readSmallObject() throws IOException {
+        fillBuffer();
+        if (!exhausted) {
+            return null;
+        }
+        byte[] contents = Arrays.copyOf(buffer, bufferLength);
+        bufferLength = 0;
+        return contents;
+    }
+
+    /** Return the next chunk, or null when the stream has been fully consumed */
+    public byte[] nextChunk() throws IOException {
+        fillBuffer();
+        if (bufferLength == 0) {
+            return null;
+        }
+        int cut = findBoundary();
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+        System.arraycopy(buffer, cut, buffer, 0, bufferLength - cut);
+        bufferLength -= cut;
+        return chunk;
+    }
+
+    private void fillBuffer() throws IOException {
+        while (!exhausted && bufferLength < maxSize) {
+            int read = inputStream.read(buffer, bufferLength, maxSize - bufferLength);
+            if (read == -1) {
+                exhausted = true;
+            } else {
+                bufferLength += read;
+            }
+        }
+    }
+
+    /** Length of the chunk at the start of the buffer */
+    private int findBoundary() {
+        if (bufferLength <= minSize) {
+            return bufferLength;
+        }
+        long hash = 0;
+        for (int i = 0; i < bufferLength; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if (i >= minSize && (hash & mask) == 0) {
+                return i + 1;
+            }
+        }
+        return bufferLength;
+    }
+}
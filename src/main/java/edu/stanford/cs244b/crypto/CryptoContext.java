@@ -0,0 +1,109 @@
+package edu.stanford.cs244b.crypto;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Security;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/** Source of the SHA-256 digests and HMAC-SHA256 MACs used to name and verify objects.
+ *  Looking an algorithm up in the JCA provider list and keying an HMAC both cost more
+ *  than hashing a small object, so instances are cloned from prototypes which are
+ *  created once, and one-shot digests reuse a digest per thread.
+ *  <p/>
+ *  Digests and MACs are the same whichever provider computes them, so the provider
+ *  can be changed without invalidating stored identifiers. The JDK provider is the
+ *  default because the JIT compiles its SHA-256 to the CPU's SHA instructions. */
+public class CryptoContext {
+    public enum Provider {
+        JDK,
+        BOUNCYCASTLE
+    }
+
+    private static class MacPrototype {
+        final SecretKeySpec key;
+        final Mac mac;
+
+        MacPrototype(SecretKeySpec key, Mac mac) {
+            this.key = key;
+            this.mac = mac;
+        }
+    }
+
+    private static volatile Provider provider = Provider.JDK;
+    private static volatile MessageDigest sha256Prototype;
+    /** Keyed MAC for the most recently used key; a shard only ever uses one key */
+    private static volatile MacPrototype macPrototype;
+
+    private final static ThreadLocal<MessageDigest> THREAD_SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return sha256();
+            } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private CryptoContext() {
+    }
+
+    /** Select the provider of new digests and MACs; call before handling requests */
+    public static synchronized void setProvider(Provider newProvider) {
+        if (newProvider == Provider.BOUNCYCASTLE && Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        provider = newProvider;
+        sha256Prototype = null;
+        macPrototype = null;
+    }
+
+    public static Provider getProvider() {
+        return provider;
+    }
+
+    /** New SHA-256 digest, which the caller may keep as long as it likes */
+    public static MessageDigest sha256() throws NoSuchAlgorithmException, NoSuchProviderException {
+        MessageDigest prototype = sha256Prototype;
+        if (prototype == null) {
+            prototype = (provider == Provider.JDK) ? MessageDigest.getInstance("SHA-256") :
+                MessageDigest.getInstance("SHA-256", BouncyCastleProvider.PROVIDER_NAME);
+            sha256Prototype = prototype;
+        }
+        try {
+            return (MessageDigest) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            return MessageDigest.getInstance(prototype.getAlgorithm(), prototype.getProvider());
+        }
+    }
+
+    /** SHA-256 digest of data, computed with this thread's digest */
+    public static byte[] sha256(byte[] data) {
+        return THREAD_SHA256.get().digest(data);
+    }
+
+    /** New HMAC-SHA256 MAC keyed with secretKey, which the caller may keep as long as it likes */
+    public static Mac hmacSha256(SecretKeySpec secretKey) throws NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException {
+        MacPrototype prototype = macPrototype;
+        if (prototype == null || !prototype.key.equals(secretKey)) {
+            Mac mac = (provider == Provider.JDK) ? Mac.getInstance("HmacSHA256") :
+                Mac.getInstance("Hmac-SHA256", BouncyCastleProvider.PROVIDER_NAME);
+            mac.init(secretKey);
+            prototype = new MacPrototype(secretKey, mac);
+            macPrototype = prototype;
+        }
+        try {
+            return (Mac) prototype.mac.clone();
+        } catch (CloneNotSupportedException e) {
+            Mac mac = Mac.getInstance(prototype.mac.getAlgorithm(), prototype.mac.getProvider());
+            mac.init(secretKey);
+            return mac;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package edu.stanford.cs244b.crypto;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+
+/**
+ * {@link OutputStream} that computes the SHA-256 and, optionally, the HMAC-SHA256 of the
+ * bytes written to it in the same pass that writes them to another stream.
+ * <p/>
+ * Writes are collected into a large buffer, and each full buffer is passed to both
+ * digests and then to the underlying stream, so every byte crosses one stream layer
+ * rather than one per digest. When an executor is given, the MAC of each buffer is
+ * computed on it while this thread computes the SHA-256 and writes the buffer, which
+ * roughly halves the time to ingest a large upload in HMAC mode.
+ */
+public class DualDigestOutputStream extends FilterOutputStream {
+
+    /** Bytes digested and written at once */
+    public final static int BUFFER_SIZE = 1024 * 1024;
+
+    private final MessageDigest _sha256;
+    private final Mac _mac;
+    private final ExecutorService _executor;
+    private final byte[] _buffer;
+    private int _count;
+
+    /** Digest bytes written to outputStream with sha256 and, unless it is null, mac.
+     *  The MAC is computed on executor if it is not null. */
+    public DualDigestOutputStream(OutputStream outputStream, MessageDigest sha256, Mac mac, ExecutorService executor) {
+        this(outputStream, sha256, mac, executor, BUFFER_SIZE);
+    }
+
+    /** With a bufferSize of 0 every write is digested and written as it is */
+    public DualDigestOutputStream(OutputStream outputStream, MessageDigest sha256, Mac mac, ExecutorService executor, int bufferSize) {
+        super(outputStream);
+        _sha256 = sha256;
+        _mac = mac;
+        _executor = executor;
+        _buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Return the SHA-256 of all bytes written so far.
+     * Should only be called once when all bytes have been written.
+     */
+    public byte[] getSha256Digest() throws IOException {
+        drain();
+        return _sha256.digest();
+    }
+
+    /**
+     * Return the HMAC of all bytes written so far, or null if no MAC is computed.
+     * Should only be called once when all bytes have been written.
+     */
+    public byte[] getMacDigest() throws IOException {
+        drain();
+        return (_mac != null) ? _mac.doFinal() : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (_buffer.length == 0) {
+            process(new byte[] { (byte) b }, 0, 1);
+            return;
+        }
+        if (_count == _buffer.length) {
+            drain();
+        }
+        _buffer[_count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (_count == 0 && len >= _buffer.length) {
+                // large writes skip the copy into the buffer
+                process(b, off, len);
+                return;
+            }
+            int copied = Math.min(len, _buffer.length - _count);
+            System.arraycopy(b, off, _buffer, _count, copied);
+            _count += copied;
+            off += copied;
+            len -= copied;
+            if (_count == _buffer.length) {
+                drain();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (_count > 0) {
+            process(_buffer, 0, _count);
+            _count = 0;
+        }
+    }
+
+    /** Digest the bytes and write them, returning only once the MAC has seen them too */
+    private void process(final byte[] b, final int off, final int len) throws IOException {
+        Future<?> macUpdate = null;
+        if (_mac != null && _executor != null) {
+            macUpdate = _executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    _mac.update(b, off, len);
+                }
+            });
+        } else if (_mac != null) {
+            _mac.update(b, off, len);
+        }
+        try {
+            _sha256.update(b, off, len);
+            out.write(b, off, len);
+        } finally {
+            if (macUpdate != null) {
+                awaitMac(macUpdate);
+            }
+        }
+    }
+
+    private static void awaitMac(Future<?> macUpdate) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    // the buffer must not be reused while the MAC is still reading it
+                    macUpdate.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to compute HMAC", e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
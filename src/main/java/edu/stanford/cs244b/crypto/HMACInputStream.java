@@ -3,8 +3,6 @@ package edu.stanford.cs244b.crypto;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
-
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.InvalidKeyException;
@@ -15,6 +13,7 @@ import java.security.NoSuchProviderException;
  * {@link InputStream} that builds a MAC by observing bytes as they pass through another stream.
  * <p/>
  * This implementation does not support mark/reset or seek, as all bytes of the request must be processed in order.
+ * Bytes returned by single-byte reads are collected and passed to the MAC in batches.
  * 
  * Derived from implementation by Drew Noakes <http://drewnoakes.com> at
  * https://stackoverflow.com/questions/14837886/calculate-a-hmac-from-an-http-post-without-copying-entire-request-body-into-memo
@@ -25,11 +24,17 @@ public class HMACInputStream extends InputStream {
 
     private final InputStream _inputStream;
     private final Mac _mac;
+    private final byte[] _pending = new byte[256];
+    private int _pendingLength;
 
     public HMACInputStream(InputStream inputStream, SecretKeySpec secretKey) throws NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException {
+        this(inputStream, CryptoContext.hmacSha256(secretKey));
+    }
+
+    /** Observe inputStream with an already keyed mac, eg: from {@link CryptoContext#hmacSha256} */
+    public HMACInputStream(InputStream inputStream, Mac mac) {
         _inputStream = inputStream;
-        _mac = Mac.getInstance("Hmac-SHA256", BouncyCastleProvider.PROVIDER_NAME);
-        _mac.init(secretKey);
+        _mac = mac;
     }
 
     /**
@@ -37,32 +42,42 @@ public class HMACInputStream extends InputStream {
      * Should only be called once when the stream has been consumed.
      */
     public byte[] getDigest() {
+        flushPending();
         return _mac.doFinal();
     }
 
+    private void flushPending() {
+        if (_pendingLength > 0) {
+            _mac.update(_pending, 0, _pendingLength);
+            _pendingLength = 0;
+        }
+    }
+
     // Override default InputStream methods below
     
     @Override
     public int read() throws IOException {
         int i = _inputStream.read();
-        if (i != -1)
-            _mac.update((byte)i);
+        if (i != -1) {
+            if (_pendingLength == _pending.length)
+                flushPending();
+            _pending[_pendingLength++] = (byte)i;
+        }
         return i;
     }
 
     @Override
     public int read(byte[] b) throws IOException {
-        int i = _inputStream.read(b);
-        if (i != -1)
-            _mac.update(b, 0, i);
-        return i;
+        return read(b, 0, b.length);
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
         int i = _inputStream.read(b, off, len);
-        if (i != -1)
+        if (i > 0) {
+            flushPending();
             _mac.update(b, off, i);
+        }
         return i;
     }
 
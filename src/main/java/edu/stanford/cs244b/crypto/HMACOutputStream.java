@@ -0,0 +1,51 @@
+package edu.stanford.cs244b.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+/**
+ * {@link OutputStream} that builds a MAC by observing bytes as they are written to another stream.
+ * Counterpart of {@link HMACInputStream} for data which is produced rather than consumed,
+ * eg: a file being reassembled from chunks while it is sent to the client.
+ */
+public class HMACOutputStream extends FilterOutputStream {
+
+    private final Mac _mac;
+
+    public HMACOutputStream(OutputStream outputStream, SecretKeySpec secretKey) throws NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException {
+        this(outputStream, CryptoContext.hmacSha256(secretKey));
+    }
+
+    /** Observe outputStream with an already keyed mac, eg: from {@link CryptoContext#hmacSha256} */
+    public HMACOutputStream(OutputStream outputStream, Mac mac) {
+        super(outputStream);
+        _mac = mac;
+    }
+
+    /**
+     * Return the HMAC of all bytes written so far.
+     * Should only be called once when all bytes have been written.
+     */
+    public byte[] getDigest() {
+        return _mac.doFinal();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        _mac.update((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        _mac.update(b, off, len);
+    }
+}
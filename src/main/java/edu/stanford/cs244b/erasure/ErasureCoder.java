@@ -0,0 +1,135 @@
+package edu.stanford.cs244b.erasure;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/** Splits objects into erasure-coded fragments and rebuilds them from any dataShards
+ *  of the fragments. Each fragment carries a header describing the code and the
+ *  object, and a checksum of its shard so that corrupt fragments are rejected:
+ *  <pre>[int magic][byte dataShards][byte parityShards][byte index][long objectLength][int crc32][shard]</pre> */
+public class ErasureCoder {
+    private final static int MAGIC = 0x65726173; // "eras"
+    private final static int HEADER_BYTES = 4 + 3 + 8 + 4;
+
+    /** Decoded fragment */
+    public static class Fragment {
+        public final int index;
+        public final long objectLength;
+        public final byte[] shard;
+
+        Fragment(int index, long objectLength, byte[] shard) {
+            this.index = index;
+            this.objectLength = objectLength;
+            this.shard = shard;
+        }
+    }
+
+    private final ReedSolomon code;
+
+    public ErasureCoder(int dataShards, int parityShards) {
+        this.code = new ReedSolomon(dataShards, parityShards);
+    }
+
+    public int getDataShards() {
+        return code.getDataShards();
+    }
+
+    public int getTotalShards() {
+        return code.getTotalShards();
+    }
+
+    /** Name under which fragment index of the object with the given sha256 is stored */
+    public static String fragmentName(String sha256Hash, int index) {
+        return sha256Hash+"."+index;
+    }
+
+    /** Encode the object into getTotalShards() fragments */
+    public byte[][] encode(byte[] object) throws IOException {
+        int dataShards = code.getDataShards();
+        int shardLength = Math.max(1, (object.length + dataShards - 1) / dataShards);
+        byte[][] shards = new byte[code.getTotalShards()][shardLength];
+        for (int i = 0; i < dataShards; i++) {
+            int offset = i * shardLength;
+            if (offset < object.length) {
+                System.arraycopy(object, offset, shards[i], 0, Math.min(shardLength, object.length - offset));
+            }
+        }
+        code.encode(shards);
+        byte[][] fragments = new byte[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            fragments[i] = toByteArray(i, object.length, shards[i]);
+        }
+        return fragments;
+    }
+
+    /** Rebuild the object from fragments indexed by fragment index, at least
+     *  getDataShards() of which are non-null */
+    public byte[] decode(Fragment[] fragments) throws IOException {
+        byte[][] shards = new byte[code.getTotalShards()][];
+        boolean[] present = new boolean[shards.length];
+        long objectLength = -1;
+        for (Fragment fragment : fragments) {
+            if (fragment != null) {
+                shards[fragment.index] = fragment.shard;
+                present[fragment.index] = true;
+                objectLength = fragment.objectLength;
+            }
+        }
+        code.decodeData(shards, present);
+        if (objectLength > Integer.MAX_VALUE) {
+            throw new IOException("Object of "+objectLength+" bytes is too large to rebuild in memory");
+        }
+        byte[] object = new byte[(int) objectLength];
+        for (int i = 0, offset = 0; offset < object.length; i++) {
+            int length = Math.min(shards[i].length, object.length - offset);
+            System.arraycopy(shards[i], 0, object, offset, length);
+            offset += length;
+        }
+        return object;
+    }
+
+    /** Parse a fragment, checking that it belongs to this code and is intact */
+    public Fragment parse(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < HEADER_BYTES || in.readInt() != MAGIC) {
+            throw new IOException("Not an erasure-coded fragment");
+        }
+        int dataShards = in.readUnsignedByte();
+        int parityShards = in.readUnsignedByte();
+        int index = in.readUnsignedByte();
+        long objectLength = in.readLong();
+        int crc = in.readInt();
+        if (dataShards != code.getDataShards() || parityShards != code.getParityShards() || index >= code.getTotalShards()) {
+            throw new IOException("Fragment was encoded with "+dataShards+"+"+parityShards+" shards, expected "+
+                    code.getDataShards()+"+"+code.getParityShards());
+        }
+        byte[] shard = new byte[bytes.length - HEADER_BYTES];
+        in.readFully(shard);
+        CRC32 checksum = new CRC32();
+        checksum.update(shard);
+        if ((int) checksum.getValue() != crc) {
+            throw new IOException("Fragment "+index+" is corrupt");
+        }
+        return new Fragment(index, objectLength, shard);
+    }
+
+    private byte[] toByteArray(int index, long objectLength, byte[] shard) throws IOException {
+        CRC32 checksum = new CRC32();
+        checksum.update(shard);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES + shard.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(code.getDataShards());
+        out.writeByte(code.getParityShards());
+        out.writeByte(index);
+        out.writeLong(objectLength);
+        out.writeInt((int) checksum.getValue());
+        out.write(shard);
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
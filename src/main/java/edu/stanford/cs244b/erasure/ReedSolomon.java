@@ -0,0 +1,216 @@
+package edu.stanford.cs244b.erasure;
+
+import java.util.Arrays;
+
+/** Systematic Reed-Solomon code over GF(2^8) with dataShards data shards and
+ *  parityShards parity shards: any dataShards of the shards are enough to
+ *  recover the rest.
+ *  <p/>
+ *  The encoding matrix is a Vandermonde matrix multiplied by the inverse of its top
+ *  square, so that the first dataShards rows are the identity (data shards are stored
+ *  as they are) and every square submatrix is invertible. */
+public class ReedSolomon {
+    /** Primitive polynomial x^8 + x^4 + x^3 + x^2 + 1 */
+    private final static int POLYNOMIAL = 0x11d;
+
+    private final static byte[] EXP = new byte[512];
+    private final static int[] LOG = new int[256];
+    /** MULTIPLY[a][b] = a * b, so that the inner loops are a single table lookup */
+    private final static byte[][] MULTIPLY = new byte[256][256];
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int a = 0; a < 256; a++) {
+            for (int b = 0; b < 256; b++) {
+                MULTIPLY[a][b] = multiply(a, b);
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    /** (dataShards + parityShards) x dataShards encoding matrix */
+    private final byte[][] matrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 255) {
+            throw new IllegalArgumentException("Unsupported code with "+dataShards+" data and "+parityShards+" parity shards");
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        int totalShards = dataShards + parityShards;
+        byte[][] vandermonde = new byte[totalShards][dataShards];
+        for (int row = 0; row < totalShards; row++) {
+            for (int column = 0; column < dataShards; column++) {
+                vandermonde[row][column] = power(row, column);
+            }
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    public int getTotalShards() {
+        return dataShards + parityShards;
+    }
+
+    /** Compute the parity shards from the data shards; all shards have the same length */
+    public void encode(byte[][] shards) {
+        byte[][] parityRows = new byte[parityShards][];
+        byte[][] parity = new byte[parityShards][];
+        for (int i = 0; i < parityShards; i++) {
+            parityRows[i] = matrix[dataShards + i];
+            parity[i] = shards[dataShards + i];
+        }
+        byte[][] data = new byte[dataShards][];
+        System.arraycopy(shards, 0, data, 0, dataShards);
+        codeShards(parityRows, data, parity);
+    }
+
+    /** Rebuild the missing data shards from any dataShards shards which are present.
+     *  Missing entries of shards are allocated; parity shards are not rebuilt. */
+    public void decodeData(byte[][] shards, boolean[] present) {
+        int shardLength = -1;
+        int missingData = 0;
+        for (int i = 0; i < shards.length; i++) {
+            if (present[i]) {
+                shardLength = shards[i].length;
+            } else if (i < dataShards) {
+                missingData++;
+            }
+        }
+        if (missingData == 0) {
+            return;
+        }
+        // the rows of the encoding matrix for the first dataShards shards present
+        byte[][] subMatrix = new byte[dataShards][];
+        byte[][] subShards = new byte[dataShards][];
+        for (int i = 0, found = 0; i < shards.length && found < dataShards; i++) {
+            if (present[i]) {
+                subMatrix[found] = matrix[i];
+                subShards[found] = shards[i];
+                found++;
+            }
+        }
+        if (subMatrix[dataShards - 1] == null) {
+            throw new IllegalArgumentException("Need "+dataShards+" shards to decode");
+        }
+        byte[][] decodeMatrix = invert(subMatrix);
+        byte[][] rows = new byte[missingData][];
+        byte[][] outputs = new byte[missingData][];
+        for (int i = 0, missing = 0; i < dataShards; i++) {
+            if (!present[i]) {
+                shards[i] = new byte[shardLength];
+                rows[missing] = decodeMatrix[i];
+                outputs[missing] = shards[i];
+                missing++;
+            }
+        }
+        codeShards(rows, subShards, outputs);
+    }
+
+    /** outputs[i] = sum over j of rows[i][j] * inputs[j] */
+    private static void codeShards(byte[][] rows, byte[][] inputs, byte[][] outputs) {
+        for (int i = 0; i < outputs.length; i++) {
+            byte[] output = outputs[i];
+            Arrays.fill(output, (byte) 0);
+            for (int j = 0; j < inputs.length; j++) {
+                byte[] table = MULTIPLY[rows[i][j] & 0xff];
+                byte[] input = inputs[j];
+                for (int b = 0; b < output.length; b++) {
+                    output[b] ^= table[input[b] & 0xff];
+                }
+            }
+        }
+    }
+
+    private static byte multiply(int a, int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static byte power(int a, int n) {
+        if (n == 0) {
+            return 1;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[(LOG[a] * n) % 255];
+    }
+
+    private static byte inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    private static byte[][] multiply(byte[][] left, byte[][] right) {
+        byte[][] result = new byte[left.length][right[0].length];
+        for (int row = 0; row < left.length; row++) {
+            for (int column = 0; column < right[0].length; column++) {
+                int value = 0;
+                for (int i = 0; i < right.length; i++) {
+                    value ^= MULTIPLY[left[row][i] & 0xff][right[i][column] & 0xff];
+                }
+                result[row][column] = (byte) value;
+            }
+        }
+        return result;
+    }
+
+    /** Invert a square matrix by Gauss-Jordan elimination */
+    private static byte[][] invert(byte[][] square) {
+        int size = square.length;
+        byte[][] work = new byte[size][2 * size];
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(square[row], 0, work[row], 0, size);
+            work[row][size + row] = 1;
+        }
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            while (pivot < size && work[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == size) {
+                throw new IllegalArgumentException("Matrix is singular");
+            }
+            byte[] swap = work[pivot];
+            work[pivot] = work[column];
+            work[column] = swap;
+            byte[] scale = MULTIPLY[inverse(work[column][column] & 0xff) & 0xff];
+            for (int i = 0; i < 2 * size; i++) {
+                work[column][i] = scale[work[column][i] & 0xff];
+            }
+            for (int row = 0; row < size; row++) {
+                if (row != column && work[row][column] != 0) {
+                    byte[] factor = MULTIPLY[work[row][column] & 0xff];
+                    for (int i = 0; i < 2 * size; i++) {
+                        work[row][i] ^= factor[work[column][i] & 0xff];
+                    }
+                }
+            }
+        }
+        byte[][] result = new byte[size][size];
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(work[row], size, result[row], 0, size);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,57 @@
+package edu.stanford.cs244b.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+/** Region of a file which holds an object: the whole file for objects stored one
+ *  per file, or a slice of a segment for packed objects. Lets callers stream the
+ *  object straight from disk without knowing how it is stored. */
+public class BlobRef {
+    public final Path file;
+    public final long offset;
+    public final long length;
+
+    public BlobRef(Path file, long offset, long length) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /** Stream over the object's bytes, which the caller must close */
+    public InputStream openStream() throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        channel.position(offset);
+        return new BoundedInputStream(Channels.newInputStream(channel), length);
+    }
+
+    public byte[] readAll() throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Object in "+file+" is too large to read into memory");
+        }
+        return read(0, (int) length);
+    }
+
+    /** Read up to <i>count</i> bytes of the object starting at <i>position</i> within it;
+     *  fewer are returned only at the end of the object */
+    public byte[] read(long position, int count) throws IOException {
+        if (position < 0 || count < 0) {
+            throw new IOException("Invalid region "+position+"+"+count+" of object in "+file);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(count, length - position)));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + position + buffer.position()) < 0) {
+                    throw new IOException("Object in "+file+" is truncated");
+                }
+            }
+        }
+        return buffer.array();
+    }
+}
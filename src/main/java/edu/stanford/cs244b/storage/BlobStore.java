@@ -0,0 +1,36 @@
+package edu.stanford.cs244b.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/** Storage for immutable objects identified by name (usually a hex digest).
+ *  Every write is durable once the method returns. */
+public interface BlobStore {
+    /** Receives the names of the objects in a store */
+    interface NameVisitor {
+        void visit(String name) throws IOException;
+    }
+
+    /** Short name of the store, eg: "data" or "replica" */
+    String getName();
+
+    /** Whether the named object is present */
+    boolean contains(String name);
+
+    /** Location of the named object's bytes, or null if it is not present */
+    BlobRef get(String name) throws IOException;
+
+    /** Store an object held in memory */
+    void put(String name, byte[] data) throws IOException;
+
+    /** Store an object which was written to a temp file and forced to disk;
+     *  the store takes ownership of the file */
+    void putFile(String name, Path file) throws IOException;
+
+    /** Remove the named object, returns false if it was not present */
+    boolean delete(String name) throws IOException;
+
+    /** Pass the name of every object in the store which starts with prefix to the visitor,
+     *  in no particular order. Objects written or deleted during the walk may or may not be visited. */
+    void visitNames(String prefix, NameVisitor visitor) throws IOException;
+}
@@ -0,0 +1,80 @@
+package edu.stanford.cs244b.storage;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Thread-safe Bloom filter over object names. A negative answer is definite,
+ *  so callers only need to check the filesystem when mightContain returns true. */
+public class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+    private final long capacity;
+
+    /** Filter for up to capacity names with roughly the given false positive probability */
+    public BloomFilter(long capacity, double falsePositiveProbability) {
+        this.capacity = Math.max(capacity, 1);
+        long optimalBits = (long) Math.ceil(-this.capacity * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        int numWords = (int) Math.min(Integer.MAX_VALUE, (optimalBits + 63) / 64);
+        this.bits = new AtomicLongArray(numWords);
+        this.numBits = numWords * 64L;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / this.capacity * Math.log(2)));
+    }
+
+    /** Number of names the filter was sized for */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public void add(String name) {
+        long hash1 = hash(name);
+        long hash2 = mix(hash1);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = index(hash1 + i * hash2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(word);
+                if ((current & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    public boolean mightContain(String name) {
+        long hash1 = hash(name);
+        long hash2 = mix(hash1);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = index(hash1 + i * hash2);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long index(long hash) {
+        return (hash & Long.MAX_VALUE) % numBits;
+    }
+
+    /** 64-bit FNV-1a */
+    static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** Finalizer of MurmurHash3, derives an independent second hash */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash | 1;
+    }
+}
@@ -0,0 +1,82 @@
+package edu.stanford.cs244b.storage;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/** Stores each object in its own file within an {@link ObjectDirectory}.
+ *  Files are written to a temp directory, forced and moved into place,
+ *  so that readers never see a partial object, and the move is forced too. */
+public class FileBlobStore implements BlobStore {
+    private final String name;
+    private final ObjectDirectory objects;
+    private final Path tempDir;
+
+    public FileBlobStore(String name, ObjectDirectory objects, Path tempDir) {
+        this.name = name;
+        this.objects = objects;
+        this.tempDir = tempDir;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public ObjectDirectory getObjects() {
+        return objects;
+    }
+
+    @Override
+    public boolean contains(String objectName) {
+        return objects.contains(objectName);
+    }
+
+    @Override
+    public BlobRef get(String objectName) throws IOException {
+        if (!objects.contains(objectName)) {
+            return null;
+        }
+        Path path = objects.resolve(objectName);
+        try {
+            return new BlobRef(path, 0, Files.size(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String objectName, byte[] data) throws IOException {
+        Path tempPath = tempDir.resolve(UUID.randomUUID().toString());
+        try (FileOutputStream tempOutputStream = new FileOutputStream(tempPath.toFile())) {
+            tempOutputStream.write(data);
+            tempOutputStream.getChannel().force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        putFile(objectName, tempPath);
+    }
+
+    @Override
+    public void putFile(String objectName, Path file) throws IOException {
+        Path path = objects.prepare(objectName);
+        Files.move(file, path, StandardCopyOption.ATOMIC_MOVE);
+        ObjectDirectory.syncDirectory(path.getParent());
+        objects.added(objectName);
+    }
+
+    @Override
+    public boolean delete(String objectName) throws IOException {
+        return Files.deleteIfExists(objects.resolve(objectName));
+    }
+
+    @Override
+    public void visitNames(String prefix, NameVisitor visitor) throws IOException {
+        objects.visitNames(prefix, visitor);
+    }
+}
@@ -0,0 +1,103 @@
+package edu.stanford.cs244b.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Keeps a {@link MerkleTree} of the names held by another store up to date as objects
+ *  are written and deleted through it, so that replicas can compare their contents
+ *  without listing them. The tree is built by visiting every name when it is opened. */
+public class MerkleBlobStore implements BlobStore {
+    final static Logger logger = LoggerFactory.getLogger(MerkleBlobStore.class);
+
+    /** Writes and deletes of the same name are serialized, so the tree sees each change once */
+    final static int LOCK_STRIPES = 64;
+
+    private final BlobStore store;
+    private final MerkleTree tree = new MerkleTree();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public MerkleBlobStore(BlobStore store) throws IOException {
+        this.store = store;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        long start = System.currentTimeMillis();
+        final long[] count = new long[1];
+        store.visitNames("", new NameVisitor() {
+            @Override
+            public void visit(String name) {
+                tree.toggle(name);
+                count[0]++;
+            }
+        });
+        logger.info("Built hash tree of "+count[0]+" objects in "+store.getName()+" store in "+
+                (System.currentTimeMillis() - start)+" ms");
+    }
+
+    public MerkleTree getTree() {
+        return tree;
+    }
+
+    @Override
+    public String getName() {
+        return store.getName();
+    }
+
+    @Override
+    public boolean contains(String name) {
+        return store.contains(name);
+    }
+
+    @Override
+    public BlobRef get(String name) throws IOException {
+        return store.get(name);
+    }
+
+    @Override
+    public void put(String name, byte[] data) throws IOException {
+        synchronized (lockFor(name)) {
+            if (store.contains(name)) {
+                // objects are immutable, so the copy already stored is the same
+                return;
+            }
+            store.put(name, data);
+            tree.toggle(name);
+        }
+    }
+
+    @Override
+    public void putFile(String name, Path file) throws IOException {
+        synchronized (lockFor(name)) {
+            if (store.contains(name)) {
+                Files.delete(file);
+                return;
+            }
+            store.putFile(name, file);
+            tree.toggle(name);
+        }
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        synchronized (lockFor(name)) {
+            boolean deleted = store.delete(name);
+            if (deleted) {
+                tree.toggle(name);
+            }
+            return deleted;
+        }
+    }
+
+    @Override
+    public void visitNames(String prefix, NameVisitor visitor) throws IOException {
+        store.visitNames(prefix, visitor);
+    }
+
+    private Object lockFor(String name) {
+        return locks[(name.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+}
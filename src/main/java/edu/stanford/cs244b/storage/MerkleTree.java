@@ -0,0 +1,81 @@
+package edu.stanford.cs244b.storage;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Merkle tree over the names of the objects in a store, bucketed by the first
+ *  LEAF_BITS bits of the name (the leading bits of its Chord identifier).
+ *  <p/>
+ *  Each node holds the XOR of the hashes of the names below it, so that adding or
+ *  removing a name updates one path from leaf to root, and two stores holding the
+ *  same names in a subtree have equal digests for it. Nodes are numbered as in a
+ *  binary heap: the root is 1, the children of node i are 2i and 2i+1, and leaf j
+ *  is node LEAVES + j. */
+public class MerkleTree {
+    public final static int LEAF_BITS = 16;
+    public final static int LEAVES = 1 << LEAF_BITS;
+    public final static int ROOT = 1;
+
+    private final AtomicLongArray digests = new AtomicLongArray(2 * LEAVES);
+
+    /** Leaf holding the identifier */
+    public static int leafOf(int identifier) {
+        return identifier >>> (32 - LEAF_BITS);
+    }
+
+    /** Leaf holding the named object, or -1 if the name does not start with a hex identifier */
+    public static int leafOf(String name) {
+        if (name.length() < LEAF_BITS / 4) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(0, LEAF_BITS / 4), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** First and last identifiers in a leaf */
+    public static int firstIdentifier(int leaf) {
+        return leaf << (32 - LEAF_BITS);
+    }
+
+    public static int lastIdentifier(int leaf) {
+        return firstIdentifier(leaf) | ((1 << (32 - LEAF_BITS)) - 1);
+    }
+
+    /** Prefix shared by the names of all objects in a leaf */
+    public static String prefixOf(int leaf) {
+        return String.format("%0"+(LEAF_BITS / 4)+"x", leaf);
+    }
+
+    public static boolean isLeaf(int node) {
+        return node >= LEAVES;
+    }
+
+    /** Add a name which was not present, or remove one which was */
+    public void toggle(String name) {
+        int leaf = leafOf(name);
+        if (leaf < 0) {
+            return;
+        }
+        long hash = BloomFilter.hash(name);
+        for (int node = LEAVES + leaf; node >= ROOT; node >>>= 1) {
+            long current;
+            do {
+                current = digests.get(node);
+            } while (!digests.compareAndSet(node, current, current ^ hash));
+        }
+    }
+
+    public long digest(int node) {
+        return digests.get(node);
+    }
+
+    public long[] digests(int[] nodes) {
+        long[] result = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            result[i] = digests.get(nodes[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,267 @@
+package edu.stanford.cs244b.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Directory of objects named by hex digests, fanned out over two levels of
+ *  two-character prefix directories (<i>root/ab/cd/abcd...</i>) so that no single
+ *  directory grows to millions of entries.
+ *  <p/>
+ *  An in-memory Bloom filter of the names present is built by a parallel walk when
+ *  the directory is opened, so that lookups of missing objects never touch the disk.
+ *  Objects written through this class must be reported with {@link #added(String)}. */
+public class ObjectDirectory {
+    final static Logger logger = LoggerFactory.getLogger(ObjectDirectory.class);
+
+    final static int PREFIX_LEVELS = 2;
+    final static int PREFIX_LENGTH = 2;
+
+    /** The index is sized for at least this many objects, and twice the number found at startup */
+    final static long MIN_INDEX_CAPACITY = 1 << 20;
+    final static double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    final static int WALK_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final Path root;
+    private volatile BloomFilter index;
+    /** Index being built by a walk, which also receives names added in the meantime */
+    private volatile BloomFilter rebuildTarget;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+
+    /** Open the directory, moving objects left at the top level by older versions into
+     *  their prefix directories, and index its contents */
+    public ObjectDirectory(Path root) throws IOException {
+        this.root = root;
+        Files.createDirectories(root);
+        int migrated = migrate(root);
+        if (migrated > 0) {
+            logger.info("Moved "+migrated+" objects in "+root+" into prefix directories");
+        }
+        long start = System.currentTimeMillis();
+        rebuildIndex(0);
+        logger.info("Indexed "+count.get()+" objects in "+root+" in "+(System.currentTimeMillis() - start)+" ms");
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /** Location of the named object, whether or not it exists */
+    public Path resolve(String name) {
+        return resolve(root, name);
+    }
+
+    private static Path resolve(Path root, String name) {
+        Path path = root;
+        for (int level = 0; level < PREFIX_LEVELS; level++) {
+            int begin = level * PREFIX_LENGTH;
+            int end = begin + PREFIX_LENGTH;
+            path = path.resolve(end <= name.length() ? name.substring(begin, end).toLowerCase() : "_");
+        }
+        return path.resolve(name);
+    }
+
+    /** Location of the named object, creating its prefix directories if needed */
+    public Path prepare(String name) throws IOException {
+        Path path = resolve(name);
+        Path parent = path.getParent();
+        if (!Files.isDirectory(parent)) {
+            Files.createDirectories(parent);
+            // the entries of new prefix directories must be durable before objects in them are
+            for (Path directory = parent; !directory.equals(root); directory = directory.getParent()) {
+                syncDirectory(directory.getParent());
+            }
+        }
+        return path;
+    }
+
+    /** Make files created, renamed or deleted in the directory durable */
+    public static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /** Whether the named object exists; only checks the disk if the index might contain it */
+    public boolean contains(String name) {
+        return index.mightContain(name) && Files.exists(resolve(name));
+    }
+
+    /** Record that the named object was written to the location returned by prepare */
+    public void added(String name) {
+        index.add(name);
+        BloomFilter target = rebuildTarget;
+        if (target != null) {
+            target.add(name);
+        }
+        if (count.incrementAndGet() > index.getCapacity() && rebuilding.compareAndSet(false, true)) {
+            // the false positive rate climbs past capacity, rebuild a larger index in the background
+            Thread rebuilder = new Thread("index-rebuild") {
+                @Override
+                public void run() {
+                    try {
+                        rebuildIndex(count.get());
+                    } catch (IOException e) {
+                        logger.error("Failed to rebuild index of "+root, e);
+                    } finally {
+                        rebuilding.set(false);
+                    }
+                }
+            };
+            rebuilder.setDaemon(true);
+            rebuilder.start();
+        }
+    }
+
+    /** Pass the name of every object in the directory which starts with prefix to the
+     *  visitor; only the prefix directories which can hold such names are walked */
+    public void visitNames(final String prefix, final BlobStore.NameVisitor visitor) throws IOException {
+        SimpleFileVisitor<Path> fileVisitor = new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                String name = file.getFileName().toString();
+                if (attributes.isRegularFile() && name.startsWith(prefix)) {
+                    visitor.visit(name);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        };
+        Path directory = root;
+        for (int level = 0; level < PREFIX_LEVELS && prefix.length() >= (level + 1) * PREFIX_LENGTH; level++) {
+            directory = directory.resolve(prefix.substring(level * PREFIX_LENGTH, (level + 1) * PREFIX_LENGTH).toLowerCase());
+        }
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                Files.walkFileTree(entry, fileVisitor);
+            }
+        }
+    }
+
+    /** Number of objects indexed, deleted objects included */
+    public long size() {
+        return count.get();
+    }
+
+    /** Walk the directory into a new index sized for the objects found. The current index
+     *  stays in use until the walk ends; objects added meanwhile go into both. */
+    private void rebuildIndex(long minCapacity) throws IOException {
+        long capacity = Math.max(MIN_INDEX_CAPACITY, 2 * minCapacity);
+        try {
+            while (true) {
+                BloomFilter newIndex = new BloomFilter(capacity, FALSE_POSITIVE_PROBABILITY);
+                rebuildTarget = newIndex;
+                long found = walk(newIndex);
+                if (found * 2 <= capacity) {
+                    index = newIndex;
+                    count.set(found);
+                    return;
+                }
+                // more objects than expected, walk again into an index which fits them
+                capacity = 2 * found;
+            }
+        } finally {
+            rebuildTarget = null;
+        }
+    }
+
+    /** Add the name of every object to the filter, walking each top-level prefix directory
+     *  on its own thread; returns the number of objects found */
+    private long walk(final BloomFilter filter) throws IOException {
+        List<Path> prefixes = new ArrayList<Path>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry)) {
+                    prefixes.add(entry);
+                }
+            }
+        }
+        ExecutorService walkers = Executors.newFixedThreadPool(WALK_THREADS);
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (final Path prefix : prefixes) {
+                results.add(walkers.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        final long[] found = new long[1];
+                        Files.walkFileTree(prefix, new SimpleFileVisitor<Path>() {
+                            @Override
+                            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                                if (attributes.isRegularFile()) {
+                                    filter.add(file.getFileName().toString());
+                                    found[0]++;
+                                }
+                                return FileVisitResult.CONTINUE;
+                            }
+                        });
+                        return found[0];
+                    }
+                }));
+            }
+            long total = 0;
+            for (Future<Long> result : results) {
+                total += result.get();
+            }
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing "+root, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to index "+root, e.getCause());
+        } finally {
+            walkers.shutdownNow();
+        }
+    }
+
+    /** Move every regular file at the top level of a flat directory into its prefix directory.
+     *  Returns the number of files moved; safe to run again if it was interrupted. */
+    public static int migrate(Path root) throws IOException {
+        int moved = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) {
+                    Path target = resolve(root, entry.getFileName().toString());
+                    Files.createDirectories(target.getParent());
+                    Files.move(entry, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    moved++;
+                }
+            }
+        }
+        return moved;
+    }
+
+    /** Migrate the directories named on the command line, for use while the server is stopped */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: ObjectDirectory <directory>...");
+            System.exit(1);
+        }
+        for (String directory : args) {
+            Path root = java.nio.file.Paths.get(directory);
+            System.out.println("Moved "+migrate(root)+" objects in "+root+" into prefix directories");
+        }
+    }
+}
@@ -0,0 +1,651 @@
+package edu.stanford.cs244b.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Log-structured store for small objects. Objects are appended to large segment
+ *  files instead of getting a file each, and found through an in-memory index.
+ *  <p/>
+ *  Records are framed as <i>int magic, int crc32, byte type, short nameLength,
+ *  int dataLength, name, data</i>. Writers append under a lock and then wait for
+ *  an fsync which covers every record written before it, so concurrent puts
+ *  share a single fsync (group commit).
+ *  <p/>
+ *  When a segment is full it is sealed and a hint file listing its records is
+ *  written, so that startup only has to scan the active segment. A background
+ *  task copies the live records of mostly-dead segments into the active segment
+ *  and deletes them once in-flight reads have had time to finish. */
+public class PackBlobStore implements BlobStore, Closeable {
+    final static Logger logger = LoggerFactory.getLogger(PackBlobStore.class);
+
+    final static long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    /** Sealed segments with less than this fraction of live bytes are compacted */
+    final static double COMPACT_LIVE_RATIO = 0.5;
+    final static long COMPACT_INTERVAL_SECONDS = 60;
+
+    /** Compacted segments are kept this long for readers which already hold a BlobRef */
+    final static long RETIRE_DELAY_MILLIS = 60 * 1000;
+
+    final static int BUFFER_SIZE = 1024 * 1024;
+
+    private final static int RECORD_MAGIC = 0x7061636b; // "pack"
+    private final static int HEADER_BYTES = 15;
+    private final static byte TYPE_PUT = 1;
+    private final static byte TYPE_DELETE = 2;
+
+    private final static String SEGMENT_SUFFIX = ".pack";
+    private final static String HINT_SUFFIX = ".hint";
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    /** A record as listed in a hint file */
+    static class Record {
+        final byte type;
+        final String name;
+        final long recordOffset;
+        final int recordLength;
+        final long dataOffset;
+        final int dataLength;
+
+        Record(byte type, String name, long recordOffset, int recordLength, long dataOffset, int dataLength) {
+            this.type = type;
+            this.name = name;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+    }
+
+    /** Where the current version of an object lives */
+    static class Location {
+        final Segment segment;
+        final Record record;
+
+        Location(Segment segment, Record record) {
+            this.segment = segment;
+            this.record = record;
+        }
+    }
+
+    static class Segment {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+        /** Only changed by the writer holding the write lock */
+        volatile long size;
+        final AtomicLong liveBytes = new AtomicLong();
+        /** Records appended while this is the active segment, written to the hint file when sealed */
+        List<Record> records = new ArrayList<Record>();
+        long retiredMillis;
+
+        Segment(long id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    private final String name;
+    private final Path directory;
+    /** Sorted, so that the names with a given prefix can be listed without a full scan */
+    private final ConcurrentSkipListMap<String, Location> index = new ConcurrentSkipListMap<String, Location>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+    private final List<Segment> retired = new ArrayList<Segment>();
+
+    /** Guards active and writtenSeq, and changes to the index */
+    private final Object writeLock = new Object();
+    private Segment active;
+    private long writtenSeq = 0;
+
+    /** Guards syncedSeq; held while forcing so that concurrent writers share an fsync */
+    private final Object syncLock = new Object();
+    private long syncedSeq = 0;
+
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "pack-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Open the store in the directory, loading the index from hint files and the active segment */
+    public PackBlobStore(String name, Path directory) throws IOException {
+        this.name = name;
+        this.directory = directory;
+        Files.createDirectories(directory);
+        long start = System.currentTimeMillis();
+
+        List<Long> ids = segmentIds();
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = new Segment(ids.get(i), segmentPath(ids.get(i)));
+            segments.put(segment.id, segment);
+            boolean isLast = (i == ids.size() - 1);
+            List<Record> records = isLast ? null : readHints(segment);
+            if (records == null) {
+                records = scan(segment, isLast);
+                if (!isLast) {
+                    writeHints(segment, records);
+                }
+            }
+            for (Record record : records) {
+                apply(segment, record);
+            }
+            if (isLast) {
+                segment.records = records;
+            } else {
+                segment.records = null;
+            }
+        }
+        for (Location location : index.values()) {
+            location.segment.liveBytes.addAndGet(location.record.recordLength);
+        }
+
+        if (segments.isEmpty()) {
+            active = new Segment(0, segmentPath(0));
+            ObjectDirectory.syncDirectory(directory);
+            segments.put(active.id, active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        logger.info("Loaded "+index.size()+" packed objects from "+segments.size()+" segments in "+directory+" in "+
+                (System.currentTimeMillis() - start)+" ms");
+
+        background.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Failed to compact "+PackBlobStore.this.directory, e);
+                }
+            }
+        }, COMPACT_INTERVAL_SECONDS, COMPACT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /** Number of live objects */
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean contains(String objectName) {
+        return index.containsKey(objectName);
+    }
+
+    @Override
+    public BlobRef get(String objectName) {
+        Location location = index.get(objectName);
+        if (location == null) {
+            return null;
+        }
+        return new BlobRef(location.segment.path, location.record.dataOffset, location.record.dataLength);
+    }
+
+    @Override
+    public void put(String objectName, byte[] data) throws IOException {
+        append(TYPE_PUT, objectName, data);
+    }
+
+    @Override
+    public void putFile(String objectName, Path file) throws IOException {
+        put(objectName, Files.readAllBytes(file));
+        Files.delete(file);
+    }
+
+    @Override
+    public boolean delete(String objectName) throws IOException {
+        if (!index.containsKey(objectName)) {
+            return false;
+        }
+        append(TYPE_DELETE, objectName, new byte[0]);
+        return true;
+    }
+
+    @Override
+    public void visitNames(String prefix, NameVisitor visitor) throws IOException {
+        Map<String, Location> matching = prefix.isEmpty() ? index :
+                index.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        for (String objectName : new ArrayList<String>(matching.keySet())) {
+            visitor.visit(objectName);
+        }
+    }
+
+    /** Append a record and wait until it is durable */
+    private void append(byte type, String objectName, byte[] data) throws IOException {
+        sync(write(type, objectName, data, null));
+    }
+
+    /** Append a record without waiting for it to be durable, returning its sequence number
+     *  for {@link #sync}. When copying a record during compaction, expected is its current
+     *  location, and the copy is skipped if the object has been overwritten or deleted
+     *  since; returns 0 if it was skipped. */
+    private long write(byte type, String objectName, byte[] data, Location expected) throws IOException {
+        byte[] nameBytes = objectName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = encodeRecord(type, nameBytes, data);
+        int recordLength = buffer.limit();
+        long seq;
+        synchronized (writeLock) {
+            if (expected != null) {
+                Location current = index.get(objectName);
+                boolean obsolete = (type == TYPE_PUT) ? (current != expected) : (current != null);
+                if (obsolete) {
+                    return 0;
+                }
+            }
+            if (active.size > 0 && active.size + recordLength > SEGMENT_BYTES) {
+                roll();
+            }
+            long offset = active.size;
+            while (buffer.hasRemaining()) {
+                active.channel.write(buffer, offset + buffer.position());
+            }
+            active.size += recordLength;
+            Record record = new Record(type, objectName, offset, recordLength,
+                    offset + HEADER_BYTES + nameBytes.length, data.length);
+            active.records.add(record);
+
+            Location previous;
+            if (type == TYPE_PUT) {
+                previous = index.put(objectName, new Location(active, record));
+                active.liveBytes.addAndGet(recordLength);
+            } else {
+                previous = index.remove(objectName);
+            }
+            if (previous != null) {
+                previous.segment.liveBytes.addAndGet(-previous.record.recordLength);
+            }
+            seq = ++writtenSeq;
+        }
+        return seq;
+    }
+
+    /** Force the active segment up to at least the given write. Sealed segments are forced when they are rolled. */
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) {
+                return;
+            }
+            FileChannel channel;
+            long target;
+            synchronized (writeLock) {
+                channel = active.channel;
+                target = writtenSeq;
+            }
+            channel.force(false);
+            syncedSeq = target;
+        }
+    }
+
+    /** Seal the active segment and start a new one; called with the write lock held */
+    private void roll() throws IOException {
+        final Segment sealed = active;
+        sealed.channel.force(false);
+        final List<Record> records = sealed.records;
+        sealed.records = null;
+        active = new Segment(sealed.id + 1, segmentPath(sealed.id + 1));
+        // forcing the segment's data does not make its directory entry durable
+        ObjectDirectory.syncDirectory(directory);
+        segments.put(active.id, active);
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeHints(sealed, records);
+                } catch (IOException e) {
+                    logger.error("Failed to write hints for "+sealed.path+", it will be scanned at startup", e);
+                }
+            }
+        });
+    }
+
+    /** Copy the live records of mostly-dead sealed segments into the active segment,
+     *  and delete segments which were retired long enough ago */
+    public void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        synchronized (retired) {
+            for (Iterator<Segment> it = retired.iterator(); it.hasNext();) {
+                Segment segment = it.next();
+                if (now - segment.retiredMillis >= RETIRE_DELAY_MILLIS) {
+                    segment.channel.close();
+                    Files.deleteIfExists(hintPath(segment.id));
+                    Files.deleteIfExists(segment.path);
+                    it.remove();
+                }
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            Segment current;
+            synchronized (writeLock) {
+                current = active;
+            }
+            if (segment == current || segment.size == 0) {
+                continue;
+            }
+            if (segment.liveBytes.get() < segment.size * COMPACT_LIVE_RATIO) {
+                compactSegment(segment);
+            }
+        }
+    }
+
+    /** Copy the live records of a sealed segment and retire it. The copies are forced once,
+     *  before the segment is retired, rather than one by one, so that compaction does not
+     *  make foreground puts wait behind an fsync per record. */
+    private void compactSegment(Segment segment) throws IOException {
+        // tombstones only matter while an older segment may still hold the object
+        boolean isOldest = segments.firstKey() == segment.id;
+        List<Record> records = readHints(segment);
+        if (records == null) {
+            records = scan(segment, false);
+        }
+        int copied = 0;
+        long lastSeq = 0;
+        for (Record record : records) {
+            long seq = 0;
+            if (record.type == TYPE_PUT) {
+                Location location = index.get(record.name);
+                if (location == null || location.segment != segment || location.record.recordOffset != record.recordOffset) {
+                    continue;
+                }
+                byte[] data = new BlobRef(segment.path, record.dataOffset, record.dataLength).readAll();
+                seq = write(TYPE_PUT, record.name, data, location);
+                if (seq != 0) {
+                    copied++;
+                }
+            } else if (!isOldest) {
+                seq = write(TYPE_DELETE, record.name, new byte[0], new Location(segment, record));
+            }
+            lastSeq = Math.max(lastSeq, seq);
+        }
+        // segments which filled up along the way were forced when they were rolled
+        sync(lastSeq);
+        segments.remove(segment.id);
+        segment.retiredMillis = System.currentTimeMillis();
+        synchronized (retired) {
+            retired.add(segment);
+        }
+        logger.info("Compacted "+segment.path+", copied "+copied+" of "+records.size()+" records");
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdownNow();
+        synchronized (writeLock) {
+            active.channel.force(false);
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    private void apply(Segment segment, Record record) {
+        if (record.type == TYPE_PUT) {
+            index.put(record.name, new Location(segment, record));
+        } else {
+            index.remove(record.name);
+        }
+    }
+
+    private static ByteBuffer encodeRecord(byte type, byte[] nameBytes, byte[] data) throws IOException {
+        if (nameBytes.length > Short.MAX_VALUE) {
+            throw new IOException("Object name is too long");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + nameBytes.length + data.length);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putInt(0); // placeholder for crc32
+        buffer.put(type);
+        buffer.putShort((short) nameBytes.length);
+        buffer.putInt(data.length);
+        buffer.put(nameBytes);
+        buffer.put(data);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, buffer.limit() - 8);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Read every valid record in the segment. Only the active segment, which is the last
+     *  one at startup, can end in a write torn by a crash, and that is cut off. Any other bad
+     *  record is corruption: it is skipped up to the next valid record and reported, and
+     *  since sealed segments were forced when they were rolled, nothing in them is cut off. */
+    private List<Record> scan(Segment segment, boolean isActive) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        long offset = scanFrom(segment, 0, records);
+        while (offset < segment.size) {
+            long next = findRecord(segment, offset + 1);
+            if (next < 0 && isActive) {
+                logger.info("Discarding "+(segment.size - offset)+" bytes of unacknowledged records at the end of "+segment.path);
+                segment.channel.truncate(offset);
+                segment.channel.force(true);
+                segment.size = offset;
+            } else if (next < 0) {
+                logger.error("Ignoring "+(segment.size - offset)+" corrupt bytes at the end of sealed segment "+segment.path);
+            } else {
+                logger.error("Skipping "+(next - offset)+" corrupt bytes at offset "+offset+" of "+segment.path);
+                offset = scanFrom(segment, next, records);
+                continue;
+            }
+            break;
+        }
+        return records;
+    }
+
+    /** Read valid records starting at the offset, returning the offset where they stopped */
+    private long scanFrom(Segment segment, long offset, List<Record> records) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] body = new byte[4096];
+        try (InputStream in = new BufferedInputStream(Channels.newInputStream(
+                FileChannel.open(segment.path, StandardOpenOption.READ).position(offset)), BUFFER_SIZE)) {
+            DataInputStream dataIn = new DataInputStream(in);
+            while (true) {
+                int checksum;
+                int bodyLength;
+                try {
+                    if (dataIn.readInt() != RECORD_MAGIC) {
+                        break;
+                    }
+                    checksum = dataIn.readInt();
+                    byte type = dataIn.readByte();
+                    short nameLength = dataIn.readShort();
+                    int dataLength = dataIn.readInt();
+                    if (nameLength < 0 || dataLength < 0 || (type != TYPE_PUT && type != TYPE_DELETE) ||
+                            offset + HEADER_BYTES + nameLength + (long) dataLength > segment.size) {
+                        break;
+                    }
+                    bodyLength = 7 + nameLength + dataLength;
+                    if (body.length < bodyLength) {
+                        body = new byte[Math.max(bodyLength, body.length * 2)];
+                    }
+                    body[0] = type;
+                    body[1] = (byte) (nameLength >>> 8);
+                    body[2] = (byte) nameLength;
+                    body[3] = (byte) (dataLength >>> 24);
+                    body[4] = (byte) (dataLength >>> 16);
+                    body[5] = (byte) (dataLength >>> 8);
+                    body[6] = (byte) dataLength;
+                    dataIn.readFully(body, 7, nameLength + dataLength);
+                    crc.reset();
+                    crc.update(body, 0, bodyLength);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    String objectName = new String(body, 7, nameLength, StandardCharsets.UTF_8);
+                    int recordLength = 8 + bodyLength;
+                    records.add(new Record(type, objectName, offset, recordLength,
+                            offset + HEADER_BYTES + nameLength, dataLength));
+                    offset += recordLength;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        return offset;
+    }
+
+    /** Offset of the first valid record at or after the offset, or -1 if there is none */
+    private long findRecord(Segment segment, long offset) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(BUFFER_SIZE);
+        while (offset + HEADER_BYTES <= segment.size) {
+            window.clear();
+            int read = segment.channel.read(window, offset);
+            if (read < 4) {
+                return -1;
+            }
+            for (int i = 0; i + 4 <= read; i++) {
+                if (window.getInt(i) == RECORD_MAGIC && isRecord(segment, offset + i)) {
+                    return offset + i;
+                }
+            }
+            offset += read - 3;
+        }
+        return -1;
+    }
+
+    /** Whether a complete record with a valid checksum starts at the offset */
+    private boolean isRecord(Segment segment, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining()) {
+            if (segment.channel.read(header, offset + header.position()) < 0) {
+                return false;
+            }
+        }
+        byte type = header.get(8);
+        short nameLength = header.getShort(9);
+        int dataLength = header.getInt(11);
+        if (nameLength < 0 || dataLength < 0 || (type != TYPE_PUT && type != TYPE_DELETE) ||
+                offset + HEADER_BYTES + nameLength + (long) dataLength > segment.size) {
+            return false;
+        }
+        ByteBuffer body = ByteBuffer.allocate(7 + nameLength + dataLength);
+        header.position(8);
+        body.put(header);
+        while (body.hasRemaining()) {
+            if (segment.channel.read(body, offset + 8 + body.position()) < 0) {
+                return false;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.limit());
+        return (int) crc.getValue() == header.getInt(4);
+    }
+
+    private void writeHints(Segment segment, List<Record> records) throws IOException {
+        Path tempPath = directory.resolve(segment.id+HINT_SUFFIX+TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), BUFFER_SIZE), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(records.size());
+            for (Record record : records) {
+                out.writeByte(record.type);
+                out.writeUTF(record.name);
+                out.writeLong(record.recordOffset);
+                out.writeInt(record.recordLength);
+                out.writeLong(record.dataOffset);
+                out.writeInt(record.dataLength);
+            }
+            out.flush();
+            long checksum = checked.getChecksum().getValue();
+            out.writeLong(checksum);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tempPath, hintPath(segment.id), StandardCopyOption.ATOMIC_MOVE);
+        ObjectDirectory.syncDirectory(directory);
+    }
+
+    /** Records listed in the segment's hint file, or null if it is missing or corrupt */
+    private List<Record> readHints(Segment segment) {
+        Path hintPath = hintPath(segment.id);
+        if (!Files.exists(hintPath)) {
+            return null;
+        }
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(hintPath), BUFFER_SIZE)) {
+            CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+            DataInputStream dataIn = new DataInputStream(checked);
+            int count = dataIn.readInt();
+            List<Record> records = new ArrayList<Record>(Math.max(0, Math.min(count, 1 << 20)));
+            for (int i = 0; i < count; i++) {
+                records.add(new Record(dataIn.readByte(), dataIn.readUTF(), dataIn.readLong(),
+                        dataIn.readInt(), dataIn.readLong(), dataIn.readInt()));
+            }
+            long checksum = checked.getChecksum().getValue();
+            if (new DataInputStream(in).readLong() != checksum) {
+                logger.error("Hint file "+hintPath+" is corrupt, scanning segment instead");
+                return null;
+            }
+            return records;
+        } catch (IOException e) {
+            logger.error("Cannot read hint file "+hintPath+", scanning segment instead", e);
+            return null;
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(id+SEGMENT_SUFFIX);
+    }
+
+    private Path hintPath(long id) {
+        return directory.resolve(id+HINT_SUFFIX);
+    }
+
+    /** Ids of the segments in the directory, in ascending order */
+    private List<Long> segmentIds() throws IOException {
+        List<Long> ids = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(TEMP_SUFFIX)) {
+                    Files.delete(file);
+                } else if (fileName.endsWith(SEGMENT_SUFFIX)) {
+                    ids.add(Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+}
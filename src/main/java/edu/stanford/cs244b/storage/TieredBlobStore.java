@@ -0,0 +1,72 @@
+package edu.stanford.cs244b.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Keeps objects up to a size threshold in a pack store and larger ones in a
+ *  file-per-object store. Lookups try the pack store first, since its index is
+ *  in memory and small objects are the common case. */
+public class TieredBlobStore implements BlobStore {
+    private final BlobStore smallObjects;
+    private final BlobStore largeObjects;
+    private final long threshold;
+
+    public TieredBlobStore(BlobStore smallObjects, BlobStore largeObjects, long threshold) {
+        this.smallObjects = smallObjects;
+        this.largeObjects = largeObjects;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public String getName() {
+        return largeObjects.getName();
+    }
+
+    /** Objects up to this many bytes are packed */
+    public long getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public boolean contains(String name) {
+        return smallObjects.contains(name) || largeObjects.contains(name);
+    }
+
+    @Override
+    public BlobRef get(String name) throws IOException {
+        BlobRef ref = smallObjects.get(name);
+        return (ref != null) ? ref : largeObjects.get(name);
+    }
+
+    @Override
+    public void put(String name, byte[] data) throws IOException {
+        if (data.length <= threshold) {
+            smallObjects.put(name, data);
+        } else {
+            largeObjects.put(name, data);
+        }
+    }
+
+    @Override
+    public void putFile(String name, Path file) throws IOException {
+        if (Files.size(file) <= threshold) {
+            smallObjects.putFile(name, file);
+        } else {
+            largeObjects.putFile(name, file);
+        }
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        boolean deletedSmall = smallObjects.delete(name);
+        boolean deletedLarge = largeObjects.delete(name);
+        return deletedSmall || deletedLarge;
+    }
+
+    @Override
+    public void visitNames(String prefix, NameVisitor visitor) throws IOException {
+        smallObjects.visitNames(prefix, visitor);
+        largeObjects.visitNames(prefix, visitor);
+    }
+}
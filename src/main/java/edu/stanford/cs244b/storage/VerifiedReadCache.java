@@ -0,0 +1,143 @@
+package edu.stanford.cs244b.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/** Least-recently-used cache of objects whose checksum has already been verified, so
+ *  that repeated reads of hot objects skip hashing them again. It holds two kinds of
+ *  entries within one byte budget:
+ *  <ul>
+ *  <li>verification results for objects on local disk, keyed by the region of the file
+ *  holding them and invalidated when the file's inode, size or mtime changes</li>
+ *  <li>verified contents of objects fetched from other nodes, keyed by identifier,
+ *  which are immutable because objects are content-addressed</li>
+ *  </ul>
+ *  A cached verification result does not notice corruption which leaves the file's
+ *  attributes unchanged; replicas are still scrubbed by anti-entropy. */
+public class VerifiedReadCache {
+    /** Approximate heap cost of an entry besides its contents */
+    final static int ENTRY_OVERHEAD_BYTES = 128;
+    
+    /** Objects larger than this fraction of the budget are not cached, so that a single
+     *  large read cannot flush the cache */
+    final static int MAX_ENTRY_FRACTION = 8;
+
+    private static class Entry {
+        /** File attributes when verified, or null for cached contents */
+        final String stamp;
+        final byte[] contents;
+        final long weight;
+
+        Entry(String key, String stamp, byte[] contents) {
+            this.stamp = stamp;
+            this.contents = contents;
+            this.weight = ENTRY_OVERHEAD_BYTES + 2 * key.length() + (contents != null ? contents.length : 0);
+        }
+    }
+
+    private final long maxBytes;
+    /** Guarded by this, iterated from least to most recently used */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    /** Cache at most maxBytes of entries */
+    public VerifiedReadCache(long maxBytes, MetricRegistry metrics) {
+        this.maxBytes = maxBytes;
+        hits = metrics.meter(MetricRegistry.name(VerifiedReadCache.class, "hits"));
+        misses = metrics.meter(MetricRegistry.name(VerifiedReadCache.class, "misses"));
+        evictions = metrics.meter(MetricRegistry.name(VerifiedReadCache.class, "evictions"));
+        metrics.register(MetricRegistry.name(VerifiedReadCache.class, "bytes"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                synchronized (VerifiedReadCache.this) {
+                    return bytes;
+                }
+            }
+        });
+    }
+
+    /** Whether object was verified to have the given identifier and its file is unchanged since */
+    public boolean isVerified(BlobRef object, String identifier) {
+        String stamp = stamp(object);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(verifiedKey(object, identifier));
+        }
+        if (entry != null && stamp != null && stamp.equals(entry.stamp)) {
+            hits.mark();
+            return true;
+        }
+        misses.mark();
+        return false;
+    }
+
+    /** Remember that object was verified to have the given identifier */
+    public void putVerified(BlobRef object, String identifier) {
+        String stamp = stamp(object);
+        if (stamp != null) {
+            put(verifiedKey(object, identifier), new Entry(verifiedKey(object, identifier), stamp, null));
+        }
+    }
+
+    /** Verified contents of the object with the given identifier, or null if they are not cached */
+    public byte[] getContents(String identifier) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(identifier);
+        }
+        if (entry != null && entry.contents != null) {
+            hits.mark();
+            return entry.contents;
+        }
+        misses.mark();
+        return null;
+    }
+
+    /** Remember the verified contents of the object with the given identifier, which callers must not modify */
+    public void putContents(String identifier, byte[] contents) {
+        put(identifier, new Entry(identifier, null, contents));
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        if (entry.weight > maxBytes / MAX_ENTRY_FRACTION) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.weight;
+        }
+        bytes += entry.weight;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().weight;
+            eldest.remove();
+            evictions.mark();
+        }
+    }
+
+    private static String verifiedKey(BlobRef object, String identifier) {
+        return identifier+"@"+object.file+":"+object.offset+":"+object.length;
+    }
+
+    /** Inode, size and mtime of the file holding object, or null if they cannot be read */
+    private static String stamp(BlobRef object) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(object.file, BasicFileAttributes.class);
+            return attributes.fileKey()+":"+attributes.size()+":"+attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
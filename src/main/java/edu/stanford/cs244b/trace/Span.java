@@ -0,0 +1,67 @@
+package edu.stanford.cs244b.trace;
+
+import java.util.concurrent.TimeUnit;
+
+/** One timed operation within a trace, such as a request, a lookup, or a call to or
+ *  from another node. The span is the current thread's context from when it is started
+ *  until it is closed, at which point it is recorded by the node which started it. */
+public class Span implements AutoCloseable {
+    final long traceId;
+    final long spanId;
+    /** Span which this one is part of, 0 for the root of a trace */
+    final long parentId;
+    /** Node which did the work, as a hex shard id */
+    public final String node;
+    public final String name;
+    /** Node at the other end of a remote call, or null */
+    public String peer;
+    public final long startMillis;
+    public long durationMicros;
+    /** Exception which ended the span, or null if it succeeded */
+    public String error;
+
+    private final long startNanos;
+    private final Tracer tracer;
+    private final TraceContext previous;
+
+    Span(Tracer tracer, long traceId, long spanId, long parentId, String name) {
+        this.tracer = tracer;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentId = parentId;
+        this.node = tracer.getNode();
+        this.name = name;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.previous = TraceContext.swap(new TraceContext(traceId, spanId, tracer));
+    }
+
+    /** Ids are shown in hex, since JSON readers may not keep all 64 bits of a number */
+    public String getTraceId() {
+        return Long.toHexString(traceId);
+    }
+
+    public String getSpanId() {
+        return Long.toHexString(spanId);
+    }
+
+    public String getParentId() {
+        return (parentId == 0) ? null : Long.toHexString(parentId);
+    }
+
+    public void setPeer(String peer) {
+        this.peer = peer;
+    }
+
+    public void setError(Throwable error) {
+        this.error = String.valueOf(error);
+    }
+
+    /** End the span, restoring the context it was started in; must be called on the same thread */
+    @Override
+    public void close() {
+        durationMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        TraceContext.swap(previous);
+        tracer.record(this);
+    }
+}
@@ -0,0 +1,55 @@
+package edu.stanford.cs244b.trace;
+
+import java.util.concurrent.Callable;
+
+/** The span which work on the current thread belongs to, and the node recording it.
+ *  Threads outside any sampled request have no context, so untraced work costs a
+ *  single thread-local lookup. */
+public final class TraceContext {
+    private final static ThreadLocal<TraceContext> CURRENT = new ThreadLocal<TraceContext>();
+
+    public final long traceId;
+    public final long spanId;
+    final Tracer tracer;
+
+    TraceContext(long traceId, long spanId, Tracer tracer) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.tracer = tracer;
+    }
+
+    /** Context of the current thread, or null if it is not traced */
+    public static TraceContext current() {
+        return CURRENT.get();
+    }
+
+    /** Make context current, returning the context it replaces */
+    static TraceContext swap(TraceContext context) {
+        TraceContext previous = CURRENT.get();
+        if (context == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(context);
+        }
+        return previous;
+    }
+
+    /** Task which runs with the current thread's context, for handing work to an executor */
+    public static <T> Callable<T> wrap(final Callable<T> task) {
+        final TraceContext captured = CURRENT.get();
+        if (captured == null) {
+            return task;
+        }
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                TraceContext previous = swap(captured);
+                try {
+                    return task.call();
+                } finally {
+                    swap(previous);
+                }
+            }
+        };
+    }
+}
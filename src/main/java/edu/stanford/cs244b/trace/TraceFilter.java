@@ -0,0 +1,54 @@
+package edu.stanford.cs244b.trace;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Starts a trace for sampled API requests, spanning the whole request including
+ *  streaming the response. A request with an X-Trace: true header is always traced.
+ *  The trace id is returned in the X-Trace-Id header, to look the trace up on the
+ *  admin traces page. */
+public class TraceFilter implements Filter {
+    public final static String FORCE_HEADER = "X-Trace";
+    public final static String TRACE_ID_HEADER = "X-Trace-Id";
+
+    private final Tracer tracer;
+
+    public TraceFilter(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public void init(FilterConfig config) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        boolean force = Boolean.parseBoolean(httpRequest.getHeader(FORCE_HEADER));
+        try (Span span = tracer.startTrace(httpRequest.getMethod()+" "+httpRequest.getRequestURI(), force)) {
+            if (span != null) {
+                ((HttpServletResponse) response).setHeader(TRACE_ID_HEADER, span.getTraceId());
+            }
+            try {
+                chain.doFilter(request, response);
+            } catch (IOException | ServletException | RuntimeException e) {
+                if (span != null) {
+                    span.setError(e);
+                }
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,70 @@
+package edu.stanford.cs244b.trace;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/** Admin page listing the traces recorded by this node as JSON, most recent last.
+ *  <code>?traceId=</code> selects a single trace, and <code>?limit=</code> the number
+ *  of most recent traces. Only this node's spans are listed; the other spans of a
+ *  trace are on the admin pages of the nodes it reached, under the same trace id. */
+@SuppressWarnings("serial")
+public class TraceServlet extends HttpServlet {
+    private final Tracer tracer;
+    private final ObjectMapper mapper;
+
+    public TraceServlet(Tracer tracer, ObjectMapper mapper) {
+        this.tracer = tracer;
+        this.mapper = mapper;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Map<String, List<Span>> traces = tracer.getTraces();
+        String traceId = request.getParameter("traceId");
+        String limit = request.getParameter("limit");
+        if (traceId != null) {
+            List<Span> trace = traces.get(traceId);
+            traces = new LinkedHashMap<String, List<Span>>();
+            if (trace != null) {
+                traces.put(traceId, trace);
+            }
+        } else if (limit != null) {
+            int count;
+            try {
+                count = Integer.parseInt(limit);
+            } catch (NumberFormatException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit must be a number");
+                return;
+            }
+            if (count < 0) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit must not be negative");
+                return;
+            }
+            traces = latest(traces, count);
+        }
+        Map<String, Object> body = new LinkedHashMap<String, Object>();
+        body.put("node", tracer.getNode());
+        body.put("traces", traces);
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+        mapper.writerWithDefaultPrettyPrinter().writeValue(response.getOutputStream(), body);
+    }
+
+    private static Map<String, List<Span>> latest(Map<String, List<Span>> traces, int limit) {
+        List<String> ids = new ArrayList<String>(traces.keySet());
+        Map<String, List<Span>> latest = new LinkedHashMap<String, List<Span>>();
+        for (String id : ids.subList(Math.max(0, ids.size() - limit), ids.size())) {
+            latest.put(id, traces.get(id));
+        }
+        return latest;
+    }
+}
@@ -0,0 +1,109 @@
+package edu.stanford.cs244b.trace;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Records the spans of sampled requests on one node in a fixed-size ring buffer, so
+ *  that the most recent traces can be inspected without any external collector.
+ *  <p/>
+ *  Whether a request is traced is decided once, where it enters the system; the decision
+ *  travels with the trace id to every node the request reaches, so a trace is either
+ *  complete or absent. Spans of one trace recorded by different nodes are joined by
+ *  their trace id. */
+public class Tracer {
+    private final String node;
+    private final double sampleRate;
+    /** Guarded by this; next is the slot to overwrite */
+    private final Span[] spans;
+    private int next;
+    private boolean full;
+
+    /** Tracer for the named node which traces sampleRate of requests, keeping the last capacity spans */
+    public Tracer(String node, double sampleRate, int capacity) {
+        this.node = node;
+        this.sampleRate = sampleRate;
+        this.spans = new Span[Math.max(1, capacity)];
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    /** Start a trace for a request arriving at this node if it is sampled (or forced),
+     *  otherwise return null. Spans may be used in try-with-resources, which skips null. */
+    public Span startTrace(String name, boolean force) {
+        if (!force && (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return null;
+        }
+        return new Span(this, newId(), newId(), 0, name);
+    }
+
+    /** Start a span on this node for a call from another node within a sampled trace */
+    public Span startRemote(long traceId, long parentId, String name) {
+        return new Span(this, traceId, newId(), parentId, name);
+    }
+
+    /** Start a span within the current thread's trace, or return null if it is not traced */
+    public static Span startSpan(String name) {
+        TraceContext context = TraceContext.current();
+        if (context == null) {
+            return null;
+        }
+        return new Span(context.tracer, context.traceId, newId(), context.spanId, name);
+    }
+
+    /** End a span returned by {@link #startSpan}, which may be null */
+    public static void endSpan(Span span) {
+        if (span != null) {
+            span.close();
+        }
+    }
+
+    synchronized void record(Span span) {
+        spans[next] = span;
+        next = (next + 1) % spans.length;
+        if (next == 0) {
+            full = true;
+        }
+    }
+
+    /** Recorded spans, oldest first */
+    public synchronized List<Span> getSpans() {
+        List<Span> recorded = new ArrayList<Span>(full ? spans.length : next);
+        if (full) {
+            for (int i = next; i < spans.length; i++) {
+                recorded.add(spans[i]);
+            }
+        }
+        for (int i = 0; i < next; i++) {
+            recorded.add(spans[i]);
+        }
+        return recorded;
+    }
+
+    /** Recorded spans grouped by trace id, in the order their traces were first seen */
+    public Map<String, List<Span>> getTraces() {
+        Map<String, List<Span>> traces = new LinkedHashMap<String, List<Span>>();
+        for (Span span : getSpans()) {
+            String traceId = Long.toHexString(span.traceId);
+            List<Span> trace = traces.get(traceId);
+            if (trace == null) {
+                trace = new ArrayList<Span>();
+                traces.put(traceId, trace);
+            }
+            trace.add(span);
+        }
+        return traces;
+    }
+
+    private static long newId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+}
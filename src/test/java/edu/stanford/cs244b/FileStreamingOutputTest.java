@@ -0,0 +1,63 @@
+package edu.stanford.cs244b;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class FileStreamingOutputTest {
+    private static final long[] UNSATISFIABLE = {-1, -1};
+
+    @Test
+    public void parsesClosedRanges() {
+        assertArrayEquals(new long[] {0, 1}, FileStreamingOutput.parseRange("bytes=0-0", 100));
+        assertArrayEquals(new long[] {10, 11}, FileStreamingOutput.parseRange("bytes=10-20", 100));
+        assertArrayEquals(new long[] {0, 100}, FileStreamingOutput.parseRange(" bytes= 0 - 99 ", 100));
+    }
+
+    @Test
+    public void parsesOpenEndedRanges() {
+        assertArrayEquals(new long[] {90, 10}, FileStreamingOutput.parseRange("bytes=90-", 100));
+        assertArrayEquals(new long[] {99, 1}, FileStreamingOutput.parseRange("bytes=99-", 100));
+    }
+
+    @Test
+    public void parsesSuffixRanges() {
+        assertArrayEquals(new long[] {80, 20}, FileStreamingOutput.parseRange("bytes=-20", 100));
+        // a suffix longer than the file is the whole file
+        assertArrayEquals(new long[] {0, 100}, FileStreamingOutput.parseRange("bytes=-500", 100));
+        assertArrayEquals(UNSATISFIABLE, FileStreamingOutput.parseRange("bytes=-0", 100));
+    }
+
+    @Test
+    public void clampsEndPastEndOfFile() {
+        assertArrayEquals(new long[] {50, 50}, FileStreamingOutput.parseRange("bytes=50-1000", 100));
+    }
+
+    @Test
+    public void rejectsRangesOutsideTheFile() {
+        assertArrayEquals(UNSATISFIABLE, FileStreamingOutput.parseRange("bytes=100-", 100));
+        assertArrayEquals(UNSATISFIABLE, FileStreamingOutput.parseRange("bytes=100-200", 100));
+        assertArrayEquals(UNSATISFIABLE, FileStreamingOutput.parseRange("bytes=20-10", 100));
+    }
+
+    @Test
+    public void rejectsEveryRangeOfEmptyFile() {
+        assertArrayEquals(UNSATISFIABLE, FileStreamingOutput.parseRange("bytes=0-", 0));
+        assertArrayEquals(UNSATISFIABLE, FileStreamingOutput.parseRange("bytes=0-0", 0));
+        assertArrayEquals(UNSATISFIABLE, FileStreamingOutput.parseRange("bytes=-1", 0));
+    }
+
+    @Test
+    public void sendsWholeFileForAbsentOrUnsupportedHeaders() {
+        assertNull(FileStreamingOutput.parseRange(null, 100));
+        // multiple ranges are not supported, the whole file is sent instead
+        assertNull(FileStreamingOutput.parseRange("bytes=0-1,5-6", 100));
+        // malformed headers are ignored, as RFC 7233 allows
+        assertNull(FileStreamingOutput.parseRange("items=0-1", 100));
+        assertNull(FileStreamingOutput.parseRange("bytes=5", 100));
+        assertNull(FileStreamingOutput.parseRange("bytes=a-b", 100));
+        assertNull(FileStreamingOutput.parseRange("bytes=-", 100));
+        assertNull(FileStreamingOutput.parseRange("", 100));
+    }
+}
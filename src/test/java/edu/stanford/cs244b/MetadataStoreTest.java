@@ -0,0 +1,135 @@
+package edu.stanford.cs244b;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.ws.rs.core.MediaType;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.stanford.cs244b.Shard.MetadataEntry;
+
+public class MetadataStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void setUp() {
+        directory = folder.getRoot().toPath().resolve("metadata");
+    }
+
+    private static MetadataEntry entry(String userChecksum, String fileName) {
+        MetadataEntry entry = new MetadataEntry(userChecksum, "sha-"+userChecksum);
+        entry.setFileDetail(fileName, MediaType.TEXT_PLAIN_TYPE);
+        return entry;
+    }
+
+    private void putAll(int count) throws IOException {
+        try (MetadataStore store = new MetadataStore(directory)) {
+            for (int i = 0; i < count; i++) {
+                store.put(entry("file"+i, "name"+i));
+            }
+        }
+    }
+
+    private void append(Path file, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(bytes));
+        }
+    }
+
+    @Test
+    public void entriesSurviveReopen() throws IOException {
+        putAll(3);
+        try (MetadataStore store = new MetadataStore(directory)) {
+            assertEquals(3, store.size());
+            MetadataEntry entry = store.get("file1");
+            assertEquals("sha-file1", entry.sha256);
+            assertEquals("name1", entry.fileName);
+            assertEquals(MediaType.TEXT_PLAIN, entry.getFileType());
+        }
+    }
+
+    @Test
+    public void tornTailIsDiscarded() throws IOException {
+        putAll(3);
+        Path log = directory.resolve("log-0");
+        long size = Files.size(log);
+        // the header of a record whose payload never reached the disk
+        append(log, new byte[] {0, 0, 0, 100, 1, 2, 3, 4, 1, 0, 0});
+
+        try (MetadataStore store = new MetadataStore(directory)) {
+            assertEquals(3, store.size());
+            assertEquals(size, Files.size(log));
+            store.put(entry("file3", "name3"));
+        }
+        try (MetadataStore store = new MetadataStore(directory)) {
+            assertEquals(4, store.size());
+            assertEquals("name3", store.get("file3").fileName);
+        }
+    }
+
+    @Test
+    public void corruptionBeforeValidRecordsFailsToOpen() throws IOException {
+        putAll(3);
+        Path log = directory.resolve("log-0");
+        byte[] bytes = Files.readAllBytes(log);
+        // damage the payload of the first record, which is followed by two good ones
+        bytes[20] ^= 0x55;
+        Files.write(log, bytes);
+        try {
+            new MetadataStore(directory).close();
+            fail("Opened a store whose log is corrupt in the middle");
+        } catch (IOException e) {
+            // expected
+        }
+        // nothing was cut off while trying
+        assertEquals(bytes.length, Files.size(log));
+    }
+
+    @Test
+    public void replayAfterSnapshot() throws IOException {
+        try (MetadataStore store = new MetadataStore(directory)) {
+            for (int i = 0; i < 5; i++) {
+                store.put(entry("file"+i, "name"+i));
+            }
+            store.compact();
+            store.put(entry("file1", "renamed"));
+            store.put(entry("file5", "name5"));
+        }
+        assertFalse(Files.exists(directory.resolve("log-0")));
+        try (MetadataStore store = new MetadataStore(directory)) {
+            assertEquals(6, store.size());
+            assertEquals("renamed", store.get("file1").fileName);
+            assertEquals("name5", store.get("file5").fileName);
+            assertNull(store.get("file6"));
+        }
+    }
+
+    @Test
+    public void tornTailAfterSnapshotIsDiscarded() throws IOException {
+        try (MetadataStore store = new MetadataStore(directory)) {
+            store.put(entry("file0", "name0"));
+            store.compact();
+            store.put(entry("file1", "name1"));
+        }
+        append(directory.resolve("log-1"), new byte[] {0, 0, 0, 50, 9});
+        try (MetadataStore store = new MetadataStore(directory)) {
+            assertEquals(2, store.size());
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package edu.stanford.cs244b.chord.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.rmi.ServerException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import edu.stanford.cs244b.chord.ChordTransport;
+import edu.stanford.cs244b.chord.Finger;
+import edu.stanford.cs244b.chord.LookupStep;
+import edu.stanford.cs244b.chord.RemoteChordNodeI;
+import edu.stanford.cs244b.chord.RemoteStub;
+
+public class RpcCodecTest {
+    /** Connects to nothing, only hands out stubs which know their location */
+    private static final ChordTransport TRANSPORT = new ChordTransport() {
+        @Override
+        public void export(RemoteChordNodeI node, Finger location) {
+        }
+
+        @Override
+        public RemoteChordNodeI connect(Finger location) {
+            return stub(location);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    };
+
+    private static RemoteChordNodeI stub(final Finger location) {
+        return (RemoteChordNodeI) Proxy.newProxyInstance(RemoteChordNodeI.class.getClassLoader(),
+                new Class<?>[] {RemoteChordNodeI.class, RemoteStub.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getStubLocation")) {
+                    return location;
+                } else if (method.getName().equals("toString")) {
+                    return "stub "+location;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static Finger finger(String host, int port) throws IOException {
+        return new Finger(InetAddress.getByName(host), port);
+    }
+
+    private static Object roundTrip(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        RpcCodec.writeValue(out, value);
+        out.flush();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Object decoded = RpcCodec.readValue(in, TRANSPORT);
+        assertEquals("bytes left after decoding "+value, -1, in.read());
+        return decoded;
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static void assertRejected(byte[] encoded) {
+        try {
+            RpcCodec.readValue(input(encoded), TRANSPORT);
+            fail("Decoded invalid value "+Arrays.toString(encoded));
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void roundTripsScalars() throws IOException {
+        assertNull(roundTrip(null));
+        assertEquals(-7, roundTrip(-7));
+        assertEquals(Long.MIN_VALUE, roundTrip(Long.MIN_VALUE));
+        assertEquals(true, roundTrip(true));
+        assertEquals("héllo", roundTrip("héllo"));
+        assertEquals("", roundTrip(""));
+        assertEquals(InetAddress.getByName("::1"), roundTrip(InetAddress.getByName("::1")));
+    }
+
+    @Test
+    public void roundTripsArrays() throws IOException {
+        assertArrayEquals(new byte[] {1, 2, 3}, (byte[]) roundTrip(new byte[] {1, 2, 3}));
+        byte[][] arrays = {{}, {4}, {5, 6}};
+        assertTrue(Arrays.deepEquals(arrays, (byte[][]) roundTrip(arrays)));
+        assertArrayEquals(new int[] {1, -1}, (int[]) roundTrip(new int[] {1, -1}));
+        assertArrayEquals(new long[] {0, Long.MAX_VALUE}, (long[]) roundTrip(new long[] {0, Long.MAX_VALUE}));
+        String[] strings = {"a", "", "ü"};
+        assertArrayEquals(strings, (String[]) roundTrip(strings));
+    }
+
+    @Test
+    public void roundTripsChordTypes() throws IOException {
+        Finger finger = finger("127.0.0.1", 8080);
+        assertEquals(finger, roundTrip(finger));
+
+        Finger[] fingers = {finger, null, finger("::1", 1)};
+        assertArrayEquals(fingers, (Finger[]) roundTrip(fingers));
+
+        LookupStep step = new LookupStep(finger, finger("10.0.0.2", 2), finger("10.0.0.3", 3));
+        LookupStep decoded = (LookupStep) roundTrip(step);
+        assertEquals(step.location, decoded.location);
+        assertEquals(step.successor, decoded.successor);
+        assertEquals(step.nextHop, decoded.nextHop);
+
+        // node references travel as their location
+        RemoteChordNodeI node = (RemoteChordNodeI) roundTrip(stub(finger));
+        assertEquals(finger, ((RemoteStub) node).getStubLocation());
+    }
+
+    @Test
+    public void decodesResponses() throws IOException {
+        ByteArrayOutputStream response = RpcCodec.encodeResponse(new int[] {1, 2});
+        byte[] body = Arrays.copyOfRange(response.toByteArray(), 8, response.size());
+        assertArrayEquals(new int[] {1, 2}, (int[]) RpcCodec.decodeResponse(body, TRANSPORT));
+    }
+
+    @Test
+    public void reportsRemoteErrorsAsServerException() throws IOException {
+        ByteArrayOutputStream error = RpcCodec.encodeError(new IllegalStateException("boom"));
+        byte[] body = Arrays.copyOfRange(error.toByteArray(), 8, error.size());
+        try {
+            RpcCodec.decodeResponse(body, TRANSPORT);
+            fail("Remote error was not reported");
+        } catch (ServerException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("boom"));
+        }
+    }
+
+    @Test
+    public void framesCarryLengthAndRequestId() throws IOException {
+        ByteArrayOutputStream message = RpcCodec.encodeResponse("x");
+        byte[] frame = RpcCodec.toFrame(message, 0x01020304);
+        DataInputStream in = input(frame);
+        assertEquals(frame.length - 4, in.readInt());
+        assertEquals(0x01020304, in.readInt());
+    }
+
+    @Test
+    public void rejectsInvalidLengths() {
+        int tooLong = RpcCodec.MAX_FRAME_LENGTH + 1;
+        // BYTES, STRING, BYTES_ARRAY, INT_ARRAY and STRING_ARRAY with oversized and negative lengths
+        for (int type : new int[] {5, 4, 12, 13, 15}) {
+            for (int length : new int[] {tooLong, -1, Integer.MIN_VALUE}) {
+                assertRejected(new byte[] {(byte) type,
+                        (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+            }
+        }
+        // INET_ADDRESS with a length byte which is negative when signed, and one which is no address
+        assertRejected(new byte[] {9, (byte) 0xff});
+        assertRejected(new byte[] {9, 5, 1, 2, 3, 4, 5});
+        // unknown type, and a value cut short
+        assertRejected(new byte[] {99});
+        assertRejected(new byte[] {1, 0, 0});
+    }
+
+    @Test
+    public void rejectsUnknownMethods() {
+        for (short id : new short[] {-1, Short.MAX_VALUE}) {
+            try {
+                RpcCodec.method(id);
+                fail("Accepted method id "+id);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package edu.stanford.cs244b.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkedObjectOutputTest {
+    private static final int[] CHUNK_LENGTHS = {100, 1, 250, 49, 100};
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final Map<String, byte[]> chunks = new HashMap<String, byte[]>();
+    private final Set<String> fetched = new HashSet<String>();
+    private final ChunkManifest manifest = new ChunkManifest();
+    private byte[] file;
+
+    private final ChunkedObjectOutput.ChunkSource source = new ChunkedObjectOutput.ChunkSource() {
+        @Override
+        public byte[] readChunk(ChunkManifest.Chunk chunk) throws IOException {
+            synchronized (fetched) {
+                fetched.add(chunk.sha256);
+            }
+            return chunks.get(chunk.sha256);
+        }
+    };
+
+    @Before
+    public void createFile() {
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        Random random = new Random(1);
+        for (int i = 0; i < CHUNK_LENGTHS.length; i++) {
+            byte[] chunk = new byte[CHUNK_LENGTHS[i]];
+            random.nextBytes(chunk);
+            // names only have to be distinct, the source does no verification
+            String name = "chunk"+i;
+            chunks.put(name, chunk);
+            manifest.addChunk(name, chunk.length);
+            whole.write(chunk, 0, chunk.length);
+        }
+        file = whole.toByteArray();
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private byte[] write(ChunkedObjectOutput output) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        output.write(bytes);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void writesWholeFile() throws IOException {
+        assertArrayEquals(file, write(new ChunkedObjectOutput(manifest, source, executor, 2)));
+        assertEquals(CHUNK_LENGTHS.length, fetched.size());
+    }
+
+    @Test
+    public void writesEveryRange() throws IOException {
+        for (int offset = 0; offset < file.length; offset += 7) {
+            for (int length = 1; offset + length <= file.length; length += 13) {
+                byte[] range = write(new ChunkedObjectOutput(manifest, offset, length, source, executor, 2));
+                assertArrayEquals("offset "+offset+" length "+length,
+                        Arrays.copyOfRange(file, offset, offset + length), range);
+            }
+        }
+    }
+
+    @Test
+    public void fetchesOnlyChunksInRange() throws IOException {
+        // the last byte of chunk0 up to the first byte of chunk3
+        byte[] range = write(new ChunkedObjectOutput(manifest, 99, 253, source, executor, 2));
+        assertArrayEquals(Arrays.copyOfRange(file, 99, 352), range);
+        assertEquals(new HashSet<String>(Arrays.asList("chunk0", "chunk1", "chunk2", "chunk3")), fetched);
+    }
+}
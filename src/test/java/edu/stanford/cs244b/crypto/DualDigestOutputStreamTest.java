@@ -0,0 +1,105 @@
+package edu.stanford.cs244b.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DualDigestOutputStreamTest {
+    private static final SecretKeySpec KEY = new SecretKeySpec("0123456789abcdef".getBytes(), "HmacSHA256");
+
+    /** Buffer sizes around the write sizes below, including unbuffered and the default */
+    private static final int[] BUFFER_SIZES = {0, 1, 7, 4096, DualDigestOutputStream.BUFFER_SIZE};
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static Mac newMac() throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(KEY);
+        return mac;
+    }
+
+    /** Write the data in random pieces: single bytes, small arrays, and arrays larger than the buffer */
+    private static void writeRandomly(DualDigestOutputStream out, byte[] data, Random random) throws IOException {
+        int position = 0;
+        while (position < data.length) {
+            int kind = random.nextInt(3);
+            if (kind == 0) {
+                out.write(data[position++]);
+                continue;
+            }
+            int maxLength = (kind == 1) ? 100 : 3 * DualDigestOutputStream.BUFFER_SIZE;
+            int length = Math.min(data.length - position, random.nextInt(maxLength) + 1);
+            out.write(data, position, length);
+            position += length;
+        }
+    }
+
+    private void checkAgainstJdk(boolean withMac, ExecutorService macExecutor) throws Exception {
+        Random random = new Random(42);
+        for (int bufferSize : BUFFER_SIZES) {
+            for (int length : new int[] {0, 1, 1000, 2 * DualDigestOutputStream.BUFFER_SIZE + 3}) {
+                byte[] data = new byte[length];
+                random.nextBytes(data);
+                ByteArrayOutputStream written = new ByteArrayOutputStream();
+                DualDigestOutputStream out = new DualDigestOutputStream(written,
+                        MessageDigest.getInstance("SHA-256"), withMac ? newMac() : null, macExecutor, bufferSize);
+                writeRandomly(out, data, random);
+                String message = "buffer "+bufferSize+" length "+length;
+
+                assertArrayEquals(message, MessageDigest.getInstance("SHA-256").digest(data), out.getSha256Digest());
+                if (withMac) {
+                    assertArrayEquals(message, newMac().doFinal(data), out.getMacDigest());
+                } else {
+                    assertNull(out.getMacDigest());
+                }
+                out.close();
+                assertArrayEquals(message, data, written.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void matchesJdkDigestsWithoutMac() throws Exception {
+        checkAgainstJdk(false, null);
+    }
+
+    @Test
+    public void matchesJdkDigestsWithMac() throws Exception {
+        checkAgainstJdk(true, null);
+    }
+
+    @Test
+    public void matchesJdkDigestsWithMacOnExecutor() throws Exception {
+        checkAgainstJdk(true, executor);
+    }
+
+    @Test
+    public void flushWritesBufferedBytes() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        DualDigestOutputStream out = new DualDigestOutputStream(written,
+                MessageDigest.getInstance("SHA-256"), newMac(), executor);
+        byte[] data = {1, 2, 3};
+        out.write(data, 0, data.length);
+        out.flush();
+        assertArrayEquals(data, written.toByteArray());
+        assertArrayEquals(newMac().doFinal(data), out.getMacDigest());
+    }
+}
@@ -0,0 +1,93 @@
+package edu.stanford.cs244b.erasure;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.stanford.cs244b.erasure.ErasureCoder.Fragment;
+
+public class ErasureCoderTest {
+    private final ErasureCoder coder = new ErasureCoder(4, 2);
+
+    private static byte[] object(int length) {
+        byte[] object = new byte[length];
+        new Random(length).nextBytes(object);
+        return object;
+    }
+
+    private Fragment[] parseAll(byte[][] fragments) throws IOException {
+        Fragment[] parsed = new Fragment[fragments.length];
+        for (int i = 0; i < fragments.length; i++) {
+            parsed[i] = coder.parse(fragments[i]);
+            assertEquals(i, parsed[i].index);
+        }
+        return parsed;
+    }
+
+    @Test
+    public void roundTripsWithEveryErasurePattern() throws IOException {
+        // lengths which do not divide evenly into shards, and the empty object
+        for (int length : new int[] {0, 1, 3, 4, 5, 1000, 65537}) {
+            byte[] object = object(length);
+            byte[][] fragments = coder.encode(object);
+            assertEquals(coder.getTotalShards(), fragments.length);
+            Fragment[] parsed = parseAll(fragments);
+            for (int mask = 0; mask < (1 << fragments.length); mask++) {
+                if (Integer.bitCount(mask) > fragments.length - coder.getDataShards()) {
+                    continue;
+                }
+                Fragment[] available = new Fragment[fragments.length];
+                for (int i = 0; i < fragments.length; i++) {
+                    if ((mask & (1 << i)) == 0) {
+                        available[i] = parsed[i];
+                    }
+                }
+                assertArrayEquals("length "+length+" with erasures "+Integer.toBinaryString(mask),
+                        object, coder.decode(available));
+            }
+        }
+    }
+
+    @Test
+    public void decodesFragmentsInAnyOrder() throws IOException {
+        byte[] object = object(999);
+        Fragment[] parsed = parseAll(coder.encode(object));
+        // decode only needs each fragment's own index, not its position
+        Fragment[] shuffled = {parsed[5], null, parsed[2], parsed[4], null, parsed[1]};
+        assertArrayEquals(object, coder.decode(shuffled));
+    }
+
+    @Test
+    public void rejectsCorruptFragment() throws IOException {
+        byte[][] fragments = coder.encode(object(100));
+        fragments[3][fragments[3].length - 1] ^= 1;
+        try {
+            coder.parse(fragments[3]);
+            fail("Parsed a corrupt fragment");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsFragmentOfAnotherCode() throws IOException {
+        byte[][] fragments = new ErasureCoder(6, 3).encode(object(100));
+        try {
+            coder.parse(fragments[0]);
+            fail("Parsed a fragment encoded with a different code");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            coder.parse(new byte[] {1, 2, 3});
+            fail("Parsed a fragment without a header");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
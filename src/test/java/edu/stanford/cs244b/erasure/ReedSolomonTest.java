@@ -0,0 +1,74 @@
+package edu.stanford.cs244b.erasure;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReedSolomonTest {
+    private static byte[][] encoded(ReedSolomon code, int shardLength, long seed) {
+        Random random = new Random(seed);
+        byte[][] shards = new byte[code.getTotalShards()][shardLength];
+        for (int i = 0; i < code.getDataShards(); i++) {
+            random.nextBytes(shards[i]);
+        }
+        code.encode(shards);
+        return shards;
+    }
+
+    /** Erase every combination of up to parityShards shards and check the data shards are rebuilt */
+    private static void checkAllErasures(int dataShards, int parityShards) {
+        ReedSolomon code = new ReedSolomon(dataShards, parityShards);
+        byte[][] original = encoded(code, 37, dataShards * 31 + parityShards);
+        int totalShards = code.getTotalShards();
+        for (int mask = 0; mask < (1 << totalShards); mask++) {
+            if (Integer.bitCount(mask) > parityShards) {
+                continue;
+            }
+            byte[][] shards = new byte[totalShards][];
+            boolean[] present = new boolean[totalShards];
+            for (int i = 0; i < totalShards; i++) {
+                if ((mask & (1 << i)) == 0) {
+                    shards[i] = original[i].clone();
+                    present[i] = true;
+                }
+            }
+            code.decodeData(shards, present);
+            for (int i = 0; i < dataShards; i++) {
+                assertArrayEquals("shard "+i+" with erasures "+Integer.toBinaryString(mask), original[i], shards[i]);
+            }
+        }
+    }
+
+    @Test
+    public void rebuildsFromAnyDataShards() {
+        checkAllErasures(1, 1);
+        checkAllErasures(2, 1);
+        checkAllErasures(4, 2);
+        checkAllErasures(6, 3);
+        checkAllErasures(10, 4);
+    }
+
+    @Test
+    public void parityOnlyCodeIsReplication() {
+        byte[][] shards = encoded(new ReedSolomon(1, 3), 16, 7);
+        for (int i = 1; i < shards.length; i++) {
+            assertArrayEquals(shards[0], shards[i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooFewShardsCannotBeDecoded() {
+        ReedSolomon code = new ReedSolomon(4, 2);
+        byte[][] shards = encoded(code, 8, 1);
+        boolean[] present = {false, true, false, true, false, true};
+        shards[0] = shards[2] = shards[4] = null;
+        code.decodeData(shards, present);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyShards() {
+        new ReedSolomon(200, 56);
+    }
+}
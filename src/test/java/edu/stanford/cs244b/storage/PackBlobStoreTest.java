@@ -0,0 +1,165 @@
+package edu.stanford.cs244b.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PackBlobStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void setUp() {
+        directory = folder.getRoot().toPath().resolve("pack");
+    }
+
+    private static byte[] data(String objectName, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) objectName.hashCode());
+        byte[] name = objectName.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(name, 0, data, 0, Math.min(name.length, length));
+        return data;
+    }
+
+    private static void assertStored(PackBlobStore store, String objectName, int length) throws IOException {
+        assertArrayEquals(data(objectName, length), store.get(objectName).readAll());
+    }
+
+    private void append(Path file, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(bytes));
+        }
+    }
+
+    @Test
+    public void objectsSurviveReopen() throws IOException {
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            store.put("a", data("a", 100));
+            store.put("b", data("b", 200));
+            store.put("a", data("a", 300));
+            store.delete("b");
+        }
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            assertEquals(1, store.size());
+            assertStored(store, "a", 300);
+            assertFalse(store.contains("b"));
+        }
+    }
+
+    @Test
+    public void tornWriteIsDiscarded() throws IOException {
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            store.put("a", data("a", 100));
+            store.put("b", data("b", 200));
+        }
+        Path segment = directory.resolve("0.pack");
+        long size = Files.size(segment);
+        // the start of a record whose body never reached the disk
+        append(segment, new byte[] {0x70, 0x61, 0x63, 0x6b, 1, 2, 3, 4, 1, 0, 1, 0, 0, 1, 0, 'c'});
+
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            assertEquals(2, store.size());
+            assertEquals(size, Files.size(segment));
+            store.put("c", data("c", 50));
+        }
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            assertStored(store, "a", 100);
+            assertStored(store, "b", 200);
+            assertStored(store, "c", 50);
+        }
+    }
+
+    @Test
+    public void corruptRecordIsSkippedNotTruncated() throws IOException {
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            store.put("a", data("a", 100));
+            store.put("b", data("b", 200));
+            store.put("c", data("c", 300));
+        }
+        Path segment = directory.resolve("0.pack");
+        byte[] bytes = Files.readAllBytes(segment);
+        // damage the data of the first record, which is followed by two good ones
+        bytes[50] ^= 0x55;
+        Files.write(segment, bytes);
+
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            assertNull(store.get("a"));
+            assertStored(store, "b", 200);
+            assertStored(store, "c", 300);
+            assertEquals(bytes.length, Files.size(segment));
+        }
+    }
+
+    @Test
+    public void compactionSurvivesReopen() throws IOException {
+        int large = 20 * 1024 * 1024;
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            store.put("a", data("a", large));
+            store.put("b", data("b", large));
+            store.put("c", data("c", large));
+            store.put("small", data("small", 10));
+            // does not fit in the first segment, which is sealed
+            store.put("d", data("d", large));
+            // leave only c and small live in the first segment
+            store.put("a", data("a", 1000));
+            store.delete("b");
+            store.compact();
+            assertEquals(4, store.size());
+            assertEquals(directory.resolve("1.pack"), store.get("c").file);
+            assertStored(store, "c", large);
+            assertStored(store, "small", 10);
+        }
+        // the first segment is only deleted once readers have had time to finish, and
+        // the records it still holds are older than their copies
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            assertEquals(4, store.size());
+            assertStored(store, "a", 1000);
+            assertFalse(store.contains("b"));
+            assertStored(store, "c", large);
+            assertStored(store, "d", large);
+            assertStored(store, "small", 10);
+        }
+    }
+
+    @Test
+    public void compactionWithoutHintsSurvivesReopen() throws IOException {
+        int large = 20 * 1024 * 1024;
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            store.put("a", data("a", 2 * large));
+            store.put("b", data("b", 1000));
+            store.put("c", data("c", large));
+            store.put("d", data("d", large));
+        }
+        // a sealed segment whose hint file was lost is scanned instead
+        Files.deleteIfExists(directory.resolve("0.hint"));
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            store.delete("a");
+            store.compact();
+            assertEquals(directory.resolve("1.pack"), store.get("b").file);
+            assertStored(store, "b", 1000);
+        }
+        try (PackBlobStore store = new PackBlobStore("test", directory)) {
+            assertEquals(3, store.size());
+            assertStored(store, "b", 1000);
+            assertStored(store, "c", large);
+            assertStored(store, "d", large);
+        }
+    }
+}